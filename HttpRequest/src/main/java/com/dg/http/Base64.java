@@ -1,6 +1,11 @@
 package com.dg.http;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <p>
@@ -21,6 +26,22 @@ import java.io.UnsupportedEncodingException;
 public class Base64
 {
 
+    /**
+     * No options specified. Value is zero.
+     */
+    public final static int NO_OPTIONS = 0;
+
+    /**
+     * Encode using Base64-like encoding that is URL- and Filename-safe as
+     * described in Section 5 of RFC 4648 ("-" and "_" instead of "+" and "/").
+     */
+    public final static int URL_SAFE = 16;
+
+    /**
+     * Do not write the "=" padding when encoding. Decoding never requires padding.
+     */
+    public final static int NO_PADDING = 64;
+
     /**
      * The equals sign (=) as a byte.
      */
@@ -47,6 +68,57 @@ public class Base64
             (byte) '4', (byte) '5', (byte) '6', (byte) '7', (byte) '8', (byte) '9',
             (byte) '+', (byte) '/'};
 
+    /**
+     * The 64 valid URL-safe Base64 values, as described in Section 5 of RFC 4648.
+     */
+    private final static byte[] _URL_SAFE_ALPHABET = {(byte) 'A', (byte) 'B',
+            (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F', (byte) 'G', (byte) 'H',
+            (byte) 'I', (byte) 'J', (byte) 'K', (byte) 'L', (byte) 'M', (byte) 'N',
+            (byte) 'O', (byte) 'P', (byte) 'Q', (byte) 'R', (byte) 'S', (byte) 'T',
+            (byte) 'U', (byte) 'V', (byte) 'W', (byte) 'X', (byte) 'Y', (byte) 'Z',
+            (byte) 'a', (byte) 'b', (byte) 'c', (byte) 'd', (byte) 'e', (byte) 'f',
+            (byte) 'g', (byte) 'h', (byte) 'i', (byte) 'j', (byte) 'k', (byte) 'l',
+            (byte) 'm', (byte) 'n', (byte) 'o', (byte) 'p', (byte) 'q', (byte) 'r',
+            (byte) 's', (byte) 't', (byte) 'u', (byte) 'v', (byte) 'w', (byte) 'x',
+            (byte) 'y', (byte) 'z', (byte) '0', (byte) '1', (byte) '2', (byte) '3',
+            (byte) '4', (byte) '5', (byte) '6', (byte) '7', (byte) '8', (byte) '9',
+            (byte) '-', (byte) '_'};
+
+    /**
+     * Marks a whitespace character in the decoding tables.
+     */
+    private final static byte WHITE_SPACE_ENC = -5;
+
+    /**
+     * Marks an invalid character in the decoding tables.
+     */
+    private final static byte BAD_ENC = -9;
+
+    /**
+     * Translates bytes to their 6-bit values, accepting both the standard and the URL-safe alphabets.
+     */
+    private final static byte[] _DECODABET = new byte[256];
+
+    static
+    {
+        java.util.Arrays.fill(_DECODABET, BAD_ENC);
+        for (int i = 0; i < 64; i++)
+        {
+            _DECODABET[_STANDARD_ALPHABET[i] & 0xff] = (byte) i;
+            _DECODABET[_URL_SAFE_ALPHABET[i] & 0xff] = (byte) i;
+        }
+        _DECODABET[' '] = WHITE_SPACE_ENC;
+        _DECODABET['\t'] = WHITE_SPACE_ENC;
+        _DECODABET['\n'] = WHITE_SPACE_ENC;
+        _DECODABET['\r'] = WHITE_SPACE_ENC;
+        _DECODABET['\f'] = WHITE_SPACE_ENC;
+    }
+
+    private static byte[] getAlphabet(int options)
+    {
+        return (options & URL_SAFE) == URL_SAFE ? _URL_SAFE_ALPHABET : _STANDARD_ALPHABET;
+    }
+
     /**
      * Defeats instantiation.
      */
@@ -76,14 +148,15 @@ public class Base64
      * @param numSigBytes the number of significant bytes in your array
      * @param destination the array to hold the conversion
      * @param destOffset  the index where output will be put
+     * @param options     alphabet options
      * @return the <var>destination</var> array
      * @since 1.3
      */
     private static byte[] encode3to4(byte[] source, int srcOffset,
-                                     int numSigBytes, byte[] destination, int destOffset)
+                                     int numSigBytes, byte[] destination, int destOffset, int options)
     {
 
-        byte[] ALPHABET = _STANDARD_ALPHABET;
+        byte[] ALPHABET = getAlphabet(options);
 
         int inBuff = (numSigBytes > 0 ? ((source[srcOffset] << 24) >>> 8) : 0)
                 | (numSigBytes > 1 ? ((source[srcOffset + 1] << 24) >>> 16) : 0)
@@ -175,6 +248,26 @@ public class Base64
         }
     }
 
+    /**
+     * Encodes a byte array into Base64 notation.
+     *
+     * @param source  The data to convert
+     * @param options Specified options, i.e. {@link #URL_SAFE}, {@link #NO_PADDING}
+     * @return The Base64-encoded data as a String
+     */
+    public static String encodeBytes(byte[] source, int options)
+    {
+        byte[] encoded = encodeBytesToBytes(source, 0, source.length, options);
+        try
+        {
+            return new String(encoded, PREFERRED_ENCODING);
+        }
+        catch (UnsupportedEncodingException uue)
+        {
+            return new String(encoded);
+        }
+    }
+
     /**
      * Similar to {@link #encodeBytes(byte[], int, int)} but returns a byte
      * array instead of instantiating a String. This is more efficient if you're
@@ -190,7 +283,86 @@ public class Base64
      */
     public static byte[] encodeBytesToBytes(byte[] source, int off, int len)
     {
+        return encodeBytesToBytes(source, off, len, NO_OPTIONS);
+    }
+
+    /**
+     * Similar to {@link #encodeBytesToBytes(byte[], int, int)}, with options.
+     *
+     * @param source  The data to convert
+     * @param off     Offset in array where conversion should begin
+     * @param len     Length of data to convert
+     * @param options Specified options, i.e. {@link #URL_SAFE}, {@link #NO_PADDING}
+     * @return The Base64-encoded data
+     */
+    public static byte[] encodeBytesToBytes(byte[] source, int off, int len, int options)
+    {
+        checkBounds(source, off, len);
+
+        byte[] outBuff = new byte[(int) encodedLength(len, options)];
+        encode(source, off, len, outBuff, 0, options);
+        return outBuff;
+    }
+
+    /**
+     * @param length  The length of the raw data
+     * @param options Specified options, i.e. {@link #URL_SAFE}, {@link #NO_PADDING}
+     * @return The exact length of the data when encoded
+     */
+    public static long encodedLength(long length, int options)
+    {
+        if ((options & NO_PADDING) == NO_PADDING)
+        {
+            return (length / 3) * 4 + (length % 3 == 0 ? 0 : (length % 3) + 1);
+        }
+        return (length / 3) * 4 + (length % 3 > 0 ? 4 : 0);
+    }
 
+    /**
+     * Encodes into a caller supplied buffer, without allocating.
+     *
+     * @param source      The data to convert
+     * @param off         Offset in array where conversion should begin
+     * @param len         Length of data to convert
+     * @param destination The buffer to write to. Must have at least {@link #encodedLength(long, int)} bytes available.
+     * @param destOff     Offset in destination where output should begin
+     * @param options     Specified options, i.e. {@link #URL_SAFE}, {@link #NO_PADDING}
+     * @return The number of bytes written to destination
+     */
+    public static int encode(byte[] source, int off, int len, byte[] destination, int destOff, int options)
+    {
+        checkBounds(source, off, len);
+
+        int d = 0;
+        int e = destOff;
+        int len2 = len - 2;
+        for (; d < len2; d += 3, e += 4)
+        {
+            encode3to4(source, d + off, 3, destination, e, options);
+        }
+
+        if (d < len)
+        {
+            if ((options & NO_PADDING) == NO_PADDING)
+            {
+                byte[] tail = new byte[4];
+                encode3to4(source, d + off, len - d, tail, 0, options);
+                int significant = len - d + 1;
+                System.arraycopy(tail, 0, destination, e, significant);
+                e += significant;
+            }
+            else
+            {
+                encode3to4(source, d + off, len - d, destination, e, options);
+                e += 4;
+            }
+        }
+
+        return e - destOff;
+    }
+
+    private static void checkBounds(byte[] source, int off, int len)
+    {
         if (source == null)
             throw new NullPointerException("Cannot serialize a null array.");
 
@@ -207,33 +379,404 @@ public class Base64
                             .format(
                                     "Cannot have offset of %d and length of %d with array of length %d",
                                     off, len, source.length));
+    }
+
+    /**
+     * Decodes data from Base64 notation. Accepts both the standard and the URL-safe alphabets,
+     * with or without padding, and ignores whitespace.
+     *
+     * @param s The string to decode
+     * @return The decoded data
+     * @throws IOException If there is a problem
+     */
+    public static byte[] decode(String s) throws IOException
+    {
+        byte[] bytes;
+        try
+        {
+            bytes = s.getBytes(PREFERRED_ENCODING);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            bytes = s.getBytes();
+        }
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes data from Base64 notation.
+     *
+     * @param source The Base64 encoded data
+     * @param off    The offset of where to begin decoding
+     * @param len    The length of characters to decode
+     * @return The decoded data
+     * @throws IOException If there is a problem
+     */
+    public static byte[] decode(byte[] source, int off, int len) throws IOException
+    {
+        checkBounds(source, off, len);
 
-        // Bytes needed for actual encoding
-        int encLen = (len / 3) * 4 + (len % 3 > 0 ? 4 : 0);
+        byte[] outBuff = new byte[len * 3 / 4 + 3];
+        int outLength = decode(source, off, len, outBuff, 0);
+        if (outLength == outBuff.length)
+        {
+            return outBuff;
+        }
 
-        byte[] outBuff = new byte[encLen];
+        byte[] out = new byte[outLength];
+        System.arraycopy(outBuff, 0, out, 0, outLength);
+        return out;
+    }
 
-        int d = 0;
-        int e = 0;
-        int len2 = len - 2;
-        for (; d < len2; d += 3, e += 4)
+    /**
+     * Decodes into a caller supplied buffer, without allocating.
+     *
+     * @param source      The Base64 encoded data
+     * @param off         The offset of where to begin decoding
+     * @param len         The length of characters to decode
+     * @param destination The buffer to write to. Must have at least len * 3 / 4 + 3 bytes available.
+     * @param destOff     Offset in destination where output should begin
+     * @return The number of bytes written to destination
+     * @throws IOException If there is a problem
+     */
+    public static int decode(byte[] source, int off, int len, byte[] destination, int destOff) throws IOException
+    {
+        checkBounds(source, off, len);
+
+        Decoder decoder = new Decoder();
+        int written = decoder.decode(source, off, len, destination, destOff);
+        written += decoder.finish(destination, destOff + written);
+        return written;
+    }
+
+    /**
+     * An incremental decoder, that can be fed with any amount of data at a time.
+     */
+    private static class Decoder
+    {
+        private int mBuffer = 0;
+        private int mBufferedSextets = 0;
+        private boolean mSeenPadding = false;
+
+        /**
+         * @return The number of bytes written to destination. At most (len + 3) * 3 / 4 bytes.
+         */
+        int decode(byte[] source, int off, int len, byte[] destination, int destOff) throws IOException
         {
-            encode3to4(source, d + off, 3, outBuff, e);
+            int e = destOff;
+            for (int i = off, end = off + len; i < end; i++)
+            {
+                byte b = source[i];
+                if (b == EQUALS_SIGN)
+                {
+                    mSeenPadding = true;
+                    continue;
+                }
+
+                byte sextet = _DECODABET[b & 0xff];
+                if (sextet == WHITE_SPACE_ENC)
+                {
+                    continue;
+                }
+                if (sextet < 0 || mSeenPadding)
+                {
+                    throw new IOException(String.format(
+                            "Bad Base64 input character decimal %d in array position %d", (b & 0xff), i));
+                }
+
+                mBuffer = (mBuffer << 6) | sextet;
+                if (++mBufferedSextets == 4)
+                {
+                    destination[e++] = (byte) (mBuffer >> 16);
+                    destination[e++] = (byte) (mBuffer >> 8);
+                    destination[e++] = (byte) mBuffer;
+                    mBuffer = 0;
+                    mBufferedSextets = 0;
+                }
+            }
+            return e - destOff;
         }
 
-        if (d < len)
+        /**
+         * Flushes the last incomplete quantum.
+         * @return The number of bytes written to destination. At most 2 bytes.
+         */
+        int finish(byte[] destination, int destOff) throws IOException
+        {
+            int sextets = mBufferedSextets;
+            int buffer = mBuffer;
+            mBuffer = 0;
+            mBufferedSextets = 0;
+
+            switch (sextets)
+            {
+                case 0:
+                    return 0;
+                case 2:
+                    destination[destOff] = (byte) (buffer >> 4);
+                    return 1;
+                case 3:
+                    destination[destOff] = (byte) (buffer >> 10);
+                    destination[destOff + 1] = (byte) (buffer >> 2);
+                    return 2;
+                default:
+                    throw new IOException("Base64 input not properly padded.");
+            }
+        }
+    }
+
+    /**
+     * A {@link java.io.FilterOutputStream} that Base64-encodes everything written to it on the fly.
+     * You must call close() (or finish()) to write the last quantum and padding.
+     */
+    public static class EncodingOutputStream extends FilterOutputStream
+    {
+        private final int mOptions;
+        private final byte[] mQuantum = new byte[3];
+        private int mQuantumLength = 0;
+        private final byte[] mEncoded = new byte[4 * 1024];
+        private boolean mFinished = false;
+
+        public EncodingOutputStream(java.io.OutputStream out)
         {
-            encode3to4(source, d + off, len - d, outBuff, e);
-            e += 4;
+            this(out, NO_OPTIONS);
         }
 
-        if (e <= outBuff.length - 1)
+        /**
+         * @param out     The stream to write encoded data to
+         * @param options Specified options, i.e. {@link #URL_SAFE}, {@link #NO_PADDING}
+         */
+        public EncodingOutputStream(java.io.OutputStream out, int options)
         {
-            byte[] finalOut = new byte[e];
-            System.arraycopy(outBuff, 0, finalOut, 0, e);
-            return finalOut;
+            super(out);
+            mOptions = options;
+        }
+
+        @Override
+        public void write(int theByte) throws IOException
+        {
+            write(new byte[]{ (byte) theByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] theBytes, int off, int len) throws IOException
+        {
+            if (mFinished)
+            {
+                throw new IOException("Base64 stream was already finished.");
+            }
+
+            // Complete a previously started quantum
+            while (mQuantumLength > 0 && mQuantumLength < 3 && len > 0)
+            {
+                mQuantum[mQuantumLength++] = theBytes[off++];
+                len--;
+            }
+            if (mQuantumLength == 3)
+            {
+                encode3to4(mQuantum, 0, 3, mEncoded, 0, mOptions);
+                out.write(mEncoded, 0, 4);
+                mQuantumLength = 0;
+            }
+
+            // Encode whole quantums in large batches
+            int maxBatch = mEncoded.length / 4 * 3;
+            while (len >= 3)
+            {
+                int batch = Math.min(len - len % 3, maxBatch);
+                int encodedLength = encode(theBytes, off, batch, mEncoded, 0, mOptions & ~NO_PADDING);
+                out.write(mEncoded, 0, encodedLength);
+                off += batch;
+                len -= batch;
+            }
+
+            // Keep the remainder for later
+            while (len > 0)
+            {
+                mQuantum[mQuantumLength++] = theBytes[off++];
+                len--;
+            }
+        }
+
+        /**
+         * Writes the last quantum and padding, without closing the underlying stream.
+         */
+        public void finish() throws IOException
+        {
+            if (mFinished) return;
+            mFinished = true;
+
+            if (mQuantumLength > 0)
+            {
+                int encodedLength = encode(mQuantum, 0, mQuantumLength, mEncoded, 0, mOptions);
+                out.write(mEncoded, 0, encodedLength);
+                mQuantumLength = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            finish();
+            super.close();
+        }
+    }
+
+    /**
+     * A {@link java.io.FilterInputStream} that decodes Base64 data read from the underlying stream on the fly.
+     * Accepts both the standard and the URL-safe alphabets, with or without padding, and ignores whitespace.
+     */
+    public static class DecodingInputStream extends FilterInputStream
+    {
+        private final Decoder mDecoder = new Decoder();
+        private final byte[] mEncoded = new byte[4 * 1024];
+        private final byte[] mDecoded = new byte[mEncoded.length / 4 * 3 + 3];
+        private int mDecodedPosition = 0;
+        private int mDecodedLength = 0;
+        private boolean mEndOfStream = false;
+
+        public DecodingInputStream(java.io.InputStream in)
+        {
+            super(in);
+        }
+
+        private boolean fill() throws IOException
+        {
+            while (mDecodedPosition == mDecodedLength)
+            {
+                if (mEndOfStream)
+                {
+                    return false;
+                }
+
+                mDecodedPosition = 0;
+                int read = in.read(mEncoded, 0, mEncoded.length);
+                if (read == -1)
+                {
+                    mEndOfStream = true;
+                    mDecodedLength = mDecoder.finish(mDecoded, 0);
+                }
+                else
+                {
+                    mDecodedLength = mDecoder.decode(mEncoded, 0, read, mDecoded, 0);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!fill())
+            {
+                return -1;
+            }
+            return mDecoded[mDecodedPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] dest, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            if (!fill())
+            {
+                return -1;
+            }
+
+            int count = Math.min(len, mDecodedLength - mDecodedPosition);
+            System.arraycopy(mDecoded, mDecodedPosition, dest, off, count);
+            mDecodedPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = 0;
+            while (skipped < n && fill())
+            {
+                int count = (int) Math.min(n - skipped, mDecodedLength - mDecodedPosition);
+                mDecodedPosition += count;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return mDecodedLength - mDecodedPosition;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit)
+        {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException
+        {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+
+    /**
+     * A request body or multipart part, that Base64-encodes its data while it is being sent.
+     * The data is never held in memory in its encoded form, and the content length is known in advance.
+     * Pass it to {@link HttpRequest#setRequestBody(MultipartBuilder.DynamicPart)} or as a part.
+     */
+    public static class EncodedPart extends MultipartBuilder.DynamicPart
+    {
+        private final Object mData;
+        private final long mDataLength;
+        private final String mContentType;
+        private final int mOptions;
+
+        /**
+         * @param data        The raw data. Anything supported as a request parameter (File, InputStream, byte[], ByteBuffer etc.)
+         * @param dataLength  The length of the raw data, or -1 if unknown. For File, byte[] and ByteBuffer this can be -1 and will be determined automatically.
+         * @param contentType The content type to send, can be null
+         * @param options     Specified options, i.e. {@link #URL_SAFE}, {@link #NO_PADDING}
+         */
+        public EncodedPart(Object data, long dataLength, String contentType, int options)
+        {
+            this.mData = data;
+            this.mDataLength = dataLength >= 0 ? dataLength : new MultipartBuilder.Part(data, null, null, -1, null).contentLength();
+            this.mContentType = contentType;
+            this.mOptions = options;
+        }
+
+        @Override
+        public long contentLength()
+        {
+            return mDataLength < 0 ? -1 : encodedLength(mDataLength, mOptions);
+        }
+
+        @Override
+        public String contentType()
+        {
+            return mContentType;
+        }
+
+        @Override
+        public void sendPartToStream(MultipartBuilder.Settings settings,
+                                     java.io.OutputStream outputStream,
+                                     Charset charset,
+                                     AtomicBoolean shouldAbort) throws IOException
+        {
+            EncodingOutputStream encodingStream = new EncodingOutputStream(outputStream, mOptions);
+            MultipartBuilder.writeDataToStream(settings, mData, encodingStream, charset, shouldAbort);
+            encodingStream.finish();
         }
-        else
-            return outBuff;
     }
 }
@@ -0,0 +1,137 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of equally sized ByteBuffers.
+ * Direct buffers are expensive to allocate and are only freed by the GC, so reusing them is important.
+ */
+@SuppressWarnings("unused")
+public class ByteBufferPool
+{
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final int DEFAULT_MAX_POOLED_BUFFERS = 16;
+
+    private final int mBufferSize;
+    private final int mMaxPooledBuffers;
+    private final boolean mDirect;
+    private final ConcurrentLinkedQueue<ByteBuffer> mPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPooledCount = new AtomicInteger(0);
+
+    public ByteBufferPool()
+    {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFERS, true);
+    }
+
+    public ByteBufferPool(int bufferSize, int maxPooledBuffers)
+    {
+        this(bufferSize, maxPooledBuffers, true);
+    }
+
+    /**
+     * @param bufferSize The capacity of each buffer
+     * @param maxPooledBuffers How many released buffers to keep for reuse. Buffers released beyond that are left to the GC.
+     * @param direct Should we allocate direct (off-heap) buffers
+     */
+    public ByteBufferPool(int bufferSize, int maxPooledBuffers, boolean direct)
+    {
+        this.mBufferSize = bufferSize;
+        this.mMaxPooledBuffers = maxPooledBuffers;
+        this.mDirect = direct;
+    }
+
+    public int getBufferSize()
+    {
+        return mBufferSize;
+    }
+
+    public int getMaxPooledBuffers()
+    {
+        return mMaxPooledBuffers;
+    }
+
+    public boolean isDirect()
+    {
+        return mDirect;
+    }
+
+    /**
+     * @return How many buffers are currently waiting in the pool for reuse
+     */
+    public int getPooledCount()
+    {
+        return mPooledCount.get();
+    }
+
+    /**
+     * @return A cleared buffer, either from the pool or newly allocated
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = mPool.poll();
+        if (buffer != null)
+        {
+            mPooledCount.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        return mDirect ? ByteBuffer.allocateDirect(mBufferSize) : ByteBuffer.allocate(mBufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. Do not use the buffer after releasing it.
+     * @param buffer A buffer previously acquired from this pool
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != mBufferSize || buffer.isDirect() != mDirect)
+        {
+            return;
+        }
+
+        if (mPooledCount.incrementAndGet() <= mMaxPooledBuffers)
+        {
+            mPool.offer(buffer);
+        }
+        else
+        {
+            mPooledCount.decrementAndGet();
+        }
+    }
+
+    public void release(Collection<ByteBuffer> buffers)
+    {
+        for (ByteBuffer buffer : buffers)
+        {
+            release(buffer);
+        }
+    }
+}
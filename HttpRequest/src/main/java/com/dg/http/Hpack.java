@@ -0,0 +1,662 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ * Header names and values are treated as ISO-8859-1, like HTTP/1.1 headers.
+ */
+final class Hpack
+{
+    /**
+     * The static table, as name/value pairs. Index 1 is at position 0.
+     */
+    private static final String[] STATIC_TABLE = {
+            ":authority", "",
+            ":method", "GET",
+            ":method", "POST",
+            ":path", "/",
+            ":path", "/index.html",
+            ":scheme", "http",
+            ":scheme", "https",
+            ":status", "200",
+            ":status", "204",
+            ":status", "206",
+            ":status", "304",
+            ":status", "400",
+            ":status", "404",
+            ":status", "500",
+            "accept-charset", "",
+            "accept-encoding", "gzip, deflate",
+            "accept-language", "",
+            "accept-ranges", "",
+            "accept", "",
+            "access-control-allow-origin", "",
+            "age", "",
+            "allow", "",
+            "authorization", "",
+            "cache-control", "",
+            "content-disposition", "",
+            "content-encoding", "",
+            "content-language", "",
+            "content-length", "",
+            "content-location", "",
+            "content-range", "",
+            "content-type", "",
+            "cookie", "",
+            "date", "",
+            "etag", "",
+            "expect", "",
+            "expires", "",
+            "from", "",
+            "host", "",
+            "if-match", "",
+            "if-modified-since", "",
+            "if-none-match", "",
+            "if-range", "",
+            "if-unmodified-since", "",
+            "last-modified", "",
+            "link", "",
+            "location", "",
+            "max-forwards", "",
+            "proxy-authenticate", "",
+            "proxy-authorization", "",
+            "range", "",
+            "referer", "",
+            "refresh", "",
+            "retry-after", "",
+            "server", "",
+            "set-cookie", "",
+            "strict-transport-security", "",
+            "transfer-encoding", "",
+            "user-agent", "",
+            "vary", "",
+            "via", "",
+            "www-authenticate", ""
+    };
+
+    private static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length / 2;
+
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] HUFFMAN_CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    /**
+     * The Huffman decoding tree. Each node is two consecutive slots (for bit 0 and bit 1),
+     * holding either the index of a child node, or a leaf as -(symbol + 1).
+     */
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private Hpack()
+    {
+    }
+
+    private static int[] buildHuffmanTree()
+    {
+        int[] tree = new int[512 * 2];
+        int nodeCount = 1;
+
+        for (int symbol = 0; symbol < 256; symbol++)
+        {
+            int code = HUFFMAN_CODES[symbol];
+            int length = HUFFMAN_CODE_LENGTHS[symbol];
+
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--)
+            {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (tree[slot] == 0)
+                {
+                    tree[slot] = nodeCount++;
+                }
+                node = tree[slot];
+            }
+            tree[node * 2 + (code & 1)] = -(symbol + 1);
+        }
+
+        return tree;
+    }
+
+    static int huffmanEncodedLength(String value)
+    {
+        long bits = 0;
+        for (int i = 0, length = value.length(); i < length; i++)
+        {
+            bits += HUFFMAN_CODE_LENGTHS[value.charAt(i) & 0xff];
+        }
+        return (int) ((bits + 7) >> 3);
+    }
+
+    static void huffmanEncode(String value, ByteArrayOutputStream out)
+    {
+        long current = 0;
+        int bits = 0;
+
+        for (int i = 0, length = value.length(); i < length; i++)
+        {
+            int symbol = value.charAt(i) & 0xff;
+            int codeLength = HUFFMAN_CODE_LENGTHS[symbol];
+            current = (current << codeLength) | HUFFMAN_CODES[symbol];
+            bits += codeLength;
+
+            while (bits >= 8)
+            {
+                bits -= 8;
+                out.write((int) (current >>> bits));
+            }
+        }
+
+        if (bits > 0)
+        {
+            // Pad with the most significant bits of EOS, which are all ones
+            current = (current << (8 - bits)) | (0xff >>> bits);
+            out.write((int) current);
+        }
+    }
+
+    static String huffmanDecode(byte[] buffer, int offset, int length) throws IOException
+    {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+
+        int node = 0;
+        int bitsSinceSymbol = 0;
+        boolean allOnes = true;
+
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            int b = buffer[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--)
+            {
+                int value = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[node * 2 + value];
+                bitsSinceSymbol++;
+                allOnes &= value == 1;
+
+                if (next < 0)
+                {
+                    sb.append((char) (-next - 1));
+                    node = 0;
+                    bitsSinceSymbol = 0;
+                    allOnes = true;
+                }
+                else if (next == 0)
+                {
+                    // Only EOS goes past the 256 symbols
+                    throw new IOException("HPACK: invalid Huffman code");
+                }
+                else
+                {
+                    node = next;
+                }
+            }
+        }
+
+        if (bitsSinceSymbol > 7 || !allOnes)
+        {
+            throw new IOException("HPACK: invalid Huffman padding");
+        }
+
+        return sb.toString();
+    }
+
+    private static void writeInteger(int value, int prefixBits, int firstByteFlags, ByteArrayOutputStream out)
+    {
+        int max = (1 << prefixBits) - 1;
+        if (value < max)
+        {
+            out.write(firstByteFlags | value);
+            return;
+        }
+
+        out.write(firstByteFlags | max);
+        value -= max;
+        while (value >= 0x80)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(String value, ByteArrayOutputStream out)
+    {
+        int huffmanLength = huffmanEncodedLength(value);
+        if (huffmanLength < value.length())
+        {
+            writeInteger(huffmanLength, 7, 0x80, out);
+            huffmanEncode(value, out);
+        }
+        else
+        {
+            writeInteger(value.length(), 7, 0, out);
+            for (int i = 0, length = value.length(); i < length; i++)
+            {
+                out.write(value.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * The dynamic table, newest entry first (HPACK index = static table length + 1 + position)
+     */
+    private static final class DynamicTable
+    {
+        private final ArrayList<String> mEntries = new ArrayList<>(); // name/value pairs, oldest first
+        private int mSize = 0;
+        private int mMaxSize;
+
+        DynamicTable(int maxSize)
+        {
+            this.mMaxSize = maxSize;
+        }
+
+        int length()
+        {
+            return mEntries.size() / 2;
+        }
+
+        String getName(int position)
+        {
+            return mEntries.get(mEntries.size() - 2 - position * 2);
+        }
+
+        String getValue(int position)
+        {
+            return mEntries.get(mEntries.size() - 1 - position * 2);
+        }
+
+        void add(String name, String value)
+        {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if (entrySize > mMaxSize)
+            {
+                // An entry larger than the table empties it
+                mEntries.clear();
+                mSize = 0;
+                return;
+            }
+
+            mSize += entrySize;
+            evict();
+            mEntries.add(name);
+            mEntries.add(value);
+        }
+
+        void setMaxSize(int maxSize)
+        {
+            mMaxSize = maxSize;
+            evict();
+        }
+
+        private void evict()
+        {
+            int remove = 0;
+            while (mSize > mMaxSize)
+            {
+                mSize -= mEntries.get(remove).length() + mEntries.get(remove + 1).length() + ENTRY_OVERHEAD;
+                remove += 2;
+            }
+            if (remove > 0)
+            {
+                mEntries.subList(0, remove).clear();
+            }
+        }
+    }
+
+    /**
+     * Encodes header blocks. Must be used in the order the blocks are sent.
+     */
+    static final class Encoder
+    {
+        private final DynamicTable mTable = new DynamicTable(4096);
+        private int mPendingMaxSize = -1;
+        private int mSmallestPendingMaxSize = Integer.MAX_VALUE;
+
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE. The change is signalled at the start of the next block.
+         */
+        void setMaxTableSize(int maxSize)
+        {
+            // Cap the table at the default size, a larger table costs memory for little gain
+            maxSize = Math.min(maxSize, 4096);
+            mPendingMaxSize = maxSize;
+            mSmallestPendingMaxSize = Math.min(mSmallestPendingMaxSize, maxSize);
+        }
+
+        /**
+         * @param names Header names, lower case
+         * @param values Header values
+         * @param sensitive For each header, whether it must never be indexed (i.e. credentials)
+         */
+        byte[] encode(List<String> names, List<String> values, List<Boolean> sensitive)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+            if (mPendingMaxSize > -1)
+            {
+                if (mSmallestPendingMaxSize < mPendingMaxSize)
+                {
+                    writeInteger(mSmallestPendingMaxSize, 5, 0x20, out);
+                }
+                writeInteger(mPendingMaxSize, 5, 0x20, out);
+                mTable.setMaxSize(mPendingMaxSize);
+                mPendingMaxSize = -1;
+                mSmallestPendingMaxSize = Integer.MAX_VALUE;
+            }
+
+            for (int i = 0, count = names.size(); i < count; i++)
+            {
+                encodeHeader(names.get(i), values.get(i), sensitive != null && sensitive.get(i), out);
+            }
+
+            return out.toByteArray();
+        }
+
+        private void encodeHeader(String name, String value, boolean sensitive, ByteArrayOutputStream out)
+        {
+            int nameIndex = 0;
+
+            for (int i = 0; i < STATIC_TABLE_LENGTH; i++)
+            {
+                if (STATIC_TABLE[i * 2].equals(name))
+                {
+                    if (!sensitive && STATIC_TABLE[i * 2 + 1].equals(value))
+                    {
+                        writeInteger(i + 1, 7, 0x80, out);
+                        return;
+                    }
+                    if (nameIndex == 0)
+                    {
+                        nameIndex = i + 1;
+                    }
+                }
+            }
+
+            for (int i = 0, length = mTable.length(); i < length; i++)
+            {
+                if (mTable.getName(i).equals(name))
+                {
+                    if (!sensitive && mTable.getValue(i).equals(value))
+                    {
+                        writeInteger(STATIC_TABLE_LENGTH + 1 + i, 7, 0x80, out);
+                        return;
+                    }
+                    if (nameIndex == 0)
+                    {
+                        nameIndex = STATIC_TABLE_LENGTH + 1 + i;
+                    }
+                }
+            }
+
+            if (sensitive)
+            {
+                // Literal never indexed
+                writeInteger(nameIndex, 4, 0x10, out);
+            }
+            else
+            {
+                // Literal with incremental indexing
+                writeInteger(nameIndex, 6, 0x40, out);
+                mTable.add(name, value);
+            }
+
+            if (nameIndex == 0)
+            {
+                writeString(name, out);
+            }
+            writeString(value, out);
+        }
+    }
+
+    /**
+     * Decodes header blocks. Must be used in the order the blocks are received.
+     */
+    static final class Decoder
+    {
+        private final int mMaxTableSize;
+        private final DynamicTable mTable;
+
+        private byte[] mBuffer;
+        private int mPosition;
+        private int mEnd;
+
+        /**
+         * @param maxTableSize The SETTINGS_HEADER_TABLE_SIZE that was advertised to the peer
+         */
+        Decoder(int maxTableSize)
+        {
+            this.mMaxTableSize = maxTableSize;
+            this.mTable = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block
+         * @param names Receives the header names
+         * @param values Receives the header values
+         */
+        void decode(byte[] buffer, int offset, int length, List<String> names, List<String> values) throws IOException
+        {
+            mBuffer = buffer;
+            mPosition = offset;
+            mEnd = offset + length;
+
+            try
+            {
+                while (mPosition < mEnd)
+                {
+                    int b = mBuffer[mPosition] & 0xff;
+
+                    if ((b & 0x80) != 0)
+                    {
+                        // Indexed header field
+                        int index = readInteger(7);
+                        names.add(getName(index));
+                        values.add(getValue(index));
+                    }
+                    else if ((b & 0x40) != 0)
+                    {
+                        // Literal with incremental indexing
+                        int index = readInteger(6);
+                        String name = index == 0 ? readString() : getName(index);
+                        String value = readString();
+                        mTable.add(name, value);
+                        names.add(name);
+                        values.add(value);
+                    }
+                    else if ((b & 0x20) != 0)
+                    {
+                        // Dynamic table size update
+                        int maxSize = readInteger(5);
+                        if (maxSize > mMaxTableSize)
+                        {
+                            throw new IOException("HPACK: table size update exceeds the maximum: " + maxSize);
+                        }
+                        mTable.setMaxSize(maxSize);
+                    }
+                    else
+                    {
+                        // Literal without indexing / never indexed
+                        int index = readInteger(4);
+                        names.add(index == 0 ? readString() : getName(index));
+                        values.add(readString());
+                    }
+                }
+            }
+            finally
+            {
+                mBuffer = null;
+            }
+        }
+
+        private String getName(int index) throws IOException
+        {
+            if (index > 0 && index <= STATIC_TABLE_LENGTH)
+            {
+                return STATIC_TABLE[(index - 1) * 2];
+            }
+            int position = index - STATIC_TABLE_LENGTH - 1;
+            if (position < 0 || position >= mTable.length())
+            {
+                throw new IOException("HPACK: invalid index " + index);
+            }
+            return mTable.getName(position);
+        }
+
+        private String getValue(int index) throws IOException
+        {
+            if (index > 0 && index <= STATIC_TABLE_LENGTH)
+            {
+                return STATIC_TABLE[(index - 1) * 2 + 1];
+            }
+            int position = index - STATIC_TABLE_LENGTH - 1;
+            if (position < 0 || position >= mTable.length())
+            {
+                throw new IOException("HPACK: invalid index " + index);
+            }
+            return mTable.getValue(position);
+        }
+
+        private int readInteger(int prefixBits) throws IOException
+        {
+            int max = (1 << prefixBits) - 1;
+            int value = mBuffer[mPosition++] & max;
+            if (value < max)
+            {
+                return value;
+            }
+
+            int shift = 0;
+            while (true)
+            {
+                if (mPosition >= mEnd)
+                {
+                    throw new IOException("HPACK: truncated integer");
+                }
+                int b = mBuffer[mPosition++] & 0xff;
+                if (shift > 21)
+                {
+                    throw new IOException("HPACK: integer overflow");
+                }
+                value += (b & 0x7f) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() throws IOException
+        {
+            if (mPosition >= mEnd)
+            {
+                throw new IOException("HPACK: truncated string");
+            }
+
+            boolean huffman = (mBuffer[mPosition] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length < 0 || length > mEnd - mPosition)
+            {
+                throw new IOException("HPACK: truncated string");
+            }
+
+            String value;
+            if (huffman)
+            {
+                value = huffmanDecode(mBuffer, mPosition, length);
+            }
+            else
+            {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++)
+                {
+                    chars[i] = (char) (mBuffer[mPosition + i] & 0xff);
+                }
+                value = new String(chars);
+            }
+
+            mPosition += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,614 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 wire format, for the transports that speak it themselves instead of through HttpURLConnection.
+ * Encodes request heads, and parses responses incrementally from whatever bytes are available,
+ * so the same parser serves both blocking sockets and non-blocking channels.
+ */
+final class Http1Codec
+{
+    private static final int MAX_HEADER_LINE_LENGTH = 65536;
+    private static final int MAX_HEADERS_SIZE = 262144;
+
+    private Http1Codec()
+    {
+    }
+
+    /**
+     * Encodes the request line and headers, including the terminating empty line.
+     * A Host header is added if missing.
+     * @param method The HTTP method
+     * @param url The request url. Only the host, port, path and query are used.
+     * @param headers The request headers
+     * @param contentLength The length of the body to declare, or -1 to not declare one (or if chunked)
+     * @param chunked Whether the body is sent with chunked transfer encoding
+     * @return The encoded head
+     */
+    static byte[] encodeRequestHead(String method, URL url, Map<String, List<String>> headers, long contentLength, boolean chunked)
+    {
+        StringBuilder sb = new StringBuilder(256);
+
+        String target = url.getFile();
+        if (target == null || target.length() == 0)
+        {
+            target = "/";
+        }
+        sb.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+
+        boolean hasHost = false;
+        for (Map.Entry<String, List<String>> entry : headers.entrySet())
+        {
+            String key = entry.getKey();
+            if (key == null) continue;
+
+            if (key.equalsIgnoreCase("Host"))
+            {
+                hasHost = true;
+            }
+            else if (key.equalsIgnoreCase("Content-Length") || key.equalsIgnoreCase("Transfer-Encoding"))
+            {
+                // Framing is decided here
+                continue;
+            }
+
+            for (String value : entry.getValue())
+            {
+                appendHeader(sb, key, value);
+            }
+        }
+
+        if (!hasHost)
+        {
+            int port = url.getPort();
+            appendHeader(sb, "Host", port == -1 || port == url.getDefaultPort() ? url.getHost() : url.getHost() + ":" + port);
+        }
+
+        if (chunked)
+        {
+            appendHeader(sb, "Transfer-Encoding", "chunked");
+        }
+        else if (contentLength > -1)
+        {
+            appendHeader(sb, "Content-Length", Long.toString(contentLength));
+        }
+
+        sb.append("\r\n");
+
+        byte[] bytes = new byte[sb.length()];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) sb.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static void appendHeader(StringBuilder sb, String key, String value)
+    {
+        if (value == null)
+        {
+            value = "";
+        }
+        if (value.indexOf('\r') > -1 || value.indexOf('\n') > -1)
+        {
+            throw new IllegalArgumentException("Illegal character in header " + key);
+        }
+        sb.append(key).append(": ").append(value).append("\r\n");
+    }
+
+    /**
+     * @return Whether a method is safe to replay when a kept-alive connection turns out to be closed
+     */
+    static boolean isIdempotentMethod(String method)
+    {
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") ||
+                method.equals("PUT") || method.equals("DELETE") || method.equals("TRACE");
+    }
+
+    /**
+     * Parses one response at a time, from bytes fed to it in any fragmentation.
+     * It consumes exactly the bytes of the response, so bytes that follow it (i.e. a pipelined response) are left in the buffer.
+     */
+    static final class ResponseParser
+    {
+        private static final int STATE_STATUS_LINE = 0;
+        private static final int STATE_HEADERS = 1;
+        private static final int STATE_BODY_FIXED = 2;
+        private static final int STATE_CHUNK_SIZE = 3;
+        private static final int STATE_CHUNK_DATA = 4;
+        private static final int STATE_CHUNK_DATA_END = 5;
+        private static final int STATE_TRAILERS = 6;
+        private static final int STATE_BODY_UNTIL_CLOSE = 7;
+        private static final int STATE_DONE = 8;
+
+        private boolean mIsHeadRequest;
+        private OutputStream mBodySink;
+
+        private int mState;
+        private byte[] mLine = new byte[256];
+        private int mLineLength;
+        private int mHeadersSize;
+        private long mRemaining;
+        private boolean mReceivedBytes;
+
+        private boolean mHttp10;
+        private int mStatusCode;
+        private String mStatusMessage;
+        private List<String> mHeaderKeys;
+        private List<String> mHeaderValues;
+        private boolean mKeepAlive;
+
+        /**
+         * @param isHeadRequest Whether the request was a HEAD request, which has no response body
+         * @param bodySink Where the response body is written to
+         */
+        ResponseParser(boolean isHeadRequest, OutputStream bodySink)
+        {
+            reset(isHeadRequest, bodySink);
+        }
+
+        /**
+         * Prepares for parsing the next response
+         */
+        void reset(boolean isHeadRequest, OutputStream bodySink)
+        {
+            this.mIsHeadRequest = isHeadRequest;
+            this.mBodySink = bodySink;
+            mState = STATE_STATUS_LINE;
+            mLineLength = 0;
+            mHeadersSize = 0;
+            mRemaining = 0;
+            mReceivedBytes = false;
+            mHttp10 = false;
+            mStatusCode = -1;
+            mStatusMessage = null;
+            mHeaderKeys = new ArrayList<>();
+            mHeaderValues = new ArrayList<>();
+            mKeepAlive = false;
+        }
+
+        /**
+         * Consumes bytes of the response, up to its end
+         * @param input The bytes received. Its position is advanced past the consumed bytes.
+         * @return Whether the response is complete
+         * @throws IOException On malformed responses, or errors writing to the body sink
+         */
+        boolean feed(ByteBuffer input) throws IOException
+        {
+            if (input.hasRemaining() && mState != STATE_DONE)
+            {
+                mReceivedBytes = true;
+            }
+
+            while (mState != STATE_DONE && input.hasRemaining())
+            {
+                switch (mState)
+                {
+                    case STATE_STATUS_LINE:
+                    {
+                        String line = readLine(input);
+                        if (line == null) break;
+                        if (line.length() == 0) break; // Tolerate empty lines before the status line
+                        parseStatusLine(line);
+                        mState = STATE_HEADERS;
+                        break;
+                    }
+
+                    case STATE_HEADERS:
+                    {
+                        String line = readLine(input);
+                        if (line == null) break;
+                        if (line.length() == 0)
+                        {
+                            onHeadersComplete();
+                        }
+                        else
+                        {
+                            parseHeaderLine(line);
+                        }
+                        break;
+                    }
+
+                    case STATE_BODY_FIXED:
+                    {
+                        int count = (int) Math.min(mRemaining, input.remaining());
+                        writeBody(input, count);
+                        mRemaining -= count;
+                        if (mRemaining == 0)
+                        {
+                            mState = STATE_DONE;
+                        }
+                        break;
+                    }
+
+                    case STATE_CHUNK_SIZE:
+                    {
+                        String line = readLine(input);
+                        if (line == null) break;
+                        int extension = line.indexOf(';');
+                        if (extension > -1)
+                        {
+                            line = line.substring(0, extension);
+                        }
+                        try
+                        {
+                            mRemaining = Long.parseLong(line.trim(), 16);
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw new ProtocolException("Invalid chunk size: " + line);
+                        }
+                        if (mRemaining < 0)
+                        {
+                            throw new ProtocolException("Invalid chunk size: " + line);
+                        }
+                        mState = mRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+                        break;
+                    }
+
+                    case STATE_CHUNK_DATA:
+                    {
+                        int count = (int) Math.min(mRemaining, input.remaining());
+                        writeBody(input, count);
+                        mRemaining -= count;
+                        if (mRemaining == 0)
+                        {
+                            mState = STATE_CHUNK_DATA_END;
+                        }
+                        break;
+                    }
+
+                    case STATE_CHUNK_DATA_END:
+                    {
+                        String line = readLine(input);
+                        if (line == null) break;
+                        if (line.length() != 0)
+                        {
+                            throw new ProtocolException("Expected CRLF after chunk data");
+                        }
+                        mState = STATE_CHUNK_SIZE;
+                        break;
+                    }
+
+                    case STATE_TRAILERS:
+                    {
+                        String line = readLine(input);
+                        if (line == null) break;
+                        if (line.length() == 0)
+                        {
+                            mState = STATE_DONE;
+                        }
+                        break;
+                    }
+
+                    case STATE_BODY_UNTIL_CLOSE:
+                    {
+                        writeBody(input, input.remaining());
+                        break;
+                    }
+                }
+            }
+
+            return mState == STATE_DONE;
+        }
+
+        /**
+         * Signals that the connection was closed by the server
+         * @return Whether the response is complete
+         * @throws IOException If the response was cut short
+         */
+        boolean endOfStream() throws IOException
+        {
+            if (mState == STATE_BODY_UNTIL_CLOSE)
+            {
+                mState = STATE_DONE;
+            }
+            if (mState != STATE_DONE)
+            {
+                throw new IOException("Unexpected end of stream");
+            }
+            return true;
+        }
+
+        boolean isComplete()
+        {
+            return mState == STATE_DONE;
+        }
+
+        /**
+         * @return Whether the status line and headers were parsed
+         */
+        boolean hasHeaders()
+        {
+            return mState > STATE_HEADERS;
+        }
+
+        /**
+         * @return Whether any byte of the response was received
+         */
+        boolean hasReceivedBytes()
+        {
+            return mReceivedBytes;
+        }
+
+        int getStatusCode()
+        {
+            return mStatusCode;
+        }
+
+        String getStatusMessage()
+        {
+            return mStatusMessage;
+        }
+
+        List<String> getHeaderKeys()
+        {
+            return mHeaderKeys;
+        }
+
+        List<String> getHeaderValues()
+        {
+            return mHeaderValues;
+        }
+
+        /**
+         * @return The last value of a header, or null
+         */
+        String getHeader(String name)
+        {
+            for (int i = mHeaderKeys.size() - 1; i >= 0; i--)
+            {
+                if (name.equalsIgnoreCase(mHeaderKeys.get(i)))
+                {
+                    return mHeaderValues.get(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return Whether the connection may be reused after this response
+         */
+        boolean isKeepAlive()
+        {
+            return mKeepAlive;
+        }
+
+        /**
+         * @return Whether the response is HTTP/1.1 or later (only those may be pipelined)
+         */
+        boolean isHttp11()
+        {
+            return hasHeaders() && !mHttp10;
+        }
+
+        /**
+         * Redirects the rest of the body, i.e. to discard the response of a request that was cancelled
+         */
+        void setBodySink(OutputStream bodySink)
+        {
+            this.mBodySink = bodySink;
+        }
+
+        boolean isHeadRequest()
+        {
+            return mIsHeadRequest;
+        }
+
+        OutputStream getBodySink()
+        {
+            return mBodySink;
+        }
+
+        private void writeBody(ByteBuffer input, int count) throws IOException
+        {
+            if (count == 0) return;
+
+            if (input.hasArray())
+            {
+                mBodySink.write(input.array(), input.arrayOffset() + input.position(), count);
+                input.position(input.position() + count);
+            }
+            else
+            {
+                byte[] bytes = new byte[Math.min(count, 8192)];
+                while (count > 0)
+                {
+                    int length = Math.min(count, bytes.length);
+                    input.get(bytes, 0, length);
+                    mBodySink.write(bytes, 0, length);
+                    count -= length;
+                }
+            }
+        }
+
+        /**
+         * Reads a line terminated by LF (optionally preceded by CR)
+         * @return The line without the terminator, or null if the line is not complete yet
+         */
+        private String readLine(ByteBuffer input) throws IOException
+        {
+            while (input.hasRemaining())
+            {
+                byte b = input.get();
+                if (mState <= STATE_HEADERS && ++mHeadersSize > MAX_HEADERS_SIZE)
+                {
+                    throw new ProtocolException("Response headers are too large");
+                }
+
+                if (b == '\n')
+                {
+                    int length = mLineLength;
+                    if (length > 0 && mLine[length - 1] == '\r')
+                    {
+                        length--;
+                    }
+                    mLineLength = 0;
+
+                    char[] chars = new char[length];
+                    for (int i = 0; i < length; i++)
+                    {
+                        chars[i] = (char) (mLine[i] & 0xff);
+                    }
+                    return new String(chars);
+                }
+
+                if (mLineLength == mLine.length)
+                {
+                    if (mLineLength >= MAX_HEADER_LINE_LENGTH)
+                    {
+                        throw new ProtocolException("Response line is too long");
+                    }
+                    byte[] line = new byte[mLine.length * 2];
+                    System.arraycopy(mLine, 0, line, 0, mLineLength);
+                    mLine = line;
+                }
+                mLine[mLineLength++] = b;
+            }
+            return null;
+        }
+
+        private void parseStatusLine(String line) throws IOException
+        {
+            // HTTP/1.1 200 OK
+            if (!line.startsWith("HTTP/") || line.length() < 12 || line.charAt(8) != ' ')
+            {
+                throw new ProtocolException("Unexpected status line: " + line);
+            }
+
+            mHttp10 = line.startsWith("HTTP/1.0");
+
+            try
+            {
+                mStatusCode = Integer.parseInt(line.substring(9, 12));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new ProtocolException("Unexpected status line: " + line);
+            }
+
+            mStatusMessage = line.length() > 13 ? line.substring(13) : "";
+        }
+
+        private void parseHeaderLine(String line) throws IOException
+        {
+            char first = line.charAt(0);
+            if ((first == ' ' || first == '\t') && !mHeaderValues.isEmpty())
+            {
+                // Obsolete line folding
+                int last = mHeaderValues.size() - 1;
+                mHeaderValues.set(last, mHeaderValues.get(last) + " " + line.trim());
+                return;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon < 1)
+            {
+                throw new ProtocolException("Unexpected header line: " + line);
+            }
+
+            mHeaderKeys.add(line.substring(0, colon).trim());
+            mHeaderValues.add(line.substring(colon + 1).trim());
+        }
+
+        private void onHeadersComplete() throws IOException
+        {
+            if (mStatusCode >= 100 && mStatusCode < 200 && mStatusCode != 101)
+            {
+                // Interim response (i.e. 100 Continue), the actual response follows
+                mState = STATE_STATUS_LINE;
+                mHeadersSize = 0;
+                mHeaderKeys = new ArrayList<>();
+                mHeaderValues = new ArrayList<>();
+                return;
+            }
+
+            String connection = getHeader("Connection");
+            if (connection != null)
+            {
+                connection = connection.toLowerCase(Locale.ENGLISH);
+            }
+            if (mHttp10)
+            {
+                mKeepAlive = connection != null && connection.contains("keep-alive");
+            }
+            else
+            {
+                mKeepAlive = connection == null || !connection.contains("close");
+            }
+
+            if (mIsHeadRequest || mStatusCode == 204 || mStatusCode == 304 || mStatusCode == 101)
+            {
+                if (mStatusCode == 101)
+                {
+                    mKeepAlive = false;
+                }
+                mState = STATE_DONE;
+                return;
+            }
+
+            String transferEncoding = getHeader("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked"))
+            {
+                mState = STATE_CHUNK_SIZE;
+                return;
+            }
+
+            String contentLength = getHeader("Content-Length");
+            if (contentLength != null)
+            {
+                try
+                {
+                    mRemaining = Long.parseLong(contentLength.trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new ProtocolException("Invalid Content-Length: " + contentLength);
+                }
+                if (mRemaining < 0)
+                {
+                    throw new ProtocolException("Invalid Content-Length: " + contentLength);
+                }
+                mState = mRemaining == 0 ? STATE_DONE : STATE_BODY_FIXED;
+                return;
+            }
+
+            mKeepAlive = false;
+            mState = STATE_BODY_UNTIL_CLOSE;
+        }
+    }
+}
@@ -0,0 +1,1182 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A single HTTP/2 connection (RFC 7540), multiplexing any number of concurrent streams.
+ * Frames are read by a dedicated reader thread, and written by the threads that own the streams.
+ *
+ * Locking: state is guarded by the connection itself, and frame writing by mWriteLock.
+ * mWriteLock may be taken while not holding the connection lock, never the other way around.
+ */
+final class Http2Connection
+{
+    private static final byte[] CLIENT_PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int ERROR_NO_ERROR = 0x0;
+    static final int ERROR_PROTOCOL_ERROR = 0x1;
+    static final int ERROR_FLOW_CONTROL_ERROR = 0x3;
+    static final int ERROR_FRAME_SIZE_ERROR = 0x6;
+    static final int ERROR_REFUSED_STREAM = 0x7;
+    static final int ERROR_CANCEL = 0x8;
+    static final int ERROR_COMPRESSION_ERROR = 0x9;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    /**
+     * The receive window of each stream. Bounds the memory a stream that is not being read can take.
+     */
+    private static final int STREAM_RECEIVE_WINDOW = 1 << 20;
+
+    /**
+     * The receive window of the connection. It is replenished as data arrives,
+     * so a stream that is not being read does not hold up the others.
+     */
+    private static final int CONNECTION_RECEIVE_WINDOW = 16 << 20;
+
+    private final Socket mSocket;
+    private final DataInputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final Object mWriteLock = new Object();
+    private final Hpack.Encoder mEncoder = new Hpack.Encoder(); // Guarded by mWriteLock
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder(HEADER_TABLE_SIZE); // Used by the reader thread only
+
+    private final HashMap<Integer, Stream> mStreams = new HashMap<>();
+    private int mNextStreamId = 1;
+    private long mSendWindow = DEFAULT_WINDOW_SIZE;
+    private int mPeerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int mPeerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int mPeerMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int mReservedStreams = 0;
+    private boolean mGoingAway = false;
+    private IOException mFailure = null;
+    private long mIdleSince;
+
+    // Reader thread state
+    private int mConnectionUnacknowledged = 0;
+    private int mHeaderBlockStreamId = 0;
+    private boolean mHeaderBlockEndStream = false;
+    private final ByteArrayOutputStream mHeaderBlock = new ByteArrayOutputStream();
+
+    /**
+     * Starts HTTP/2 over an already connected socket (after ALPN negotiated h2, or with prior knowledge)
+     */
+    Http2Connection(Socket socket) throws IOException
+    {
+        this.mSocket = socket;
+        this.mInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16384));
+        this.mOutputStream = new BufferedOutputStream(socket.getOutputStream(), 16384 + 9);
+        this.mIdleSince = System.nanoTime();
+
+        synchronized (mWriteLock)
+        {
+            mOutputStream.write(CLIENT_PREFACE);
+
+            writeFrameHeader(18, TYPE_SETTINGS, 0, 0);
+            writeSetting(SETTINGS_ENABLE_PUSH, 0);
+            writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, STREAM_RECEIVE_WINDOW);
+            writeSetting(SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+
+            writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, 0);
+            writeInt(CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW_SIZE);
+
+            mOutputStream.flush();
+        }
+
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readLoop();
+            }
+        }, "Http2Connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return Whether new streams can be opened on this connection
+     */
+    synchronized boolean isUsable()
+    {
+        return mFailure == null && !mGoingAway && mNextStreamId < Integer.MAX_VALUE - 2;
+    }
+
+    /**
+     * Stops the connection from taking new streams, if it had none for at least the specified time.
+     * Checked under the same lock as newStream(), so no stream can be opened between the check and the shutdown:
+     * a request that comes later gets a {@link RefusedStreamException}, and may retry on another connection.
+     * @param idleTime In nanoseconds
+     * @return Whether the connection was idle, and should now be shut down
+     */
+    synchronized boolean goAwayIfIdle(long idleTime)
+    {
+        if (!mStreams.isEmpty() || mReservedStreams > 0 || System.nanoTime() - mIdleSince < idleTime)
+        {
+            return false;
+        }
+        mGoingAway = true;
+        return true;
+    }
+
+    /**
+     * Opens a stream by sending the request headers
+     * @param names Header names, including the request pseudo-headers, in lower case
+     * @param values Header values
+     * @param sensitive For each header, whether it must never be indexed
+     * @param endStream Whether the request has no body
+     * @param timeout Timeout in milliseconds for waiting for a free stream slot, 0 for none
+     * @return The new stream
+     * @throws RefusedStreamException If the connection can't take new streams
+     */
+    Stream newStream(List<String> names, List<String> values, List<Boolean> sensitive, boolean endStream, long timeout) throws IOException
+    {
+        synchronized (this)
+        {
+            // Reserve a slot, so concurrent callers don't exceed the peer's limit while waiting for the write lock
+            long deadline = timeout > 0 ? System.nanoTime() / 1000000 + timeout : 0;
+            while (mFailure == null && !mGoingAway && mStreams.size() + mReservedStreams >= mPeerMaxConcurrentStreams)
+            {
+                waitUntil(deadline);
+            }
+            mReservedStreams++;
+        }
+
+        synchronized (mWriteLock)
+        {
+            Stream stream;
+            synchronized (this)
+            {
+                mReservedStreams--;
+
+                if (mFailure != null || mGoingAway || mNextStreamId >= Integer.MAX_VALUE - 2)
+                {
+                    throw new RefusedStreamException("Connection is not accepting new streams");
+                }
+
+                stream = new Stream(mNextStreamId, mPeerInitialWindowSize);
+                mNextStreamId += 2;
+                mStreams.put(stream.mId, stream);
+                stream.mLocalClosed = endStream;
+            }
+
+            byte[] block = mEncoder.encode(names, values, sensitive);
+
+            try
+            {
+                int maxFrameSize;
+                synchronized (this)
+                {
+                    maxFrameSize = mPeerMaxFrameSize;
+                }
+
+                int offset = 0;
+                boolean first = true;
+                do
+                {
+                    int length = Math.min(block.length - offset, maxFrameSize);
+                    boolean last = offset + length == block.length;
+                    int flags = last ? FLAG_END_HEADERS : 0;
+                    if (first && endStream)
+                    {
+                        flags |= FLAG_END_STREAM;
+                    }
+                    writeFrameHeader(length, first ? TYPE_HEADERS : TYPE_CONTINUATION, flags, stream.mId);
+                    mOutputStream.write(block, offset, length);
+                    offset += length;
+                    first = false;
+                }
+                while (offset < block.length);
+
+                mOutputStream.flush();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+                throw e;
+            }
+
+            return stream;
+        }
+    }
+
+    /**
+     * Closes the connection, failing any active streams
+     */
+    void shutdown()
+    {
+        fail(new IOException("Connection was shut down"));
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException
+    {
+        mOutputStream.write(length >>> 16);
+        mOutputStream.write(length >>> 8);
+        mOutputStream.write(length);
+        mOutputStream.write(type);
+        mOutputStream.write(flags);
+        writeInt(streamId & 0x7fffffff);
+    }
+
+    private void writeInt(int value) throws IOException
+    {
+        mOutputStream.write(value >>> 24);
+        mOutputStream.write(value >>> 16);
+        mOutputStream.write(value >>> 8);
+        mOutputStream.write(value);
+    }
+
+    private void writeSetting(int id, int value) throws IOException
+    {
+        mOutputStream.write(id >>> 8);
+        mOutputStream.write(id);
+        writeInt(value);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment)
+    {
+        try
+        {
+            synchronized (mWriteLock)
+            {
+                writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, streamId);
+                writeInt(increment);
+                mOutputStream.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void writeRstStream(int streamId, int errorCode)
+    {
+        try
+        {
+            synchronized (mWriteLock)
+            {
+                writeFrameHeader(4, TYPE_RST_STREAM, 0, streamId);
+                writeInt(errorCode);
+                mOutputStream.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void writeGoAway(int errorCode)
+    {
+        try
+        {
+            synchronized (mWriteLock)
+            {
+                writeFrameHeader(8, TYPE_GOAWAY, 0, 0);
+                writeInt(0); // Last stream id, we never accept streams from the server
+                writeInt(errorCode);
+                mOutputStream.flush();
+            }
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    private void waitUntil(long deadline) throws IOException
+    {
+        try
+        {
+            if (deadline == 0)
+            {
+                wait();
+                return;
+            }
+
+            long remaining = deadline - System.nanoTime() / 1000000;
+            if (remaining <= 0)
+            {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            wait(remaining);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void removeStream(Stream stream)
+    {
+        boolean close = false;
+        synchronized (this)
+        {
+            if (mStreams.remove(stream.mId) != null)
+            {
+                if (mStreams.isEmpty())
+                {
+                    mIdleSince = System.nanoTime();
+                    // Nothing else can use it once it's going away or out of stream ids
+                    close = mGoingAway || mNextStreamId >= Integer.MAX_VALUE - 2;
+                }
+                notifyAll();
+            }
+        }
+
+        if (close)
+        {
+            fail(new RefusedStreamException("Connection was closed by the server (GOAWAY)"));
+        }
+    }
+
+    /**
+     * Fails the connection and all of its streams, and closes the socket
+     */
+    private void fail(IOException error)
+    {
+        synchronized (this)
+        {
+            if (mFailure != null) return;
+            mFailure = error;
+
+            for (Stream stream : mStreams.values())
+            {
+                if (stream.mError == null)
+                {
+                    stream.mError = error;
+                }
+            }
+            mStreams.clear();
+            notifyAll();
+        }
+
+        try
+        {
+            mSocket.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    private void readLoop()
+    {
+        try
+        {
+            byte[] header = new byte[9];
+            byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+
+            while (true)
+            {
+                mInputStream.readFully(header);
+
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = (((header[5] & 0xff) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff)) & 0x7fffffff;
+
+                if (length > DEFAULT_MAX_FRAME_SIZE)
+                {
+                    throw new Http2ProtocolException(ERROR_FRAME_SIZE_ERROR, "Frame too large: " + length);
+                }
+                mInputStream.readFully(payload, 0, length);
+
+                if (mHeaderBlockStreamId != 0 && type != TYPE_CONTINUATION)
+                {
+                    throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "Expected CONTINUATION frame");
+                }
+
+                switch (type)
+                {
+                    case TYPE_DATA:
+                        onData(streamId, flags, payload, length);
+                        break;
+                    case TYPE_HEADERS:
+                        onHeaders(streamId, flags, payload, length);
+                        break;
+                    case TYPE_CONTINUATION:
+                        onContinuation(streamId, flags, payload, length);
+                        break;
+                    case TYPE_RST_STREAM:
+                        onRstStream(streamId, payload, length);
+                        break;
+                    case TYPE_SETTINGS:
+                        onSettings(streamId, flags, payload, length);
+                        break;
+                    case TYPE_PING:
+                        onPing(streamId, flags, payload, length);
+                        break;
+                    case TYPE_GOAWAY:
+                        onGoAway(payload, length);
+                        break;
+                    case TYPE_WINDOW_UPDATE:
+                        onWindowUpdate(streamId, payload, length);
+                        break;
+                    case TYPE_PUSH_PROMISE:
+                        throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "PUSH_PROMISE with push disabled");
+                    case TYPE_PRIORITY:
+                    default:
+                        // Ignored
+                        break;
+                }
+            }
+        }
+        catch (Http2ProtocolException e)
+        {
+            writeGoAway(e.mErrorCode);
+            fail(e);
+        }
+        catch (EOFException e)
+        {
+            fail(new IOException("Connection was closed by the server"));
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return The length of the padding, after validating it
+     */
+    private static int readPadding(int flags, byte[] payload, int length) throws IOException
+    {
+        if ((flags & FLAG_PADDED) == 0) return 0;
+
+        if (length < 1 || (payload[0] & 0xff) >= length)
+        {
+            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "Invalid padding");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload, int length) throws IOException
+    {
+        int padding = readPadding(flags, payload, length);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int dataLength = length - offset - padding;
+
+        // Flow control accounts for the whole frame, padding included
+        mConnectionUnacknowledged += length;
+        if (mConnectionUnacknowledged >= CONNECTION_RECEIVE_WINDOW / 2)
+        {
+            writeWindowUpdate(0, mConnectionUnacknowledged);
+            mConnectionUnacknowledged = 0;
+        }
+
+        Stream stream;
+        synchronized (this)
+        {
+            stream = mStreams.get(streamId);
+
+            if (stream != null)
+            {
+                if (stream.mBuffered + dataLength > STREAM_RECEIVE_WINDOW)
+                {
+                    stream.mError = new IOException("Stream flow control window exceeded");
+                }
+                else if (dataLength > 0)
+                {
+                    byte[] data = new byte[dataLength];
+                    System.arraycopy(payload, offset, data, 0, dataLength);
+                    stream.mReceived.add(data);
+                    stream.mBuffered += dataLength;
+                }
+
+                // Padding is consumed right away
+                stream.mUnacknowledged += length - dataLength;
+
+                if ((flags & FLAG_END_STREAM) != 0)
+                {
+                    stream.mRemoteClosed = true;
+                }
+                notifyAll();
+            }
+        }
+
+        if (stream != null)
+        {
+            if (stream.mError != null)
+            {
+                writeRstStream(streamId, ERROR_FLOW_CONTROL_ERROR);
+                removeStream(stream);
+            }
+            else if (stream.mRemoteClosed && stream.mLocalClosed)
+            {
+                removeStream(stream);
+            }
+        }
+        else if (streamId == 0 || streamId >= getNextStreamId())
+        {
+            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "DATA on an idle stream");
+        }
+    }
+
+    private synchronized int getNextStreamId()
+    {
+        return mNextStreamId;
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload, int length) throws IOException
+    {
+        if (streamId == 0)
+        {
+            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+
+        int padding = readPadding(flags, payload, length);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0)
+        {
+            offset += 5;
+        }
+        if (offset + padding > length)
+        {
+            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "Invalid HEADERS frame");
+        }
+
+        mHeaderBlock.reset();
+        mHeaderBlock.write(payload, offset, length - offset - padding);
+        mHeaderBlockStreamId = streamId;
+        mHeaderBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+
+        if ((flags & FLAG_END_HEADERS) != 0)
+        {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload, int length) throws IOException
+    {
+        if (streamId == 0 || streamId != mHeaderBlockStreamId)
+        {
+            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+        }
+
+        mHeaderBlock.write(payload, 0, length);
+
+        if ((flags & FLAG_END_HEADERS) != 0)
+        {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException
+    {
+        int streamId = mHeaderBlockStreamId;
+        mHeaderBlockStreamId = 0;
+
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> values = new ArrayList<>();
+        byte[] block = mHeaderBlock.toByteArray();
+        try
+        {
+            // Always decode, to keep the dynamic table in sync
+            mDecoder.decode(block, 0, block.length, names, values);
+        }
+        catch (IOException e)
+        {
+            throw new Http2ProtocolException(ERROR_COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Stream stream;
+        synchronized (this)
+        {
+            stream = mStreams.get(streamId);
+            if (stream == null) return;
+
+            if (stream.mStatusCode == -1)
+            {
+                int statusCode = -1;
+                ArrayList<String> headerNames = new ArrayList<>(names.size());
+                ArrayList<String> headerValues = new ArrayList<>(names.size());
+                for (int i = 0; i < names.size(); i++)
+                {
+                    String name = names.get(i);
+                    if (name.equals(":status"))
+                    {
+                        try
+                        {
+                            statusCode = Integer.parseInt(values.get(i));
+                        }
+                        catch (NumberFormatException ignored)
+                        {
+                        }
+                    }
+                    else if (!name.startsWith(":"))
+                    {
+                        headerNames.add(name);
+                        headerValues.add(values.get(i));
+                    }
+                }
+
+                if (statusCode == -1)
+                {
+                    stream.mError = new ProtocolException("Response without a valid :status");
+                }
+                else if (statusCode >= 100 && statusCode < 200)
+                {
+                    // Interim response, the actual response follows
+                    return;
+                }
+                else
+                {
+                    stream.mStatusCode = statusCode;
+                    stream.mHeaderNames = headerNames;
+                    stream.mHeaderValues = headerValues;
+                }
+            }
+            // Otherwise these are trailers, which are not exposed
+
+            if (mHeaderBlockEndStream)
+            {
+                stream.mRemoteClosed = true;
+            }
+            notifyAll();
+        }
+
+        if (stream.mError != null)
+        {
+            writeRstStream(streamId, ERROR_PROTOCOL_ERROR);
+            removeStream(stream);
+        }
+        else if (stream.mRemoteClosed && stream.mLocalClosed)
+        {
+            removeStream(stream);
+        }
+    }
+
+    private void onRstStream(int streamId, byte[] payload, int length) throws IOException
+    {
+        if (length != 4 || streamId == 0)
+        {
+            throw new Http2ProtocolException(ERROR_FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        }
+        int errorCode = readInt(payload, 0);
+
+        Stream stream;
+        synchronized (this)
+        {
+            stream = mStreams.get(streamId);
+            if (stream == null) return;
+
+            if (errorCode == ERROR_REFUSED_STREAM)
+            {
+                stream.mError = new RefusedStreamException("Stream was refused by the server");
+            }
+            else if (!(stream.mRemoteClosed && errorCode == ERROR_NO_ERROR))
+            {
+                stream.mError = new IOException("Stream was reset by the server, error code " + errorCode);
+            }
+            stream.mRemoteClosed = true;
+            notifyAll();
+        }
+
+        removeStream(stream);
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload, int length) throws IOException
+    {
+        if (streamId != 0)
+        {
+            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) return;
+        if (length % 6 != 0)
+        {
+            throw new Http2ProtocolException(ERROR_FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+
+        int headerTableSize = -1;
+
+        synchronized (this)
+        {
+            for (int offset = 0; offset < length; offset += 6)
+            {
+                int id = ((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff);
+                int value = readInt(payload, offset + 2);
+
+                switch (id)
+                {
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                        headerTableSize = value;
+                        break;
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        mPeerMaxConcurrentStreams = value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0)
+                        {
+                            throw new Http2ProtocolException(ERROR_FLOW_CONTROL_ERROR, "Invalid initial window size");
+                        }
+                        int delta = value - mPeerInitialWindowSize;
+                        mPeerInitialWindowSize = value;
+                        for (Stream stream : mStreams.values())
+                        {
+                            stream.mSendWindow += delta;
+                        }
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        if (value < DEFAULT_MAX_FRAME_SIZE || value > 16777215)
+                        {
+                            throw new Http2ProtocolException(ERROR_PROTOCOL_ERROR, "Invalid max frame size");
+                        }
+                        mPeerMaxFrameSize = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized (mWriteLock)
+        {
+            if (headerTableSize > -1)
+            {
+                mEncoder.setMaxTableSize(headerTableSize);
+            }
+
+            writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+            mOutputStream.flush();
+        }
+    }
+
+    private void onPing(int streamId, int flags, byte[] payload, int length) throws IOException
+    {
+        if (streamId != 0 || length != 8)
+        {
+            throw new Http2ProtocolException(ERROR_FRAME_SIZE_ERROR, "Invalid PING frame");
+        }
+        if ((flags & FLAG_ACK) != 0) return;
+
+        synchronized (mWriteLock)
+        {
+            writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+            mOutputStream.write(payload, 0, 8);
+            mOutputStream.flush();
+        }
+    }
+
+    private void onGoAway(byte[] payload, int length) throws IOException
+    {
+        if (length < 8)
+        {
+            throw new Http2ProtocolException(ERROR_FRAME_SIZE_ERROR, "Invalid GOAWAY frame");
+        }
+        int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+
+        boolean close;
+        synchronized (this)
+        {
+            mGoingAway = true;
+
+            // Streams after the last one were not processed, and are safe to retry on another connection
+            ArrayList<Stream> refused = new ArrayList<>();
+            for (Stream stream : mStreams.values())
+            {
+                if (stream.mId > lastStreamId)
+                {
+                    refused.add(stream);
+                }
+            }
+            for (Stream stream : refused)
+            {
+                stream.mError = new RefusedStreamException("Stream was refused by the server (GOAWAY)");
+                mStreams.remove(stream.mId);
+            }
+
+            close = mStreams.isEmpty();
+            notifyAll();
+        }
+
+        if (close)
+        {
+            fail(new RefusedStreamException("Connection was closed by the server (GOAWAY)"));
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload, int length) throws IOException
+    {
+        if (length != 4)
+        {
+            throw new Http2ProtocolException(ERROR_FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+
+        synchronized (this)
+        {
+            if (streamId == 0)
+            {
+                mSendWindow += increment;
+            }
+            else
+            {
+                Stream stream = mStreams.get(streamId);
+                if (stream == null) return;
+                stream.mSendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset)
+    {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    /**
+     * A request/response exchange on the connection
+     */
+    final class Stream
+    {
+        final int mId;
+
+        // Guarded by the connection
+        private long mSendWindow;
+        private boolean mLocalClosed = false;
+        private boolean mRemoteClosed = false;
+        private IOException mError = null;
+        private int mStatusCode = -1;
+        private List<String> mHeaderNames = null;
+        private List<String> mHeaderValues = null;
+        private final ArrayDeque<byte[]> mReceived = new ArrayDeque<>();
+        private int mReceivedOffset = 0;
+        private int mBuffered = 0;
+        private int mUnacknowledged = 0;
+
+        private Stream(int id, int sendWindow)
+        {
+            this.mId = id;
+            this.mSendWindow = sendWindow;
+        }
+
+        /**
+         * Sends request body data, waiting for flow control windows as needed
+         * @param endStream Whether this is the end of the body
+         * @param timeout Timeout in milliseconds for waiting on flow control, 0 for none
+         */
+        void writeData(byte[] buffer, int offset, int length, boolean endStream, long timeout) throws IOException
+        {
+            do
+            {
+                int chunk;
+                synchronized (Http2Connection.this)
+                {
+                    long deadline = timeout > 0 ? System.nanoTime() / 1000000 + timeout : 0;
+                    while (length > 0 && (mSendWindow <= 0 || Http2Connection.this.mSendWindow <= 0))
+                    {
+                        checkError();
+                        waitUntil(deadline);
+                    }
+                    checkError();
+
+                    chunk = (int) Math.max(0, Math.min(length, Math.min(mPeerMaxFrameSize, Math.min(mSendWindow, Http2Connection.this.mSendWindow))));
+                    mSendWindow -= chunk;
+                    Http2Connection.this.mSendWindow -= chunk;
+                }
+
+                boolean last = endStream && chunk == length;
+
+                synchronized (mWriteLock)
+                {
+                    try
+                    {
+                        writeFrameHeader(chunk, TYPE_DATA, last ? FLAG_END_STREAM : 0, mId);
+                        mOutputStream.write(buffer, offset, chunk);
+                        mOutputStream.flush();
+                    }
+                    catch (IOException e)
+                    {
+                        fail(e);
+                        throw e;
+                    }
+                }
+
+                offset += chunk;
+                length -= chunk;
+
+                if (last)
+                {
+                    boolean remove;
+                    synchronized (Http2Connection.this)
+                    {
+                        mLocalClosed = true;
+                        remove = mRemoteClosed;
+                    }
+                    if (remove)
+                    {
+                        removeStream(this);
+                    }
+                }
+            }
+            while (length > 0);
+        }
+
+        /**
+         * Waits for the response headers
+         * @param timeout Timeout in milliseconds, 0 for none
+         */
+        void awaitHeaders(long timeout) throws IOException
+        {
+            synchronized (Http2Connection.this)
+            {
+                long deadline = timeout > 0 ? System.nanoTime() / 1000000 + timeout : 0;
+                while (mStatusCode == -1)
+                {
+                    checkError();
+                    if (mRemoteClosed)
+                    {
+                        throw new ProtocolException("Stream ended without a response");
+                    }
+                    waitUntil(deadline);
+                }
+            }
+        }
+
+        int getStatusCode()
+        {
+            synchronized (Http2Connection.this)
+            {
+                return mStatusCode;
+            }
+        }
+
+        List<String> getHeaderNames()
+        {
+            synchronized (Http2Connection.this)
+            {
+                return mHeaderNames;
+            }
+        }
+
+        List<String> getHeaderValues()
+        {
+            synchronized (Http2Connection.this)
+            {
+                return mHeaderValues;
+            }
+        }
+
+        /**
+         * Reads response body data, replenishing the stream's flow control window as it's consumed
+         * @return The number of bytes read, or -1 at the end of the body
+         */
+        int read(byte[] buffer, int offset, int length, long timeout) throws IOException
+        {
+            int read = 0;
+            int windowUpdate = 0;
+
+            synchronized (Http2Connection.this)
+            {
+                long deadline = timeout > 0 ? System.nanoTime() / 1000000 + timeout : 0;
+                while (mReceived.isEmpty())
+                {
+                    checkError();
+                    if (mRemoteClosed)
+                    {
+                        return -1;
+                    }
+                    waitUntil(deadline);
+                }
+
+                while (read < length && !mReceived.isEmpty())
+                {
+                    byte[] data = mReceived.peekFirst();
+                    int count = Math.min(length - read, data.length - mReceivedOffset);
+                    System.arraycopy(data, mReceivedOffset, buffer, offset + read, count);
+                    read += count;
+                    mReceivedOffset += count;
+                    if (mReceivedOffset == data.length)
+                    {
+                        mReceived.pollFirst();
+                        mReceivedOffset = 0;
+                    }
+                }
+
+                mBuffered -= read;
+                mUnacknowledged += read;
+                if (!mRemoteClosed && mUnacknowledged >= STREAM_RECEIVE_WINDOW / 2)
+                {
+                    windowUpdate = mUnacknowledged;
+                    mUnacknowledged = 0;
+                }
+            }
+
+            if (windowUpdate > 0)
+            {
+                writeWindowUpdate(mId, windowUpdate);
+            }
+            return read;
+        }
+
+        /**
+         * Aborts the stream, if it's not complete
+         */
+        void cancel()
+        {
+            boolean reset;
+            synchronized (Http2Connection.this)
+            {
+                reset = mStreams.get(mId) == this;
+                if (mError == null)
+                {
+                    mError = new IOException("Canceled");
+                }
+                mReceived.clear();
+                Http2Connection.this.notifyAll();
+            }
+
+            if (reset)
+            {
+                writeRstStream(mId, ERROR_CANCEL);
+                removeStream(this);
+            }
+        }
+
+        private void checkError() throws IOException
+        {
+            if (mError != null)
+            {
+                throw mError;
+            }
+        }
+
+        /**
+         * @return A stream over the response body
+         */
+        InputStream getInputStream(final long timeout)
+        {
+            return new InputStream()
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    byte[] buffer = new byte[1];
+                    int read = read(buffer, 0, 1);
+                    return read == -1 ? -1 : buffer[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException
+                {
+                    if (length == 0) return 0;
+                    return Stream.this.read(buffer, offset, length, timeout);
+                }
+
+                @Override
+                public int available()
+                {
+                    synchronized (Http2Connection.this)
+                    {
+                        return mBuffered;
+                    }
+                }
+
+                @Override
+                public void close()
+                {
+                    cancel();
+                }
+            };
+        }
+    }
+
+    /**
+     * Signals that a stream was not processed by the server, so it may be retried on another connection
+     */
+    static final class RefusedStreamException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        RefusedStreamException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private static final class Http2ProtocolException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int mErrorCode;
+
+        Http2ProtocolException(int errorCode, String message)
+        {
+            super(message);
+            this.mErrorCode = errorCode;
+        }
+    }
+}
@@ -0,0 +1,780 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An HTTP/2 transport, which multiplexes concurrent requests to the same origin over a single connection.
+ *
+ * https origins are negotiated with ALPN, and origins that don't agree on h2 are served over HTTP/1.1 by the fallback transport.
+ * ALPN requires SSLParameters.setApplicationProtocols (Java 9+, Android 10+), without it all https requests use the fallback.
+ *
+ * Plain http origins are served over HTTP/1.1 by the fallback transport,
+ * unless {@link #setCleartextPriorKnowledge(boolean)} is set, in which case h2c is spoken directly (the server must support it).
+ * Requests through a proxy always use the fallback transport.
+ */
+@SuppressWarnings("unused")
+public class Http2Transport extends HttpTransport
+{
+    private static final int MAX_SIZE_IN_MEMORY = 65536;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BODY_BUFFER_SIZE = 16384;
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private static final String[] APPLICATION_PROTOCOLS = { "h2", "http/1.1" };
+
+    private final HashMap<PoolKey, Http2Connection> mConnections = new HashMap<>();
+    private final HashMap<PoolKey, Object> mConnectLocks = new HashMap<>();
+    private final HashSet<String> mHttp1Origins = new HashSet<>();
+    private Thread mSweeper = null;
+
+    private volatile boolean mCleartextPriorKnowledge = false;
+    private volatile SSLSocketFactory mSSLSocketFactory = null;
+    private volatile HostnameVerifier mHostnameVerifier = null;
+    private volatile HttpTransport mFallbackTransport = null;
+    private volatile long mKeepAliveTimeout = 30000;
+
+    public boolean getCleartextPriorKnowledge()
+    {
+        return mCleartextPriorKnowledge;
+    }
+
+    /**
+     * Sets whether plain http requests use HTTP/2 directly (h2c with prior knowledge), instead of HTTP/1.1. Default is false.
+     */
+    public void setCleartextPriorKnowledge(boolean cleartextPriorKnowledge)
+    {
+        this.mCleartextPriorKnowledge = cleartextPriorKnowledge;
+    }
+
+    public long getKeepAliveTimeout()
+    {
+        return mKeepAliveTimeout;
+    }
+
+    /**
+     * Sets for how long (in milliseconds) a connection with no streams is kept alive. Default is 30 seconds.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout)
+    {
+        this.mKeepAliveTimeout = keepAliveTimeout;
+    }
+
+    public SSLSocketFactory getSSLSocketFactory()
+    {
+        return mSSLSocketFactory == null ? HttpsURLConnection.getDefaultSSLSocketFactory() : mSSLSocketFactory;
+    }
+
+    /**
+     * Sets the socket factory for https connections. Default is HttpsURLConnection's default.
+     */
+    public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory)
+    {
+        this.mSSLSocketFactory = sslSocketFactory;
+    }
+
+    public HostnameVerifier getHostnameVerifier()
+    {
+        return mHostnameVerifier == null ? HttpsURLConnection.getDefaultHostnameVerifier() : mHostnameVerifier;
+    }
+
+    /**
+     * Sets the hostname verifier for https connections. Default is HttpsURLConnection's default.
+     */
+    public void setHostnameVerifier(HostnameVerifier hostnameVerifier)
+    {
+        this.mHostnameVerifier = hostnameVerifier;
+    }
+
+    /**
+     * @return The transport used for requests that are not sent over HTTP/2
+     */
+    public HttpTransport getFallbackTransport()
+    {
+        HttpTransport transport = mFallbackTransport;
+        if (transport == null)
+        {
+            synchronized (this)
+            {
+                if (mFallbackTransport == null)
+                {
+                    mFallbackTransport = new UrlConnectionTransport();
+                }
+                transport = mFallbackTransport;
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Sets the transport used for requests that are not sent over HTTP/2. Default is {@link UrlConnectionTransport}.
+     */
+    public void setFallbackTransport(HttpTransport fallbackTransport)
+    {
+        this.mFallbackTransport = fallbackTransport;
+    }
+
+    /**
+     * @return The number of open HTTP/2 connections
+     */
+    public synchronized int getConnectionCount()
+    {
+        int count = 0;
+        for (Http2Connection connection : mConnections.values())
+        {
+            if (connection.isUsable())
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes all HTTP/2 connections. Requests in progress on them fail.
+     */
+    public void shutdown()
+    {
+        ArrayList<Http2Connection> connections;
+        synchronized (this)
+        {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+        }
+
+        for (Http2Connection connection : connections)
+        {
+            connection.shutdown();
+        }
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+    {
+        if (proxy != null && proxy.type() != Proxy.Type.DIRECT)
+        {
+            return getFallbackTransport().openConnection(url, proxy);
+        }
+
+        String protocol = url.getProtocol().toLowerCase(Locale.ENGLISH);
+        boolean useHttp2;
+        if (protocol.equals("https"))
+        {
+            synchronized (this)
+            {
+                useHttp2 = !mHttp1Origins.contains(getOrigin(url));
+            }
+        }
+        else
+        {
+            useHttp2 = protocol.equals("http") && mCleartextPriorKnowledge;
+        }
+
+        if (!useHttp2)
+        {
+            return getFallbackTransport().openConnection(url, proxy);
+        }
+
+        return new Http2StreamConnection(url);
+    }
+
+    @Override
+    public void setRequestMethod(HttpURLConnection connection, String method) throws IOException
+    {
+        if (connection instanceof Http2StreamConnection)
+        {
+            connection.setRequestMethod(method);
+        }
+        else
+        {
+            getFallbackTransport().setRequestMethod(connection, method);
+        }
+    }
+
+    private static String getOrigin(URL url)
+    {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol().toLowerCase(Locale.ENGLISH) + "://" + url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+    }
+
+    /**
+     * Gets a usable connection to the url's origin, connecting if needed
+     * @param sslSocketFactory The socket factory to use for https
+     * @param hostnameVerifier The hostname verifier to use for https
+     * @return The connection, or null if the origin does not support HTTP/2
+     */
+    private Http2Connection getConnection(URL url, int connectTimeout,
+                                          SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) throws IOException
+    {
+        String origin = getOrigin(url);
+        PoolKey key = origin.startsWith("https:")
+                ? new PoolKey(origin, sslSocketFactory, hostnameVerifier)
+                : new PoolKey(origin, null, null);
+
+        Object connectLock;
+        synchronized (this)
+        {
+            Http2Connection connection = mConnections.get(key);
+            if (connection != null && connection.isUsable())
+            {
+                return connection;
+            }
+            if (mHttp1Origins.contains(origin))
+            {
+                return null;
+            }
+
+            connectLock = mConnectLocks.get(key);
+            if (connectLock == null)
+            {
+                connectLock = new Object();
+                mConnectLocks.put(key, connectLock);
+            }
+        }
+
+        // Requests to the same origin (with the same TLS settings) wait for a single connection attempt, instead of racing to open many
+        synchronized (connectLock)
+        {
+            synchronized (this)
+            {
+                Http2Connection connection = mConnections.get(key);
+                if (connection != null && connection.isUsable())
+                {
+                    return connection;
+                }
+                if (mHttp1Origins.contains(origin))
+                {
+                    return null;
+                }
+            }
+
+            Http2Connection connection = connect(url, connectTimeout, sslSocketFactory, hostnameVerifier);
+
+            synchronized (this)
+            {
+                if (connection == null)
+                {
+                    mHttp1Origins.add(origin);
+                }
+                else
+                {
+                    mConnections.put(key, connection);
+                    startSweeper();
+                }
+                mConnectLocks.remove(key);
+            }
+
+            return connection;
+        }
+    }
+
+    /**
+     * Starts the thread that closes idle connections, if it's not running. Must be called while holding the lock.
+     */
+    private void startSweeper()
+    {
+        if (mSweeper != null) return;
+
+        mSweeper = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(SWEEP_INTERVAL);
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                    }
+
+                    if (!sweep()) return;
+                }
+            }
+        }, "Http2Transport-sweeper");
+        mSweeper.setDaemon(true);
+        mSweeper.start();
+    }
+
+    /**
+     * Closes connections that were idle for longer than the keep-alive timeout, and drops the ones that can't be used anymore
+     * @return Whether there are still connections to watch. If not, the sweeper is considered stopped.
+     */
+    private boolean sweep()
+    {
+        long keepAliveNanos = mKeepAliveTimeout * 1000000L;
+        ArrayList<Http2Connection> expired = new ArrayList<>();
+        boolean keepRunning;
+
+        synchronized (this)
+        {
+            Iterator<Http2Connection> iterator = mConnections.values().iterator();
+            while (iterator.hasNext())
+            {
+                Http2Connection connection = iterator.next();
+                boolean usable = connection.isUsable();
+                if (connection.goAwayIfIdle(usable ? keepAliveNanos : 0L))
+                {
+                    iterator.remove();
+                    expired.add(connection);
+                }
+                else if (!usable)
+                {
+                    // It closes by itself once its last stream ends
+                    iterator.remove();
+                }
+            }
+
+            keepRunning = !mConnections.isEmpty();
+            if (!keepRunning)
+            {
+                mSweeper = null;
+            }
+        }
+
+        // These can't open streams anymore, so a request that picked one of them just before gets a refused stream and retries
+        for (Http2Connection connection : expired)
+        {
+            connection.shutdown();
+        }
+
+        return keepRunning;
+    }
+
+    private Http2Connection connect(URL url, int connectTimeout,
+                                    SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) throws IOException
+    {
+        String host = url.getHost();
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+
+        Socket socket = new Socket();
+        try
+        {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setTcpNoDelay(true);
+
+            if (url.getProtocol().equalsIgnoreCase("https"))
+            {
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+                socket = sslSocket;
+
+                if (!setApplicationProtocols(sslSocket))
+                {
+                    sslSocket.close();
+                    return null;
+                }
+
+                sslSocket.startHandshake();
+
+                if (!hostnameVerifier.verify(host, sslSocket.getSession()))
+                {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                }
+
+                if (!"h2".equals(getApplicationProtocol(sslSocket)))
+                {
+                    sslSocket.close();
+                    return null;
+                }
+            }
+
+            return new Http2Connection(socket);
+        }
+        catch (IOException e)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Offers h2 through ALPN, using SSLParameters.setApplicationProtocols where available
+     * @return Whether ALPN is supported
+     */
+    private static boolean setApplicationProtocols(SSLSocket socket)
+    {
+        try
+        {
+            SSLParameters parameters = socket.getSSLParameters();
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            method.invoke(parameters, (Object) APPLICATION_PROTOCOLS);
+            socket.setSSLParameters(parameters);
+            return true;
+        }
+        catch (Exception ignored)
+        {
+            return false;
+        }
+    }
+
+    private static String getApplicationProtocol(SSLSocket socket)
+    {
+        try
+        {
+            Method method = SSLSocket.class.getMethod("getApplicationProtocol");
+            return (String) method.invoke(socket);
+        }
+        catch (Exception ignored)
+        {
+            return null;
+        }
+    }
+
+    private static boolean isConnectionSpecificHeader(String name)
+    {
+        return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection") ||
+                name.equals("transfer-encoding") || name.equals("upgrade") || name.equals("host") ||
+                name.equals("te");
+    }
+
+    private static boolean isSensitiveHeader(String name)
+    {
+        return name.equals("authorization") || name.equals("proxy-authorization") || name.equals("cookie");
+    }
+
+    /**
+     * Connections are shared only by requests to the same origin, that use the same socket factory and hostname verifier
+     */
+    private static final class PoolKey
+    {
+        final String mOrigin;
+        final SSLSocketFactory mSSLSocketFactory;
+        final HostnameVerifier mHostnameVerifier;
+
+        PoolKey(String origin, SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier)
+        {
+            mOrigin = origin;
+            mSSLSocketFactory = sslSocketFactory;
+            mHostnameVerifier = hostnameVerifier;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof PoolKey)) return false;
+            PoolKey other = (PoolKey) o;
+            return mOrigin.equals(other.mOrigin)
+                    && mSSLSocketFactory == other.mSSLSocketFactory
+                    && mHostnameVerifier == other.mHostnameVerifier;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (mOrigin.hashCode() * 31 + System.identityHashCode(mSSLSocketFactory)) * 31 + System.identityHashCode(mHostnameVerifier);
+        }
+    }
+
+    private final class Http2StreamConnection extends TransportConnection
+    {
+        private SpoolOutputStream mRequestBody = null;
+        private Http2Connection.Stream mStream = null;
+        private HttpURLConnection mFallbackConnection = null;
+
+        Http2StreamConnection(URL url)
+        {
+            super(url);
+        }
+
+        @Override
+        protected OutputStream openRequestBodyStream() throws IOException
+        {
+            long fixedContentLength = getFixedContentLength();
+            mRequestBody = new SpoolOutputStream(MAX_SIZE_IN_MEMORY, fixedContentLength > -1 ? fixedContentLength : 256);
+            return mRequestBody;
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            try
+            {
+                for (int attempt = 1; ; attempt++)
+                {
+                    try
+                    {
+                        Http2Connection connection = getConnection(url, getConnectTimeout(),
+                                getEffectiveSSLSocketFactory(), getEffectiveHostnameVerifier());
+                        if (connection == null)
+                        {
+                            executeOnFallback();
+                        }
+                        else
+                        {
+                            executeOnConnection(connection);
+                        }
+                        return;
+                    }
+                    catch (Http2Connection.RefusedStreamException e)
+                    {
+                        // The server did not process the request, so it's safe to send it again
+                        if (attempt == MAX_ATTEMPTS) throw e;
+                    }
+                }
+            }
+            finally
+            {
+                if (mRequestBody != null)
+                {
+                    mRequestBody.delete();
+                }
+            }
+        }
+
+        private SSLSocketFactory getEffectiveSSLSocketFactory()
+        {
+            SSLSocketFactory sslSocketFactory = getSSLSocketFactory();
+            return sslSocketFactory == null ? Http2Transport.this.getSSLSocketFactory() : sslSocketFactory;
+        }
+
+        private HostnameVerifier getEffectiveHostnameVerifier()
+        {
+            HostnameVerifier hostnameVerifier = getHostnameVerifier();
+            return hostnameVerifier == null ? Http2Transport.this.getHostnameVerifier() : hostnameVerifier;
+        }
+
+        private void executeOnConnection(Http2Connection connection) throws IOException
+        {
+            int port = url.getPort();
+            String authority = port == -1 || port == url.getDefaultPort() ? url.getHost() : url.getHost() + ":" + port;
+            String path = url.getFile();
+            if (path == null || path.length() == 0)
+            {
+                path = "/";
+            }
+
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<String> values = new ArrayList<>();
+            ArrayList<Boolean> sensitive = new ArrayList<>();
+
+            addHeader(names, values, sensitive, ":method", getRequestMethod());
+            addHeader(names, values, sensitive, ":scheme", url.getProtocol().toLowerCase(Locale.ENGLISH));
+            addHeader(names, values, sensitive, ":authority", authority);
+            addHeader(names, values, sensitive, ":path", path);
+
+            boolean hasContentLength = false;
+            for (Map.Entry<String, List<String>> entry : getRequestHeaders().entrySet())
+            {
+                if (entry.getKey() == null) continue;
+
+                String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+                if (name.equals("host"))
+                {
+                    // Overrides the url's authority, like in HTTP/1.1
+                    if (!entry.getValue().isEmpty())
+                    {
+                        values.set(2, entry.getValue().get(0));
+                    }
+                    continue;
+                }
+                if (isConnectionSpecificHeader(name)) continue;
+                hasContentLength |= name.equals("content-length");
+
+                for (String value : entry.getValue())
+                {
+                    addHeader(names, values, sensitive, name, value == null ? "" : value);
+                }
+            }
+
+            long contentLength = mRequestBody == null ? 0 : mRequestBody.size();
+            if (!hasContentLength && mRequestBody != null)
+            {
+                addHeader(names, values, sensitive, "content-length", Long.toString(contentLength));
+            }
+
+            long timeout = getReadTimeout();
+            mStream = connection.newStream(names, values, sensitive, mRequestBody == null, timeout);
+
+            if (mRequestBody != null)
+            {
+                writeBody(mStream, timeout);
+            }
+
+            mStream.awaitHeaders(timeout);
+
+            setResponse(mStream.getStatusCode(), "", mStream.getHeaderNames(), mStream.getHeaderValues(),
+                    getRequestMethod().equals("HEAD") ? null : mStream.getInputStream(timeout));
+        }
+
+        private void addHeader(List<String> names, List<String> values, List<Boolean> sensitive, String name, String value)
+        {
+            names.add(name);
+            values.add(value);
+            sensitive.add(isSensitiveHeader(name));
+        }
+
+        private void writeBody(Http2Connection.Stream stream, long timeout) throws IOException
+        {
+            long remaining = mRequestBody.size();
+            if (remaining == 0)
+            {
+                stream.writeData(new byte[0], 0, 0, true, timeout);
+                return;
+            }
+
+            InputStream body = mRequestBody.openInputStream(false);
+            try
+            {
+                byte[] buffer = new byte[BODY_BUFFER_SIZE];
+                while (remaining > 0)
+                {
+                    int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1)
+                    {
+                        throw new IOException("Request body is shorter than expected");
+                    }
+                    remaining -= read;
+                    stream.writeData(buffer, 0, read, remaining == 0, timeout);
+                }
+            }
+            finally
+            {
+                body.close();
+            }
+        }
+
+        /**
+         * Sends the request over HTTP/1.1 through the fallback transport, for origins that don't support HTTP/2
+         */
+        private void executeOnFallback() throws IOException
+        {
+            HttpTransport transport = getFallbackTransport();
+            HttpURLConnection connection = transport.openConnection(url, null);
+            mFallbackConnection = connection;
+
+            transport.setRequestMethod(connection, getRequestMethod());
+            connection.setConnectTimeout(getConnectTimeout());
+            connection.setReadTimeout(getReadTimeout());
+            connection.setInstanceFollowRedirects(getInstanceFollowRedirects());
+            connection.setUseCaches(getUseCaches());
+
+            if (connection instanceof HttpsURLConnection)
+            {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(getEffectiveSSLSocketFactory());
+                ((HttpsURLConnection) connection).setHostnameVerifier(getEffectiveHostnameVerifier());
+            }
+
+            for (Map.Entry<String, List<String>> entry : getRequestHeaders().entrySet())
+            {
+                if (entry.getKey() == null) continue;
+                for (String value : entry.getValue())
+                {
+                    connection.addRequestProperty(entry.getKey(), value);
+                }
+            }
+
+            if (mRequestBody != null)
+            {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(mRequestBody.size());
+
+                InputStream body = mRequestBody.openInputStream(false);
+                OutputStream outputStream = connection.getOutputStream();
+                try
+                {
+                    byte[] buffer = new byte[BODY_BUFFER_SIZE];
+                    int read;
+                    while ((read = body.read(buffer)) != -1)
+                    {
+                        outputStream.write(buffer, 0, read);
+                    }
+                }
+                finally
+                {
+                    body.close();
+                }
+                outputStream.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+
+            ArrayList<String> headerKeys = new ArrayList<>();
+            ArrayList<String> headerValues = new ArrayList<>();
+            for (int i = 0; ; i++)
+            {
+                String value = connection.getHeaderField(i);
+                if (value == null) break;
+
+                String key = connection.getHeaderFieldKey(i);
+                if (key == null) continue; // The status line
+
+                headerKeys.add(key);
+                headerValues.add(value);
+            }
+
+            InputStream responseBody = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            setResponse(responseCode, connection.getResponseMessage(), headerKeys, headerValues, responseBody);
+        }
+
+        @Override
+        protected void release()
+        {
+            if (mStream != null)
+            {
+                mStream.cancel();
+            }
+            if (mFallbackConnection != null)
+            {
+                mFallbackConnection.disconnect();
+            }
+            if (mRequestBody != null)
+            {
+                mRequestBody.delete();
+            }
+        }
+    }
+}
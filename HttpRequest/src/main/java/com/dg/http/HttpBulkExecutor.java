@@ -0,0 +1,596 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent requests with bounded concurrency, for bulk jobs like syncing or re-indexing.
+ * Requests are pulled from an iterator only as slots free up, so they can be generated lazily.
+ * Each result is reported as soon as it completes, or in input order if {@link #setOrdered(boolean)} is set.
+ * A failed request is reported as a result with an error, and does not fail the batch.
+ *
+ * Responses are buffered before they are reported. Requests run through {@link HttpRequest#getResponseFuture(Executor)},
+ * so a dispatcher set on a request applies as well.
+ */
+public class HttpBulkExecutor
+{
+    private static final int LATENCY_SAMPLE_SIZE = 1024; // How many latencies are kept for the percentiles
+    private static final int ORDERED_WINDOW_FACTOR = 4; // In ordered mode, how far ahead of the next result to deliver requests may run, in multiples of the concurrency
+
+    private final int mConcurrency;
+    private final Executor mExecutor;
+    private volatile boolean mOrdered = false;
+
+    /**
+     * @param concurrency The maximum number of requests running at once
+     */
+    public HttpBulkExecutor(int concurrency)
+    {
+        this(concurrency, null);
+    }
+
+    /**
+     * @param concurrency The maximum number of requests running at once
+     * @param executor The executor to run requests on, or null for {@link HttpRequest#getDefaultFutureExecutor()}
+     */
+    public HttpBulkExecutor(int concurrency, Executor executor)
+    {
+        if (concurrency < 1)
+        {
+            throw new IllegalArgumentException("concurrency < 1: " + concurrency);
+        }
+        this.mConcurrency = concurrency;
+        this.mExecutor = executor;
+    }
+
+    public int getConcurrency()
+    {
+        return mConcurrency;
+    }
+
+    public boolean isOrdered()
+    {
+        return mOrdered;
+    }
+
+    /**
+     * Sets whether results are reported in the order of the requests, instead of as they complete. Default is false.
+     * To keep memory bounded, requests are not started too far ahead of the next result to report.
+     */
+    public HttpBulkExecutor setOrdered(boolean ordered)
+    {
+        this.mOrdered = ordered;
+        return this;
+    }
+
+    public Batch execute(Iterable<HttpRequest> requests, Listener listener)
+    {
+        return execute(requests.iterator(), listener);
+    }
+
+    /**
+     * Starts running the requests
+     * @param requests The requests, pulled one at a time as slots free up. Only accessed by one thread at a time.
+     * @param listener Notified of each result, and when the batch completes. Calls are not concurrent.
+     * @return The running batch
+     */
+    public Batch execute(Iterator<HttpRequest> requests, Listener listener)
+    {
+        Batch batch = new Batch(requests, listener, mOrdered);
+        batch.drain();
+        return batch;
+    }
+
+    /**
+     * Runs the requests and waits for all of them
+     * @return The results, in the order of the requests
+     */
+    public List<Result> executeAll(Iterable<HttpRequest> requests) throws InterruptedException
+    {
+        final ArrayList<Result> results = new ArrayList<>();
+        Batch batch = new Batch(requests.iterator(), new Listener()
+        {
+            @Override
+            public void onResult(Result result)
+            {
+                results.add(result);
+            }
+        }, true);
+        batch.drain();
+
+        try
+        {
+            batch.await();
+        }
+        catch (InterruptedException e)
+        {
+            batch.cancel();
+            throw e;
+        }
+        return results;
+    }
+
+    public final class Batch
+    {
+        private final Iterator<HttpRequest> mRequests;
+        private final Listener mListener;
+        private final boolean mOrdered;
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private final AtomicInteger mWip = new AtomicInteger();
+        private final long mStartTime = System.nanoTime();
+
+        private final HashMap<Integer, HttpFuture<HttpResponse>> mRunning = new HashMap<>();
+        private final HashMap<Integer, Result> mOrderedResults = new HashMap<>();
+        private final ArrayDeque<Result> mResults = new ArrayDeque<>();
+        private int mNextIndex = 0;
+        private int mNextDelivery = 0;
+        private boolean mExhausted = false;
+        private boolean mCanceled = false;
+        private boolean mDone = false;
+
+        private int mSucceeded = 0;
+        private int mFailed = 0;
+        private final long[] mLatencySample = new long[LATENCY_SAMPLE_SIZE]; // Nanoseconds
+        private final Random mSampleRandom = new Random();
+        private long mTotalLatency = 0; // Nanoseconds
+        private long mEndTime = 0;
+
+        Batch(Iterator<HttpRequest> requests, Listener listener, boolean ordered)
+        {
+            this.mRequests = requests;
+            this.mListener = listener;
+            this.mOrdered = ordered;
+        }
+
+        /**
+         * Starts what can be started, reports what completed and finishes the batch when it's done.
+         * Runs on one thread at a time, any calls that come in meanwhile make it loop again.
+         */
+        private void drain()
+        {
+            if (mWip.getAndIncrement() != 0) return;
+
+            int missed = 1;
+            do
+            {
+                startRequests();
+                deliverResults();
+                finishIfDone();
+
+                missed = mWip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        private void startRequests()
+        {
+            while (true)
+            {
+                int index;
+                HttpRequest request;
+
+                synchronized (this)
+                {
+                    if (mCanceled || mExhausted || mRunning.size() >= mConcurrency) return;
+                    if (mOrdered && mNextIndex >= mNextDelivery + mConcurrency * ORDERED_WINDOW_FACTOR) return;
+
+                    index = mNextIndex;
+                    try
+                    {
+                        if (!mRequests.hasNext())
+                        {
+                            mExhausted = true;
+                            return;
+                        }
+                        request = mRequests.next();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // The requests can't be iterated further, report it as a failed item and stop there
+                        mExhausted = true;
+                        mNextIndex++;
+                        addResult(new Result(index, null, null, e, 0));
+                        return;
+                    }
+
+                    mNextIndex++;
+                    mRunning.put(index, null);
+                }
+
+                start(index, request);
+            }
+        }
+
+        private void start(final int index, final HttpRequest request)
+        {
+            final long startTime = System.nanoTime();
+            HttpFuture<HttpResponse> future = request.getResponseFuture(mExecutor);
+
+            boolean canceled;
+            synchronized (this)
+            {
+                canceled = mCanceled;
+                if (mRunning.containsKey(index))
+                {
+                    mRunning.put(index, future);
+                }
+            }
+            if (canceled)
+            {
+                future.cancel(true);
+            }
+
+            future.addCallback(new HttpFuture.Callback<HttpResponse>()
+            {
+                @Override
+                public void onSuccess(HttpResponse response)
+                {
+                    complete(new Result(index, request, response, null, System.nanoTime() - startTime));
+                }
+
+                @Override
+                public void onFailure(Exception error)
+                {
+                    complete(new Result(index, request, null, error, System.nanoTime() - startTime));
+                }
+            });
+        }
+
+        private void complete(Result result)
+        {
+            synchronized (this)
+            {
+                mRunning.remove(result.mIndex);
+                addResult(result);
+            }
+            drain();
+        }
+
+        private void addResult(Result result)
+        {
+            if (result.mError == null)
+            {
+                mSucceeded++;
+            }
+            else
+            {
+                mFailed++;
+            }
+
+            // Keeps a uniform sample of the latencies (reservoir sampling), so memory doesn't grow with the batch
+            int count = mSucceeded + mFailed;
+            mTotalLatency += result.mLatency;
+            if (count <= LATENCY_SAMPLE_SIZE)
+            {
+                mLatencySample[count - 1] = result.mLatency;
+            }
+            else
+            {
+                int slot = mSampleRandom.nextInt(count);
+                if (slot < LATENCY_SAMPLE_SIZE)
+                {
+                    mLatencySample[slot] = result.mLatency;
+                }
+            }
+
+            if (mOrdered)
+            {
+                mOrderedResults.put(result.mIndex, result);
+            }
+            else
+            {
+                mResults.addLast(result);
+            }
+        }
+
+        private void deliverResults()
+        {
+            while (true)
+            {
+                Result result;
+                synchronized (this)
+                {
+                    if (mOrdered)
+                    {
+                        result = mOrderedResults.remove(mNextDelivery);
+                        if (result != null)
+                        {
+                            mNextDelivery++;
+                        }
+                    }
+                    else
+                    {
+                        result = mResults.pollFirst();
+                    }
+                }
+
+                if (result == null) return;
+
+                try
+                {
+                    mListener.onResult(result);
+                }
+                catch (RuntimeException ignored)
+                {
+                    // A failing listener should not stall the rest of the batch
+                }
+            }
+        }
+
+        private void finishIfDone()
+        {
+            synchronized (this)
+            {
+                if (mDone || !mRunning.isEmpty() || !(mExhausted || mCanceled)) return;
+                if (!mResults.isEmpty() || !mOrderedResults.isEmpty()) return;
+                mDone = true;
+                mEndTime = System.nanoTime();
+            }
+
+            try
+            {
+                mListener.onComplete(getStats());
+            }
+            finally
+            {
+                mFinished.countDown();
+            }
+        }
+
+        /**
+         * Stops starting requests, and cancels the ones that are running. These are reported with a CancellationException.
+         */
+        public void cancel()
+        {
+            ArrayList<HttpFuture<HttpResponse>> running;
+            synchronized (this)
+            {
+                if (mCanceled) return;
+                mCanceled = true;
+                running = new ArrayList<>(mRunning.values());
+            }
+
+            for (HttpFuture<HttpResponse> future : running)
+            {
+                if (future != null)
+                {
+                    future.cancel(true);
+                }
+            }
+            drain();
+        }
+
+        public synchronized boolean isDone()
+        {
+            return mDone;
+        }
+
+        /**
+         * Waits for all requests to complete and be reported
+         */
+        public void await() throws InterruptedException
+        {
+            mFinished.await();
+        }
+
+        /**
+         * Waits for all requests to complete and be reported
+         * @return False if the timeout elapsed first
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return mFinished.await(timeout, unit);
+        }
+
+        /**
+         * @return Statistics of the requests completed so far
+         */
+        public synchronized Stats getStats()
+        {
+            int count = mSucceeded + mFailed;
+            long[] latencies = Arrays.copyOf(mLatencySample, Math.min(count, LATENCY_SAMPLE_SIZE));
+            Arrays.sort(latencies);
+            long elapsed = (mDone ? mEndTime : System.nanoTime()) - mStartTime;
+            return new Stats(mSucceeded, mFailed, elapsed, mTotalLatency, latencies);
+        }
+    }
+
+    public static final class Result
+    {
+        private final int mIndex;
+        private final HttpRequest mRequest;
+        private final HttpResponse mResponse;
+        private final Exception mError;
+        private final long mLatency; // Nanoseconds
+
+        Result(int index, HttpRequest request, HttpResponse response, Exception error, long latency)
+        {
+            this.mIndex = index;
+            this.mRequest = request;
+            this.mResponse = response;
+            this.mError = error;
+            this.mLatency = latency;
+        }
+
+        /**
+         * @return The position of the request in the input
+         */
+        public int getIndex()
+        {
+            return mIndex;
+        }
+
+        /**
+         * @return The request, or null if the failure was in getting it from the iterator
+         */
+        public HttpRequest getRequest()
+        {
+            return mRequest;
+        }
+
+        /**
+         * @return The (buffered) response, or null if the request failed
+         */
+        public HttpResponse getResponse()
+        {
+            return mResponse;
+        }
+
+        /**
+         * @return The error the request failed with, or null if it succeeded
+         */
+        public Exception getError()
+        {
+            return mError;
+        }
+
+        /**
+         * @return Whether a response was received. That includes error statuses, check the response's status code for those.
+         */
+        public boolean isSuccessful()
+        {
+            return mError == null;
+        }
+
+        /**
+         * @return The time in milliseconds from sending the request to receiving the whole response
+         */
+        public double getLatency()
+        {
+            return mLatency / 1000000.0;
+        }
+    }
+
+    public static final class Stats
+    {
+        private final int mSucceeded;
+        private final int mFailed;
+        private final long mElapsedTime; // Nanoseconds
+        private final long mTotalLatency; // Nanoseconds
+        private final long[] mLatencies; // Nanoseconds, a sorted sample
+
+        Stats(int succeeded, int failed, long elapsedTime, long totalLatency, long[] latencies)
+        {
+            this.mSucceeded = succeeded;
+            this.mFailed = failed;
+            this.mElapsedTime = elapsedTime;
+            this.mTotalLatency = totalLatency;
+            this.mLatencies = latencies;
+        }
+
+        public int getCount()
+        {
+            return mSucceeded + mFailed;
+        }
+
+        public int getSucceeded()
+        {
+            return mSucceeded;
+        }
+
+        public int getFailed()
+        {
+            return mFailed;
+        }
+
+        /**
+         * @return The time in milliseconds since the batch started, until it finished
+         */
+        public double getElapsedTime()
+        {
+            return mElapsedTime / 1000000.0;
+        }
+
+        /**
+         * @return Completed requests per second
+         */
+        public double getThroughput()
+        {
+            return mElapsedTime == 0 ? 0.0 : getCount() / (mElapsedTime / 1000000000.0);
+        }
+
+        /**
+         * @return The average latency in milliseconds
+         */
+        public double getAverageLatency()
+        {
+            int count = getCount();
+            if (count == 0) return 0.0;
+
+            return mTotalLatency / (double) count / 1000000.0;
+        }
+
+        /**
+         * Exact for batches of up to 1024 requests, and estimated from a uniform sample of 1024 latencies beyond that.
+         * @param percentile Between 0 and 100, i.e. 99 for the p99 latency
+         * @return The latency in milliseconds at the percentile
+         */
+        public double getLatencyPercentile(double percentile)
+        {
+            if (mLatencies.length == 0) return 0.0;
+
+            int index = (int) Math.ceil(percentile / 100.0 * mLatencies.length) - 1;
+            index = Math.max(0, Math.min(mLatencies.length - 1, index));
+            return mLatencies[index] / 1000000.0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ENGLISH, "%d requests (%d failed) in %.0f ms, %.1f/s, latency avg %.1f ms, p50 %.1f ms, p99 %.1f ms",
+                    getCount(), mFailed, getElapsedTime(), getThroughput(), getAverageLatency(),
+                    getLatencyPercentile(50), getLatencyPercentile(99));
+        }
+    }
+
+    public abstract static class Listener
+    {
+        /**
+         * Called with the result of each request
+         */
+        public abstract void onResult(Result result);
+
+        /**
+         * Called once all requests completed and were reported, or after the batch was canceled
+         */
+        public void onComplete(Stats stats)
+        {
+            // Do nothing
+        }
+    }
+}
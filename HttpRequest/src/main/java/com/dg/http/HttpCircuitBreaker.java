@@ -0,0 +1,502 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A circuit breaker per host. When too many of the recent requests to a host failed (or were too slow), the circuit opens,
+ * and requests to that host fail right away with a {@link CircuitOpenException} instead of waiting out their timeouts.
+ * After a while the circuit is half-open, and lets a few probe requests through. If they succeed it closes again, otherwise it re-opens.
+ *
+ * Failures are IOExceptions and 5xx responses. Latency is measured from sending the request until the response headers arrive,
+ * so time spent waiting on our side (for the rate limit coordinator, or the concurrency limiter) doesn't count against the host.
+ * A request that throws counts as a failure, but not as a slow call.
+ * Set it on requests with {@link HttpRequest#setCircuitBreaker(HttpCircuitBreaker)}, it's meant to be shared between them.
+ */
+public class HttpCircuitBreaker
+{
+    private int mWindowSize = 20;
+    private int mMinimumCalls = 10;
+    private double mFailureRateThreshold = 0.5;
+    private long mSlowCallDuration = 0L;
+    private double mSlowCallRateThreshold = 0.8;
+    private long mOpenDuration = 30000L;
+    private int mProbeCount = 3;
+
+    private final HashMap<String, Circuit> mCircuits = new HashMap<>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    public int getWindowSize()
+    {
+        return mWindowSize;
+    }
+
+    /**
+     * Sets the number of recent requests to a host that the failure rate is calculated over. Default is 20.
+     */
+    public synchronized HttpCircuitBreaker setWindowSize(int windowSize)
+    {
+        if (windowSize < 1)
+        {
+            throw new IllegalArgumentException("windowSize < 1: " + windowSize);
+        }
+        this.mWindowSize = windowSize;
+        return this;
+    }
+
+    public int getMinimumCalls()
+    {
+        return mMinimumCalls;
+    }
+
+    /**
+     * Sets the number of requests needed in the window before the circuit may open. Default is 10.
+     */
+    public synchronized HttpCircuitBreaker setMinimumCalls(int minimumCalls)
+    {
+        this.mMinimumCalls = minimumCalls;
+        return this;
+    }
+
+    public double getFailureRateThreshold()
+    {
+        return mFailureRateThreshold;
+    }
+
+    /**
+     * Sets the ratio of failed requests that opens the circuit. Default is 0.5.
+     */
+    public synchronized HttpCircuitBreaker setFailureRateThreshold(double threshold)
+    {
+        this.mFailureRateThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Makes slow requests open the circuit too
+     * @param duration The time in milliseconds after which a request is slow, or 0 (the default) to ignore latency
+     * @param rateThreshold The ratio of slow requests that opens the circuit. Default is 0.8.
+     */
+    public synchronized HttpCircuitBreaker setSlowCallThreshold(long duration, double rateThreshold)
+    {
+        this.mSlowCallDuration = duration;
+        this.mSlowCallRateThreshold = rateThreshold;
+        return this;
+    }
+
+    public long getSlowCallDuration()
+    {
+        return mSlowCallDuration;
+    }
+
+    public double getSlowCallRateThreshold()
+    {
+        return mSlowCallRateThreshold;
+    }
+
+    public long getOpenDuration()
+    {
+        return mOpenDuration;
+    }
+
+    /**
+     * Sets the time in milliseconds that an open circuit fails requests, before letting probes through. Default is 30000.
+     */
+    public synchronized HttpCircuitBreaker setOpenDuration(long openDuration)
+    {
+        this.mOpenDuration = openDuration;
+        return this;
+    }
+
+    public int getProbeCount()
+    {
+        return mProbeCount;
+    }
+
+    /**
+     * Sets the number of probe requests that have to succeed in a half-open circuit to close it. Default is 3.
+     * Only that many requests are let through at a time.
+     */
+    public synchronized HttpCircuitBreaker setProbeCount(int probeCount)
+    {
+        if (probeCount < 1)
+        {
+            throw new IllegalArgumentException("probeCount < 1: " + probeCount);
+        }
+        this.mProbeCount = probeCount;
+        return this;
+    }
+
+    public void addListener(Listener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return The state of the host's circuit, one of {@link State}
+     */
+    public int getState(URL url)
+    {
+        int[] transition;
+        int state;
+        synchronized (this)
+        {
+            Circuit circuit = mCircuits.get(HttpDispatcher.getHostKey(url));
+            if (circuit == null) return State.CLOSED;
+
+            transition = circuit.checkOpenDuration();
+            state = circuit.mState;
+        }
+        notifyListeners(HttpDispatcher.getHostKey(url), transition);
+        return state;
+    }
+
+    /**
+     * @return The ratio of failed requests in the host's window
+     */
+    public synchronized double getFailureRate(URL url)
+    {
+        Circuit circuit = mCircuits.get(HttpDispatcher.getHostKey(url));
+        return circuit == null || circuit.mCount == 0 ? 0.0 : circuit.mFailures / (double) circuit.mCount;
+    }
+
+    /**
+     * Closes the host's circuit, and forgets its recent requests
+     */
+    public void reset(URL url)
+    {
+        String host = HttpDispatcher.getHostKey(url);
+        int[] transition = null;
+        synchronized (this)
+        {
+            Circuit circuit = mCircuits.get(host);
+            if (circuit != null)
+            {
+                transition = circuit.transition(State.CLOSED);
+            }
+        }
+        notifyListeners(host, transition);
+    }
+
+    /**
+     * @return Whether the response counts as a failure of the host. By default that's any 5xx status.
+     */
+    protected boolean isFailure(int statusCode)
+    {
+        return statusCode >= 500;
+    }
+
+    /**
+     * Sends the request, unless the host's circuit is open
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponse(HttpRequest request, HttpRequest.ProgressListener progressListener, AtomicBoolean requestShouldAbort, ReplayableBody replayableBody) throws IOException
+    {
+        String host = HttpDispatcher.getHostKey(request.getURL());
+        boolean probe = acquire(host);
+
+        HttpResponse response;
+        try
+        {
+            response = request.getResponseHedged(progressListener, requestShouldAbort, replayableBody);
+        }
+        catch (HttpConcurrencyLimiter.LimitExceededException | HttpRateLimitCoordinator.RateLimitedException e)
+        {
+            // Held back on our side, the host was not asked
+            cancel(host, probe);
+            throw e;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // How much of the time went into waiting isn't known here, so it's not judged as slow
+            record(host, probe, false, -1L);
+            throw e;
+        }
+
+        if (response == null)
+        {
+            cancel(host, probe);
+            return null;
+        }
+
+        record(host, probe, !isFailure(response.getStatusCode()), response.getSendTime());
+        return response;
+    }
+
+    /**
+     * @return Whether the request is a probe of a half-open circuit
+     */
+    private boolean acquire(String host) throws CircuitOpenException
+    {
+        int[] transition;
+        boolean probe = false;
+        long retryAfter = -1L;
+
+        synchronized (this)
+        {
+            Circuit circuit = mCircuits.get(host);
+            if (circuit == null)
+            {
+                circuit = new Circuit(mWindowSize);
+                mCircuits.put(host, circuit);
+            }
+
+            transition = circuit.checkOpenDuration();
+
+            if (circuit.mState == State.OPEN)
+            {
+                retryAfter = Math.max(0L, mOpenDuration - (System.currentTimeMillis() - circuit.mOpenedAt));
+            }
+            else if (circuit.mState == State.HALF_OPEN)
+            {
+                if (circuit.mProbesInFlight + circuit.mProbeSuccesses < mProbeCount)
+                {
+                    circuit.mProbesInFlight++;
+                    probe = true;
+                }
+                else
+                {
+                    retryAfter = 0L;
+                }
+            }
+        }
+
+        notifyListeners(host, transition);
+
+        if (retryAfter >= 0L)
+        {
+            throw new CircuitOpenException(host, retryAfter);
+        }
+        return probe;
+    }
+
+    private void record(String host, boolean probe, boolean success, long latency)
+    {
+        int[] transition = null;
+
+        synchronized (this)
+        {
+            Circuit circuit = mCircuits.get(host);
+
+            if (probe)
+            {
+                circuit.mProbesInFlight--;
+                if (circuit.mState == State.HALF_OPEN)
+                {
+                    if (!success)
+                    {
+                        transition = circuit.transition(State.OPEN);
+                    }
+                    else if (++circuit.mProbeSuccesses >= mProbeCount)
+                    {
+                        transition = circuit.transition(State.CLOSED);
+                    }
+                }
+            }
+            else if (circuit.mState == State.CLOSED)
+            {
+                boolean slow = mSlowCallDuration > 0L && latency > mSlowCallDuration * 1000000L;
+                circuit.add(!success, slow, mWindowSize);
+
+                if (circuit.mCount >= mMinimumCalls &&
+                        (circuit.mFailures >= mFailureRateThreshold * circuit.mCount ||
+                                (mSlowCallDuration > 0L && circuit.mSlow >= mSlowCallRateThreshold * circuit.mCount)))
+                {
+                    transition = circuit.transition(State.OPEN);
+                }
+            }
+            // Requests that started before the circuit opened don't count
+        }
+
+        notifyListeners(host, transition);
+    }
+
+    private synchronized void cancel(String host, boolean probe)
+    {
+        if (probe)
+        {
+            mCircuits.get(host).mProbesInFlight--;
+        }
+    }
+
+    private void notifyListeners(String host, int[] transition)
+    {
+        if (transition == null) return;
+
+        for (Listener listener : mListeners)
+        {
+            listener.onStateChange(host, transition[0], transition[1]);
+        }
+    }
+
+    private class Circuit
+    {
+        private int mState = State.CLOSED;
+        private long mOpenedAt = 0L;
+        private int mProbesInFlight = 0;
+        private int mProbeSuccesses = 0;
+
+        // The outcomes of recent requests, a ring buffer
+        private boolean[] mFailed;
+        private boolean[] mSlowCalls;
+        private int mNext = 0;
+        private int mCount = 0;
+        private int mFailures = 0;
+        private int mSlow = 0;
+
+        Circuit(int windowSize)
+        {
+            mFailed = new boolean[windowSize];
+            mSlowCalls = new boolean[windowSize];
+        }
+
+        void add(boolean failed, boolean slow, int windowSize)
+        {
+            if (mFailed.length != windowSize)
+            {
+                // The window size was changed, start over
+                mFailed = new boolean[windowSize];
+                mSlowCalls = new boolean[windowSize];
+                mNext = mCount = mFailures = mSlow = 0;
+            }
+
+            if (mCount == mFailed.length)
+            {
+                if (mFailed[mNext]) mFailures--;
+                if (mSlowCalls[mNext]) mSlow--;
+            }
+            else
+            {
+                mCount++;
+            }
+
+            mFailed[mNext] = failed;
+            mSlowCalls[mNext] = slow;
+            if (failed) mFailures++;
+            if (slow) mSlow++;
+            mNext = (mNext + 1) % mFailed.length;
+        }
+
+        /**
+         * Moves an open circuit to half-open once the open duration passed
+         * @return The transition, or null
+         */
+        int[] checkOpenDuration()
+        {
+            if (mState == State.OPEN && System.currentTimeMillis() - mOpenedAt >= mOpenDuration)
+            {
+                return transition(State.HALF_OPEN);
+            }
+            return null;
+        }
+
+        /**
+         * @return The transition, as {from, to}, or null if already in that state
+         */
+        int[] transition(int state)
+        {
+            if (mState == state) return null;
+
+            int[] transition = { mState, state };
+            mState = state;
+            mProbeSuccesses = 0;
+            if (state == State.OPEN)
+            {
+                mOpenedAt = System.currentTimeMillis();
+            }
+            else if (state == State.CLOSED)
+            {
+                mNext = mCount = mFailures = mSlow = 0;
+                Arrays.fill(mFailed, false);
+                Arrays.fill(mSlowCalls, false);
+            }
+            return transition;
+        }
+    }
+
+    public abstract static class State
+    {
+        public static final int CLOSED = 0;
+        public static final int OPEN = 1;
+        public static final int HALF_OPEN = 2;
+    }
+
+    public abstract static class Listener
+    {
+        /**
+         * Called when a host's circuit changes state. Not called on any specific thread.
+         * @param host The host, as host:port
+         * @param fromState One of {@link State}
+         * @param toState One of {@link State}
+         */
+        public abstract void onStateChange(String host, int fromState, int toState);
+    }
+
+    /**
+     * Thrown instead of sending a request to a host whose circuit is open
+     */
+    public static class CircuitOpenException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String mHost;
+        private final long mRetryAfter;
+
+        public CircuitOpenException(String host, long retryAfter)
+        {
+            super("The circuit to " + host + " is open");
+            this.mHost = host;
+            this.mRetryAfter = retryAfter;
+        }
+
+        /**
+         * @return The host, as host:port
+         */
+        public String getHost()
+        {
+            return mHost;
+        }
+
+        /**
+         * @return The time in milliseconds until probes are let through, or 0 if probes are running already
+         */
+        public long getRetryAfter()
+        {
+            return mRetryAfter;
+        }
+    }
+}
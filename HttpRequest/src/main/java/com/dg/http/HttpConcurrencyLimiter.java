@@ -0,0 +1,373 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of requests in flight to each host, adapting the limit to the measured latency, in the style of TCP Vegas.
+ * The lowest latency seen is taken as the latency of an idle server, and anything above it as time that requests spent queued there.
+ * From that the number of queued requests is estimated: while it's low the limit grows, and when it's high the limit shrinks. Timeouts shrink it too.
+ * The lowest latency slowly creeps up, so it follows a server that got slower for good.
+ *
+ * Requests over the limit wait for a slot for up to {@link #setMaxQueueTime(long)}, and are then rejected with a {@link LimitExceededException}.
+ * A request is in flight until its response headers arrive, which is also where latency is measured.
+ * Set it on requests with {@link HttpRequest#setConcurrencyLimiter(HttpConcurrencyLimiter)}, it's meant to be shared between them.
+ */
+public class HttpConcurrencyLimiter
+{
+    private static final double RTT_FACTOR = 2.0 / (10 + 1); // The reported latency is an average over ~10 samples
+    private static final double QUEUE_DELAY_FACTOR = 0.1;
+    private static final double MIN_RTT_DRIFT = 1.001; // The lowest latency creeps up by this on each sample, so it follows a server that got slower
+    private static final double TIMEOUT_BACKOFF = 0.9; // The limit is multiplied by this on a timeout
+    private static final long ABORT_POLL_INTERVAL = 50L; // How often requestShouldAbort is checked while queued
+
+    private int mInitialLimit = 20;
+    private int mMinLimit = 1;
+    private int mMaxLimit = 200;
+    private double mSmoothing = 0.2;
+    private long mMaxQueueTime = 10000L;
+
+    private final HashMap<String, Limit> mLimits = new HashMap<>();
+    private long mRejectedCount = 0;
+
+    public int getInitialLimit()
+    {
+        return mInitialLimit;
+    }
+
+    /**
+     * Sets the limit for a host that was not seen yet. Default is 20.
+     */
+    public synchronized HttpConcurrencyLimiter setInitialLimit(int initialLimit)
+    {
+        this.mInitialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * Sets the range of the limit. Default is 1 to 200.
+     */
+    public synchronized HttpConcurrencyLimiter setLimitRange(int minLimit, int maxLimit)
+    {
+        if (minLimit < 1 || maxLimit < minLimit)
+        {
+            throw new IllegalArgumentException("Invalid limit range: " + minLimit + "-" + maxLimit);
+        }
+        this.mMinLimit = minLimit;
+        this.mMaxLimit = maxLimit;
+        return this;
+    }
+
+    public int getMinLimit()
+    {
+        return mMinLimit;
+    }
+
+    public int getMaxLimit()
+    {
+        return mMaxLimit;
+    }
+
+    public double getSmoothing()
+    {
+        return mSmoothing;
+    }
+
+    /**
+     * Sets how fast the limit follows the calculated one, between 0 and 1. Default is 0.2.
+     */
+    public synchronized HttpConcurrencyLimiter setSmoothing(double smoothing)
+    {
+        this.mSmoothing = smoothing;
+        return this;
+    }
+
+    public long getMaxQueueTime()
+    {
+        return mMaxQueueTime;
+    }
+
+    /**
+     * Sets the time in milliseconds that a request over the limit waits for a slot before it's rejected.
+     * Default is 10000. 0 rejects right away.
+     */
+    public synchronized HttpConcurrencyLimiter setMaxQueueTime(long maxQueueTime)
+    {
+        this.mMaxQueueTime = maxQueueTime;
+        return this;
+    }
+
+    /**
+     * @return The current limit of requests in flight to the host
+     */
+    public synchronized int getLimit(URL url)
+    {
+        Limit limit = mLimits.get(HttpDispatcher.getHostKey(url));
+        return limit == null ? mInitialLimit : (int) limit.mLimit;
+    }
+
+    public synchronized int getInFlight(URL url)
+    {
+        Limit limit = mLimits.get(HttpDispatcher.getHostKey(url));
+        return limit == null ? 0 : limit.mInFlight;
+    }
+
+    /**
+     * @return The number of requests to the host waiting for a slot
+     */
+    public synchronized int getQueuedCount(URL url)
+    {
+        Limit limit = mLimits.get(HttpDispatcher.getHostKey(url));
+        return limit == null ? 0 : limit.mQueued;
+    }
+
+    /**
+     * @return The recent average time in milliseconds that requests to the host waited for a slot
+     */
+    public synchronized double getQueueDelay(URL url)
+    {
+        Limit limit = mLimits.get(HttpDispatcher.getHostKey(url));
+        return limit == null ? 0.0 : limit.mQueueDelay / 1000000.0;
+    }
+
+    /**
+     * @return The recent average latency in milliseconds of requests to the host
+     */
+    public synchronized double getLatency(URL url)
+    {
+        Limit limit = mLimits.get(HttpDispatcher.getHostKey(url));
+        return limit == null ? 0.0 : limit.mRtt / 1000000.0;
+    }
+
+    /**
+     * @return How many requests were rejected after waiting too long for a slot
+     */
+    public synchronized long getRejectedCount()
+    {
+        return mRejectedCount;
+    }
+
+    /**
+     * Sends the request once a slot is free
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponse(HttpRequest request, HttpRequest.ProgressListener progressListener, AtomicBoolean requestShouldAbort, ReplayableBody replayableBody) throws IOException
+    {
+        String host = HttpDispatcher.getHostKey(request.getURL());
+        Limit limit = acquire(host, requestShouldAbort);
+        if (limit == null)
+        {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        boolean timedOut = false;
+        HttpResponse response = null;
+        try
+        {
+            response = request.getResponseDirect(progressListener, requestShouldAbort, replayableBody);
+            return response;
+        }
+        catch (SocketTimeoutException e)
+        {
+            timedOut = true;
+            throw e;
+        }
+        finally
+        {
+            release(limit, response != null ? System.nanoTime() - start : -1L, timedOut);
+        }
+    }
+
+    /**
+     * Waits for a slot
+     * @return The host's limit, or null if aborted
+     */
+    private synchronized Limit acquire(String host, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        Limit limit = mLimits.get(host);
+        if (limit == null)
+        {
+            limit = new Limit(Math.max(mMinLimit, Math.min(mMaxLimit, mInitialLimit)));
+            mLimits.put(host, limit);
+        }
+
+        long start = System.nanoTime();
+        if (limit.mInFlight >= (int) limit.mLimit)
+        {
+            long deadline = start + mMaxQueueTime * 1000000L;
+            limit.mQueued++;
+            try
+            {
+                while (limit.mInFlight >= (int) limit.mLimit)
+                {
+                    if (requestShouldAbort != null && requestShouldAbort.get())
+                    {
+                        return null;
+                    }
+
+                    long remaining = (deadline - System.nanoTime()) / 1000000L;
+                    if (remaining <= 0L)
+                    {
+                        mRejectedCount++;
+                        throw new LimitExceededException(host, (int) limit.mLimit);
+                    }
+
+                    wait(Math.min(remaining, ABORT_POLL_INTERVAL));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a slot");
+            }
+            finally
+            {
+                limit.mQueued--;
+            }
+        }
+
+        limit.mQueueDelay += (System.nanoTime() - start - limit.mQueueDelay) * QUEUE_DELAY_FACTOR;
+        limit.mInFlight++;
+        return limit;
+    }
+
+    /**
+     * @param latency The time until the response headers arrived in nanoseconds, or -1 if the request failed
+     */
+    private synchronized void release(Limit limit, long latency, boolean timedOut)
+    {
+        int inFlight = limit.mInFlight;
+        limit.mInFlight--;
+
+        if (timedOut)
+        {
+            limit.mLimit = Math.max(mMinLimit, limit.mLimit * TIMEOUT_BACKOFF);
+        }
+        else if (latency > 0L)
+        {
+            update(limit, latency, inFlight);
+        }
+
+        notifyAll();
+    }
+
+    private void update(Limit limit, long latency, int inFlight)
+    {
+        limit.mRtt = limit.mRtt == 0.0 ? latency : limit.mRtt + (latency - limit.mRtt) * RTT_FACTOR;
+
+        if (limit.mMinRtt == 0.0 || latency < limit.mMinRtt)
+        {
+            limit.mMinRtt = latency;
+            return;
+        }
+        limit.mMinRtt *= MIN_RTT_DRIFT;
+
+        // When we're not using the limit, we don't know whether more would be fine
+        if (inFlight * 2 < limit.mLimit)
+        {
+            return;
+        }
+
+        double queued = Math.ceil(limit.mLimit * (1.0 - limit.mMinRtt / latency));
+        double step = Math.max(1.0, Math.log10(limit.mLimit));
+        double alpha = 3.0 * step;
+        double beta = 6.0 * step;
+
+        double newLimit;
+        if (queued <= step)
+        {
+            newLimit = limit.mLimit + beta;
+        }
+        else if (queued < alpha)
+        {
+            newLimit = limit.mLimit + step;
+        }
+        else if (queued > beta)
+        {
+            newLimit = limit.mLimit - step;
+        }
+        else
+        {
+            return;
+        }
+
+        newLimit = limit.mLimit * (1.0 - mSmoothing) + newLimit * mSmoothing;
+        limit.mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, newLimit));
+    }
+
+    private static class Limit
+    {
+        private double mLimit;
+        private int mInFlight = 0;
+        private int mQueued = 0;
+        private double mRtt = 0.0; // Nanoseconds
+        private double mMinRtt = 0.0; // Nanoseconds
+        private double mQueueDelay = 0.0; // Nanoseconds
+
+        Limit(int limit)
+        {
+            this.mLimit = limit;
+        }
+    }
+
+    /**
+     * Thrown when a request waited too long for a slot
+     */
+    public static class LimitExceededException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String mHost;
+        private final int mLimit;
+
+        public LimitExceededException(String host, int limit)
+        {
+            super("Too many requests in flight to " + host + " (limit " + limit + ")");
+            this.mHost = host;
+            this.mLimit = limit;
+        }
+
+        /**
+         * @return The host, as host:port
+         */
+        public String getHost()
+        {
+            return mHost;
+        }
+
+        public int getLimit()
+        {
+            return mLimit;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+/**
+ * A fast, thread-safe parser and formatter for HTTP dates.
+ * Parses all three formats allowed by RFC 7231 (RFC 1123, RFC 1036 and ANSI C's asctime()),
+ * and always formats as RFC 1123 in GMT.
+ * This does not use SimpleDateFormat or Calendar, and remembers the last value parsed and formatted,
+ * as the same Date/Expires values tend to be seen over and over.
+ */
+@SuppressWarnings("unused")
+public final class HttpDate
+{
+    /**
+     * Returned by parse when the date could not be parsed
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final String[] DAY_NAMES = { "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" }; // Starting at 1970-01-01
+    private static final String[] MONTH_NAMES = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static volatile CachedDate sLastParsed = null;
+    private static volatile CachedDate sLastFormatted = null;
+
+    private HttpDate()
+    {
+    }
+
+    private static final class CachedDate
+    {
+        final String text;
+        final long time;
+
+        CachedDate(String text, long time)
+        {
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    /**
+     * @param date A date in any of the HTTP date formats
+     * @return Milliseconds since epoch, or {@link #INVALID} if the date could not be parsed
+     */
+    public static long parse(final String date)
+    {
+        if (date == null)
+        {
+            return INVALID;
+        }
+
+        CachedDate cached = sLastParsed;
+        if (cached != null && cached.text.equals(date))
+        {
+            return cached.time;
+        }
+
+        long time = parseUncached(date);
+        if (time != INVALID)
+        {
+            sLastParsed = new CachedDate(date, time);
+        }
+        return time;
+    }
+
+    /**
+     * @param time Milliseconds since epoch
+     * @return The date formatted as RFC 1123, i.e. "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    public static String format(final long time)
+    {
+        long seconds = floorDiv(time, MILLIS_PER_SECOND);
+
+        CachedDate cached = sLastFormatted;
+        if (cached != null && cached.time == seconds)
+        {
+            return cached.text;
+        }
+
+        String text = formatUncached(seconds);
+        sLastFormatted = new CachedDate(text, seconds);
+        return text;
+    }
+
+    private static String formatUncached(final long seconds)
+    {
+        long days = floorDiv(seconds, SECONDS_PER_DAY);
+        int secondOfDay = (int)(seconds - days * SECONDS_PER_DAY);
+
+        // Civil from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int)(z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year < 0 || year > 9999)
+        {
+            throw new IllegalArgumentException("Year out of range: " + year);
+        }
+
+        String dayName = DAY_NAMES[(int)(((days % 7) + 7) % 7)];
+        String monthName = MONTH_NAMES[month - 1];
+        int hour = secondOfDay / 3600;
+        int minute = (secondOfDay / 60) % 60;
+        int second = secondOfDay % 60;
+
+        char[] chars = new char[29];
+        chars[0] = dayName.charAt(0);
+        chars[1] = dayName.charAt(1);
+        chars[2] = dayName.charAt(2);
+        chars[3] = ',';
+        chars[4] = ' ';
+        putTwoDigits(chars, 5, day);
+        chars[7] = ' ';
+        chars[8] = monthName.charAt(0);
+        chars[9] = monthName.charAt(1);
+        chars[10] = monthName.charAt(2);
+        chars[11] = ' ';
+        putTwoDigits(chars, 12, (int)(year / 100));
+        putTwoDigits(chars, 14, (int)(year % 100));
+        chars[16] = ' ';
+        putTwoDigits(chars, 17, hour);
+        chars[19] = ':';
+        putTwoDigits(chars, 20, minute);
+        chars[22] = ':';
+        putTwoDigits(chars, 23, second);
+        chars[25] = ' ';
+        chars[26] = 'G';
+        chars[27] = 'M';
+        chars[28] = 'T';
+        return new String(chars);
+    }
+
+    private static void putTwoDigits(char[] chars, int offset, int value)
+    {
+        chars[offset] = (char)('0' + value / 10);
+        chars[offset + 1] = (char)('0' + value % 10);
+    }
+
+    private static long parseUncached(final String date)
+    {
+        final int length = date.length();
+        final int[] position = { 0 };
+
+        skipWhitespace(date, position);
+
+        // Skip the day name, we do not need it
+        int start = position[0];
+        while (position[0] < length && isLetter(date.charAt(position[0])))
+        {
+            position[0]++;
+        }
+        int letters = position[0] - start;
+        if (letters > 0)
+        {
+            if (position[0] < length && date.charAt(position[0]) == ',')
+            {
+                position[0]++;
+            }
+            else if (letters == 3 && parseMonth(date, start) != -1 && !hasMonthAfter(date, position[0]))
+            {
+                // No day name, starts with the month (asctime without a day name)
+                position[0] = start;
+            }
+            skipWhitespace(date, position);
+        }
+
+        int day, month, year;
+        int hour, minute, second;
+        long offsetSeconds = 0;
+
+        if (position[0] < length && isLetter(date.charAt(position[0])))
+        {
+            // asctime: "Nov  6 08:49:37 1994"
+            month = parseMonth(date, position[0]);
+            if (month == -1) return INVALID;
+            position[0] += 3;
+            skipWhitespace(date, position);
+
+            day = parseNumber(date, position, 1, 2);
+            skipWhitespace(date, position);
+
+            hour = parseNumber(date, position, 1, 2);
+            if (!expect(date, position, ':')) return INVALID;
+            minute = parseNumber(date, position, 2, 2);
+            if (!expect(date, position, ':')) return INVALID;
+            second = parseNumber(date, position, 2, 2);
+            skipWhitespace(date, position);
+
+            year = parseNumber(date, position, 4, 4);
+        }
+        else
+        {
+            // RFC 1123: "06 Nov 1994 08:49:37 GMT", RFC 1036: "06-Nov-94 08:49:37 GMT"
+            day = parseNumber(date, position, 1, 2);
+            if (!skipSeparator(date, position)) return INVALID;
+
+            month = parseMonth(date, position[0]);
+            if (month == -1) return INVALID;
+            position[0] += 3;
+            if (!skipSeparator(date, position)) return INVALID;
+
+            int yearStart = position[0];
+            year = parseNumber(date, position, 2, 4);
+            if (year != -1 && position[0] - yearStart == 2)
+            {
+                // Two-digit years, as RFC 6265 suggests
+                year += year < 70 ? 2000 : 1900;
+            }
+            skipWhitespace(date, position);
+
+            hour = parseNumber(date, position, 1, 2);
+            if (!expect(date, position, ':')) return INVALID;
+            minute = parseNumber(date, position, 2, 2);
+            if (!expect(date, position, ':')) return INVALID;
+            second = parseNumber(date, position, 2, 2);
+            skipWhitespace(date, position);
+
+            offsetSeconds = parseZone(date, position);
+            if (offsetSeconds == INVALID) return INVALID;
+        }
+
+        if (day < 1 || day > 31 || year < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+        {
+            return INVALID;
+        }
+
+        if (second == 60)
+        {
+            second = 59; // Leap second
+        }
+
+        long days = daysFromCivil(year, month + 1, day);
+        return ((days * SECONDS_PER_DAY) + hour * 3600L + minute * 60L + second - offsetSeconds) * MILLIS_PER_SECOND;
+    }
+
+    private static long daysFromCivil(long year, int month, int day)
+    {
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        int yearOfEra = (int)(year - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y)
+    {
+        long result = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0))
+        {
+            result--;
+        }
+        return result;
+    }
+
+    private static boolean isLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static void skipWhitespace(String text, int[] position)
+    {
+        while (position[0] < text.length() && text.charAt(position[0]) == ' ')
+        {
+            position[0]++;
+        }
+    }
+
+    private static boolean skipSeparator(String text, int[] position)
+    {
+        int start = position[0];
+        while (position[0] < text.length() && (text.charAt(position[0]) == ' ' || text.charAt(position[0]) == '-'))
+        {
+            position[0]++;
+        }
+        return position[0] > start;
+    }
+
+    private static boolean expect(String text, int[] position, char c)
+    {
+        if (position[0] < text.length() && text.charAt(position[0]) == c)
+        {
+            position[0]++;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean hasMonthAfter(String text, int position)
+    {
+        int[] cursor = { position };
+        skipWhitespace(text, cursor);
+        return cursor[0] + 3 <= text.length() && parseMonth(text, cursor[0]) != -1;
+    }
+
+    /**
+     * @return The number, or -1 if there were not enough digits
+     */
+    private static int parseNumber(String text, int[] position, int minDigits, int maxDigits)
+    {
+        int value = 0;
+        int digits = 0;
+        while (digits < maxDigits && position[0] < text.length() && isDigit(text.charAt(position[0])))
+        {
+            value = value * 10 + (text.charAt(position[0]) - '0');
+            position[0]++;
+            digits++;
+        }
+        return digits < minDigits ? -1 : value;
+    }
+
+    /**
+     * @return Zero-based month, or -1
+     */
+    private static int parseMonth(String text, int position)
+    {
+        if (position + 3 > text.length())
+        {
+            return -1;
+        }
+
+        char c0 = (char)(text.charAt(position) | 0x20);
+        char c1 = (char)(text.charAt(position + 1) | 0x20);
+        char c2 = (char)(text.charAt(position + 2) | 0x20);
+
+        switch (c0)
+        {
+            case 'j':
+                if (c1 == 'a' && c2 == 'n') return 0;
+                if (c1 == 'u' && c2 == 'n') return 5;
+                if (c1 == 'u' && c2 == 'l') return 6;
+                return -1;
+            case 'f':
+                return c1 == 'e' && c2 == 'b' ? 1 : -1;
+            case 'm':
+                if (c1 == 'a' && c2 == 'r') return 2;
+                if (c1 == 'a' && c2 == 'y') return 4;
+                return -1;
+            case 'a':
+                if (c1 == 'p' && c2 == 'r') return 3;
+                if (c1 == 'u' && c2 == 'g') return 7;
+                return -1;
+            case 's':
+                return c1 == 'e' && c2 == 'p' ? 8 : -1;
+            case 'o':
+                return c1 == 'c' && c2 == 't' ? 9 : -1;
+            case 'n':
+                return c1 == 'o' && c2 == 'v' ? 10 : -1;
+            case 'd':
+                return c1 == 'e' && c2 == 'c' ? 11 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return The offset of the zone from GMT in seconds, or INVALID
+     */
+    private static long parseZone(String text, int[] position)
+    {
+        final int length = text.length();
+        if (position[0] >= length)
+        {
+            return 0; // Missing zone, assume GMT
+        }
+
+        char c = text.charAt(position[0]);
+        if (c == '+' || c == '-')
+        {
+            position[0]++;
+            int start = position[0];
+            int value = parseNumber(text, position, 4, 4);
+            if (value == -1 || position[0] - start != 4) return INVALID;
+            long offset = (value / 100) * 3600L + (value % 100) * 60L;
+            return c == '-' ? -offset : offset;
+        }
+
+        int start = position[0];
+        while (position[0] < length && isLetter(text.charAt(position[0])))
+        {
+            position[0]++;
+        }
+
+        String zone = text.substring(start, position[0]);
+        if (zone.equalsIgnoreCase("GMT") || zone.equalsIgnoreCase("UTC") || zone.equalsIgnoreCase("UT") || zone.equalsIgnoreCase("Z"))
+        {
+            if (position[0] < length && (text.charAt(position[0]) == '+' || text.charAt(position[0]) == '-'))
+            {
+                return parseZone(text, position); // i.e. "GMT+0200"
+            }
+            return 0;
+        }
+
+        return INVALID;
+    }
+}
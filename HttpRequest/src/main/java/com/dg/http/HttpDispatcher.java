@@ -0,0 +1,639 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules requests with a limit on how many run at once, in total and per host.
+ * Requests that are over a limit wait in a FIFO queue of their host, and hosts take turns (round-robin) as slots free up,
+ * so a burst to one host (or a slow host) does not starve requests to the others.
+ *
+ * Requests have a priority ({@link HttpRequest.Priority}). Queued interactive requests start before normal ones,
+ * and normal ones before background ones. Background requests are also capped separately,
+ * so a sync storm leaves room for what the user is waiting on.
+ *
+ * Set it on requests with {@link HttpRequest#setDispatcher(HttpDispatcher)}, and getResponseAsync() will go through it.
+ * Any other work can be scheduled with {@link #execute(URL, int, Runnable)}.
+ *
+ * If an executor rejects a task that was waiting in the queue, the task's {@link RejectionListener} is told.
+ * A task without one runs on the thread that tried to start it instead, so it's never lost.
+ */
+public class HttpDispatcher
+{
+    private static final int PRIORITY_COUNT = 3;
+
+    private final Executor mExecutor;
+
+    private final HashMap<String, HostQueue> mHosts = new HashMap<>();
+
+    /**
+     * Per priority, the hosts with queued calls of that priority that are under their limit, in turn order
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<HostQueue>[] mReadyHosts = new ArrayDeque[PRIORITY_COUNT];
+
+    private int mMaxRequests = 64;
+    private int mMaxRequestsPerHost = 5;
+    private int mMaxBackgroundRequests = 4;
+    private boolean mPreemptBackground = false;
+    private int mRunningCount = 0;
+    private final int[] mRunningCounts = new int[PRIORITY_COUNT];
+    private final int[] mQueuedCounts = new int[PRIORITY_COUNT];
+
+    private long mStartedCount = 0;
+    private long mTotalWaitTime = 0; // Nanoseconds
+    private long mMaxWaitTime = 0; // Nanoseconds
+
+    /**
+     * Creates a dispatcher that runs requests on its own thread pool
+     */
+    public HttpDispatcher()
+    {
+        this(createDefaultExecutor());
+    }
+
+    /**
+     * Creates a dispatcher that runs requests on the specified executor.
+     * The executor should be able to run at least getMaxRequests() tasks at once, or requests will wait for it as well.
+     */
+    public HttpDispatcher(Executor executor)
+    {
+        this.mExecutor = executor;
+        for (int i = 0; i < PRIORITY_COUNT; i++)
+        {
+            mReadyHosts[i] = new ArrayDeque<>();
+        }
+    }
+
+    private static ExecutorService createDefaultExecutor()
+    {
+        return Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "HttpDispatcher-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized int getMaxRequests()
+    {
+        return mMaxRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests running at once. Default is 64.
+     */
+    public void setMaxRequests(int maxRequests)
+    {
+        if (maxRequests < 1)
+        {
+            throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+        }
+        synchronized (this)
+        {
+            mMaxRequests = maxRequests;
+        }
+        promote();
+    }
+
+    public synchronized int getMaxRequestsPerHost()
+    {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of requests running at once to a single host (host and port). Default is 5.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost)
+    {
+        if (maxRequestsPerHost < 1)
+        {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+        synchronized (this)
+        {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            for (HostQueue host : mHosts.values())
+            {
+                updateReady(host);
+            }
+        }
+        promote();
+    }
+
+    public synchronized int getMaxBackgroundRequests()
+    {
+        return mMaxBackgroundRequests;
+    }
+
+    /**
+     * Sets the maximum number of background requests running at once, across all hosts. Default is 4.
+     */
+    public void setMaxBackgroundRequests(int maxBackgroundRequests)
+    {
+        if (maxBackgroundRequests < 1)
+        {
+            throw new IllegalArgumentException("maxBackgroundRequests < 1: " + maxBackgroundRequests);
+        }
+        synchronized (this)
+        {
+            mMaxBackgroundRequests = maxBackgroundRequests;
+        }
+        promote();
+    }
+
+    public synchronized boolean isPreemptBackground()
+    {
+        return mPreemptBackground;
+    }
+
+    /**
+     * When enabled, queued background requests are held back for as long as any interactive request is queued or running.
+     * Background requests that already started are not interrupted. Default is false.
+     */
+    public void setPreemptBackground(boolean preemptBackground)
+    {
+        synchronized (this)
+        {
+            mPreemptBackground = preemptBackground;
+        }
+        promote();
+    }
+
+    /**
+     * @return An executor that schedules tasks through this dispatcher, as normal priority requests to the host of the specified url
+     */
+    public Executor getExecutor(URL url)
+    {
+        return getExecutor(url, HttpRequest.Priority.NORMAL, null);
+    }
+
+    /**
+     * @param url The url whose host the tasks are counted for
+     * @param priority The priority of the tasks, one of {@link HttpRequest.Priority}
+     * @param executor The executor to run the tasks on once they are allowed to start, or null for the dispatcher's executor
+     * @return An executor that schedules tasks through this dispatcher, as requests to the host of the specified url
+     */
+    public Executor getExecutor(URL url, int priority, Executor executor)
+    {
+        return getExecutor(url, priority, executor, null);
+    }
+
+    /**
+     * @param url The url whose host the tasks are counted for
+     * @param priority The priority of the tasks, one of {@link HttpRequest.Priority}
+     * @param executor The executor to run the tasks on once they are allowed to start, or null for the dispatcher's executor
+     * @param rejectionListener Told when the executor rejects a task, instead of it throwing. May be null.
+     * @return An executor that schedules tasks through this dispatcher, as requests to the host of the specified url
+     */
+    public Executor getExecutor(URL url, int priority, Executor executor, final RejectionListener rejectionListener)
+    {
+        final String hostKey = getHostKey(url);
+        final int checkedPriority = checkPriority(priority);
+        final Executor target = executor == null ? mExecutor : executor;
+        return new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                enqueue(new Call(hostKey, checkedPriority, command, target, rejectionListener));
+            }
+        };
+    }
+
+    /**
+     * Schedules a task, counted as a normal priority request to the host of the specified url
+     */
+    public void execute(URL url, Runnable task)
+    {
+        execute(url, HttpRequest.Priority.NORMAL, task);
+    }
+
+    /**
+     * Schedules a task, counted as a request to the host of the specified url
+     * @param priority The priority of the task, one of {@link HttpRequest.Priority}
+     */
+    public void execute(URL url, int priority, Runnable task)
+    {
+        execute(url, priority, task, null);
+    }
+
+    /**
+     * Schedules a task, counted as a request to the host of the specified url
+     * @param priority The priority of the task, one of {@link HttpRequest.Priority}
+     * @param rejectionListener Told when the dispatcher's executor rejects the task, instead of it throwing. May be null.
+     */
+    public void execute(URL url, int priority, Runnable task, RejectionListener rejectionListener)
+    {
+        enqueue(new Call(getHostKey(url), checkPriority(priority), task, mExecutor, rejectionListener));
+    }
+
+    private static int checkPriority(int priority)
+    {
+        if (priority < HttpRequest.Priority.INTERACTIVE || priority > HttpRequest.Priority.BACKGROUND)
+        {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        return priority;
+    }
+
+    /**
+     * @return The key that requests are grouped by, which is the host and port
+     */
+    public static String getHostKey(URL url)
+    {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+    }
+
+    public synchronized int getRunningCount()
+    {
+        return mRunningCount;
+    }
+
+    public synchronized int getQueuedCount()
+    {
+        int count = 0;
+        for (int queued : mQueuedCounts)
+        {
+            count += queued;
+        }
+        return count;
+    }
+
+    /**
+     * @param priority One of {@link HttpRequest.Priority}
+     */
+    public synchronized int getRunningCount(int priority)
+    {
+        return mRunningCounts[checkPriority(priority)];
+    }
+
+    /**
+     * @param priority One of {@link HttpRequest.Priority}
+     */
+    public synchronized int getQueuedCount(int priority)
+    {
+        return mQueuedCounts[checkPriority(priority)];
+    }
+
+    public synchronized int getRunningCount(URL url)
+    {
+        HostQueue host = mHosts.get(getHostKey(url));
+        return host == null ? 0 : host.mRunning;
+    }
+
+    public synchronized int getQueuedCount(URL url)
+    {
+        HostQueue host = mHosts.get(getHostKey(url));
+        return host == null ? 0 : host.getQueuedCount();
+    }
+
+    /**
+     * @return The number of queued requests per host key (see {@link #getHostKey(URL)}), for hosts that have any
+     */
+    public synchronized Map<String, Integer> getQueueDepths()
+    {
+        HashMap<String, Integer> depths = new HashMap<>();
+        for (HostQueue host : mHosts.values())
+        {
+            int queued = host.getQueuedCount();
+            if (queued > 0)
+            {
+                depths.put(host.mHostKey, queued);
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * @return The number of requests started so far
+     */
+    public synchronized long getStartedCount()
+    {
+        return mStartedCount;
+    }
+
+    /**
+     * @return The average time in milliseconds that started requests waited in the queue
+     */
+    public synchronized double getAverageWaitTime()
+    {
+        return mStartedCount == 0 ? 0.0 : mTotalWaitTime / (double) mStartedCount / 1000000.0;
+    }
+
+    /**
+     * @return The longest time in milliseconds that a started request waited in the queue
+     */
+    public synchronized double getMaxWaitTime()
+    {
+        return mMaxWaitTime / 1000000.0;
+    }
+
+    /**
+     * Resets the wait time statistics
+     */
+    public synchronized void resetStats()
+    {
+        mStartedCount = 0;
+        mTotalWaitTime = 0;
+        mMaxWaitTime = 0;
+    }
+
+    private void enqueue(Call call)
+    {
+        synchronized (this)
+        {
+            HostQueue host = mHosts.get(call.mHostKey);
+            if (host == null)
+            {
+                host = new HostQueue(call.mHostKey);
+                mHosts.put(call.mHostKey, host);
+            }
+            host.mQueues[call.mPriority].addLast(call);
+            mQueuedCounts[call.mPriority]++;
+            updateReady(host);
+        }
+        promote(call);
+    }
+
+    /**
+     * Adds the host to the turn order of each priority it has queued calls of, if it is under its limit
+     */
+    private void updateReady(HostQueue host)
+    {
+        if (host.mRunning >= mMaxRequestsPerHost) return;
+
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++)
+        {
+            if (!host.mReady[priority] && !host.mQueues[priority].isEmpty())
+            {
+                host.mReady[priority] = true;
+                mReadyHosts[priority].addLast(host);
+            }
+        }
+    }
+
+    /**
+     * @return Whether a queued call of the specified priority may start now, limits of its host aside
+     */
+    private boolean canStart(int priority)
+    {
+        if (mRunningCount >= mMaxRequests) return false;
+
+        if (priority == HttpRequest.Priority.BACKGROUND)
+        {
+            if (mRunningCounts[priority] >= mMaxBackgroundRequests) return false;
+
+            int interactive = HttpRequest.Priority.INTERACTIVE;
+            if (mPreemptBackground && (mRunningCounts[interactive] > 0 || mQueuedCounts[interactive] > 0)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts as many queued calls as the limits allow, higher priorities first
+     */
+    private void promote()
+    {
+        promote(null);
+    }
+
+    /**
+     * Starts as many queued calls as the limits allow, higher priorities first.
+     * A call rejected by its executor is reported to its own listener, and never to whoever is promoting.
+     * @param ownCall The call that the current thread has just enqueued, or null.
+     *                If it's rejected and has no listener, the rejection is thrown to the current thread, which owns it.
+     */
+    private void promote(Call ownCall)
+    {
+        RejectedExecutionException ownRejection = null;
+
+        // Loops for as long as rejections give slots back that queued calls can take
+        boolean slotsReleased = true;
+        while (slotsReleased)
+        {
+            slotsReleased = false;
+
+            for (Call call : takeStartableCalls())
+            {
+                try
+                {
+                    call.mExecutor.execute(call);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    if (call.mRejectionListener != null)
+                    {
+                        release(call);
+                        call.mRejectionListener.onRejected(e);
+                    }
+                    else if (call == ownCall)
+                    {
+                        release(call);
+                        ownRejection = e;
+                    }
+                    else
+                    {
+                        // Nobody to tell, so run it here rather than losing it. It keeps its slot while it runs.
+                        try
+                        {
+                            call.mTask.run();
+                        }
+                        finally
+                        {
+                            release(call);
+                        }
+                    }
+                    slotsReleased = true;
+                }
+            }
+        }
+
+        if (ownRejection != null)
+        {
+            throw ownRejection;
+        }
+    }
+
+    /**
+     * Takes the calls that may start now off their queues, and counts them as running
+     */
+    private synchronized ArrayList<Call> takeStartableCalls()
+    {
+        ArrayList<Call> calls = new ArrayList<>();
+        long now = System.nanoTime();
+
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++)
+        {
+            ArrayDeque<HostQueue> readyHosts = mReadyHosts[priority];
+
+            while (canStart(priority) && !readyHosts.isEmpty())
+            {
+                HostQueue host = readyHosts.pollFirst();
+                host.mReady[priority] = false;
+
+                // The host may have reached its limit through calls of other priorities
+                if (host.mRunning >= mMaxRequestsPerHost) continue;
+
+                Call call = host.mQueues[priority].pollFirst();
+                host.mRunning++;
+                mRunningCount++;
+                mRunningCounts[priority]++;
+                mQueuedCounts[priority]--;
+
+                long wait = now - call.mEnqueueTime;
+                mStartedCount++;
+                mTotalWaitTime += wait;
+                if (wait > mMaxWaitTime)
+                {
+                    mMaxWaitTime = wait;
+                }
+
+                updateReady(host);
+                calls.add(call);
+            }
+        }
+
+        return calls;
+    }
+
+    private void finished(Call call)
+    {
+        release(call);
+        promote();
+    }
+
+    /**
+     * Gives back the slots a call was holding, without starting other calls
+     */
+    private void release(Call call)
+    {
+        synchronized (this)
+        {
+            HostQueue host = mHosts.get(call.mHostKey);
+            host.mRunning--;
+            if (host.mRunning == 0 && host.getQueuedCount() == 0)
+            {
+                mHosts.remove(call.mHostKey);
+            }
+            else
+            {
+                updateReady(host);
+            }
+            mRunningCount--;
+            mRunningCounts[call.mPriority]--;
+        }
+    }
+
+    private static final class HostQueue
+    {
+        final String mHostKey;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayDeque<Call>[] mQueues = new ArrayDeque[PRIORITY_COUNT];
+        final boolean[] mReady = new boolean[PRIORITY_COUNT];
+        int mRunning = 0;
+
+        HostQueue(String hostKey)
+        {
+            this.mHostKey = hostKey;
+            for (int i = 0; i < PRIORITY_COUNT; i++)
+            {
+                mQueues[i] = new ArrayDeque<>();
+            }
+        }
+
+        int getQueuedCount()
+        {
+            int count = 0;
+            for (ArrayDeque<Call> queue : mQueues)
+            {
+                count += queue.size();
+            }
+            return count;
+        }
+    }
+
+    public abstract static class RejectionListener
+    {
+        /**
+         * Called when the executor rejected the task, which will not run.
+         * May be called on the thread that scheduled it, or on a thread that was finishing another task.
+         */
+        public abstract void onRejected(RejectedExecutionException e);
+    }
+
+    private final class Call implements Runnable
+    {
+        final String mHostKey;
+        final int mPriority;
+        final Runnable mTask;
+        final Executor mExecutor;
+        final RejectionListener mRejectionListener;
+        final long mEnqueueTime = System.nanoTime();
+
+        Call(String hostKey, int priority, Runnable task, Executor executor, RejectionListener rejectionListener)
+        {
+            this.mHostKey = hostKey;
+            this.mPriority = priority;
+            this.mTask = task;
+            this.mExecutor = executor;
+            this.mRejectionListener = rejectionListener;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                mTask.run();
+            }
+            finally
+            {
+                finished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+/**
+ * Interfaces for streaming with backpressure, in the same shape as java.util.concurrent.Flow (and Reactive Streams),
+ * which are not available on all the platforms this library supports.
+ * Adapting to either takes a few lines that forward each call.
+ *
+ * See {@link HttpResponse#getBodyPublisher()} and {@link HttpRequest#setRequestBody(Publisher, long)}.
+ */
+public final class HttpFlow
+{
+    private HttpFlow()
+    {
+    }
+
+    public interface Publisher<T>
+    {
+        /**
+         * Adds a subscriber. Its onSubscribe() is called first, and then items are delivered as it requests them.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T>
+    {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription
+    {
+        /**
+         * Requests up to n more items
+         */
+        void request(long n);
+
+        /**
+         * Stops delivery of items, and releases the resources behind the subscription
+         */
+        void cancel();
+    }
+}
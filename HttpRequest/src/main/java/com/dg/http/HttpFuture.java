@@ -0,0 +1,215 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a request that runs in the background, see {@link HttpRequest#getResponseFuture()}.
+ * Besides blocking on get(), callbacks can be added to be notified when it completes.
+ * Canceling the future aborts the request.
+ */
+public class HttpFuture<V> implements Future<V>
+{
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELED = 3;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private int mState = STATE_PENDING;
+    private V mResult = null;
+    private Exception mError = null;
+    private ArrayList<Callback<? super V>> mCallbacks = new ArrayList<>();
+
+    HttpFuture()
+    {
+    }
+
+    /**
+     * Completes the future with a result
+     * @return False if it was already completed
+     */
+    boolean complete(V result)
+    {
+        return finish(STATE_SUCCEEDED, result, null);
+    }
+
+    /**
+     * Completes the future with an error
+     * @return False if it was already completed
+     */
+    boolean fail(Exception error)
+    {
+        return finish(STATE_FAILED, null, error);
+    }
+
+    /**
+     * Called when the future is canceled, to abort the work behind it
+     */
+    protected void onCancel(boolean mayInterruptIfRunning)
+    {
+    }
+
+    private boolean finish(int state, V result, Exception error)
+    {
+        ArrayList<Callback<? super V>> callbacks;
+        synchronized (this)
+        {
+            if (mState != STATE_PENDING) return false;
+            mState = state;
+            mResult = result;
+            mError = error;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+
+        mDone.countDown();
+
+        for (Callback<? super V> callback : callbacks)
+        {
+            notify(callback);
+        }
+        return true;
+    }
+
+    private void notify(Callback<? super V> callback)
+    {
+        int state;
+        synchronized (this)
+        {
+            state = mState;
+        }
+
+        if (state == STATE_SUCCEEDED)
+        {
+            callback.onSuccess(mResult);
+        }
+        else if (state == STATE_FAILED)
+        {
+            callback.onFailure(mError);
+        }
+        else
+        {
+            callback.onFailure(new CancellationException());
+        }
+    }
+
+    /**
+     * Adds a callback to be called when the future completes, on the thread that completes it.
+     * If it has already completed, the callback is called right away on the calling thread.
+     */
+    public HttpFuture<V> addCallback(Callback<? super V> callback)
+    {
+        synchronized (this)
+        {
+            if (mState == STATE_PENDING)
+            {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        notify(callback);
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        if (!finish(STATE_CANCELED, null, null)) return false;
+        onCancel(mayInterruptIfRunning);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return mState == STATE_CANCELED;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return mState != STATE_PENDING;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException
+    {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!mDone.await(timeout, unit))
+        {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized V getResult() throws ExecutionException
+    {
+        if (mState == STATE_CANCELED)
+        {
+            throw new CancellationException();
+        }
+        if (mState == STATE_FAILED)
+        {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+
+    /**
+     * @return The error the future failed with, or null if it did not fail (yet)
+     */
+    public synchronized Exception getError()
+    {
+        return mError;
+    }
+
+    public abstract static class Callback<V>
+    {
+        /**
+         * Called when the future completed successfully
+         */
+        public abstract void onSuccess(V result);
+
+        /**
+         * Called when the future failed, or with a CancellationException if it was canceled
+         */
+        public abstract void onFailure(Exception error);
+    }
+}
@@ -0,0 +1,440 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cuts tail latency by hedging: if the response headers did not arrive within a delay, a duplicate request is sent,
+ * and whichever responds first is used. The other one is aborted through its requestShouldAbort flag, and discarded if it responds anyway.
+ *
+ * The delay is fixed, or adapts to a percentile of the latency observed so far, i.e. hedging the slowest 5%.
+ * The number of hedges is capped to a ratio of the requests, so a slow backend is not hit with double the load.
+ * Only idempotent requests without a body (GET, HEAD and OPTIONS) are hedged.
+ *
+ * Set it on requests with {@link HttpRequest#setHedgingPolicy(HttpHedgingPolicy)}, and getResponse() will hedge them.
+ * Both attempts run on the policy's executor, while the calling thread waits for the first response.
+ * A progress listener only gets the progress of the first attempt.
+ */
+public class HttpHedgingPolicy
+{
+    private static final int MAX_SAMPLES = 1000; // Latencies kept for the adaptive delay
+    private static final int MIN_SAMPLES = 20; // Below that, the fixed delay is used
+    private static final int SAMPLES_PER_UPDATE = 50; // New latencies after which the adaptive delay is computed again
+    private static final double MAX_BUDGET = 10.0; // Hedges that may fire in a burst
+    private static final long ABORT_POLL_INTERVAL = 50L; // How often the caller's requestShouldAbort is checked while waiting
+
+    private long mDelay = 100L;
+    private double mDelayPercentile = 0.0;
+    private double mMaxHedgeRatio = 0.1;
+    private Executor mExecutor = null;
+
+    private final long[] mSamples = new long[MAX_SAMPLES]; // Nanoseconds to headers, a ring buffer
+    private int mSampleCount = 0;
+    private int mNextSample = 0;
+    private long mPercentileDelay = -1L; // The adaptive delay, or -1 if it has to be computed
+    private int mSamplesSinceUpdate = 0;
+    private double mBudget = MAX_BUDGET;
+
+    private long mRequestCount = 0;
+    private long mHedgeCount = 0;
+    private long mHedgeWinCount = 0;
+
+    public long getDelay()
+    {
+        return mDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait for the response headers before sending a hedge. Default is 100.
+     * When an adaptive percentile is set, this is used until enough latency was observed.
+     */
+    public synchronized HttpHedgingPolicy setDelay(long delay)
+    {
+        this.mDelay = delay;
+        return this;
+    }
+
+    public double getDelayPercentile()
+    {
+        return mDelayPercentile;
+    }
+
+    /**
+     * Sets the delay to adapt to a percentile of the observed latency, i.e. 95 to hedge the slowest 5% of requests.
+     * Default is 0, for the fixed delay.
+     */
+    public synchronized HttpHedgingPolicy setDelayPercentile(double percentile)
+    {
+        if (percentile < 0.0 || percentile >= 100.0)
+        {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        this.mDelayPercentile = percentile;
+        this.mPercentileDelay = -1L;
+        return this;
+    }
+
+    public double getMaxHedgeRatio()
+    {
+        return mMaxHedgeRatio;
+    }
+
+    /**
+     * Sets the maximum number of hedges as a ratio of requests. Default is 0.1, for up to 10% additional requests.
+     * Short bursts over that are allowed.
+     */
+    public synchronized HttpHedgingPolicy setMaxHedgeRatio(double ratio)
+    {
+        this.mMaxHedgeRatio = ratio;
+        return this;
+    }
+
+    public Executor getExecutor()
+    {
+        return mExecutor;
+    }
+
+    /**
+     * Sets the executor that the attempts run on. Default is null, for {@link HttpRequest#getDefaultFutureExecutor()}.
+     */
+    public HttpHedgingPolicy setExecutor(Executor executor)
+    {
+        this.mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @return Whether the request may be hedged. Sending it twice must be harmless.
+     */
+    protected boolean shouldHedge(HttpRequest request)
+    {
+        String method = request.getHttpMethod();
+        return (method.equals(HttpRequest.HttpMethod.GET) ||
+                method.equals(HttpRequest.HttpMethod.HEAD) ||
+                method.equals(HttpRequest.HttpMethod.OPTIONS)) &&
+                !request.hasRequestBody();
+    }
+
+    /**
+     * @return The delay in milliseconds that a hedge is sent after, at the moment.
+     * The adaptive delay is computed again after every 50 new latencies.
+     */
+    public synchronized long getCurrentDelay()
+    {
+        if (mDelayPercentile <= 0.0 || mSampleCount < MIN_SAMPLES)
+        {
+            return mDelay;
+        }
+
+        if (mPercentileDelay < 0L || mSamplesSinceUpdate >= SAMPLES_PER_UPDATE)
+        {
+            mPercentileDelay = computePercentileDelay();
+            mSamplesSinceUpdate = 0;
+        }
+        return mPercentileDelay;
+    }
+
+    private long computePercentileDelay()
+    {
+        long[] samples = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(mDelayPercentile / 100.0 * samples.length) - 1;
+        index = Math.max(0, Math.min(samples.length - 1, index));
+        return Math.max(1L, samples[index] / 1000000L);
+    }
+
+    public synchronized long getRequestCount()
+    {
+        return mRequestCount;
+    }
+
+    /**
+     * @return How many hedges were sent
+     */
+    public synchronized long getHedgeCount()
+    {
+        return mHedgeCount;
+    }
+
+    /**
+     * @return How many hedges responded before the original request
+     */
+    public synchronized long getHedgeWinCount()
+    {
+        return mHedgeWinCount;
+    }
+
+    /**
+     * @return The ratio of requests that were hedged
+     */
+    public synchronized double getHedgeRate()
+    {
+        return mRequestCount == 0 ? 0.0 : mHedgeCount / (double) mRequestCount;
+    }
+
+    /**
+     * @return The ratio of hedges that responded before the original request
+     */
+    public synchronized double getHedgeWinRate()
+    {
+        return mHedgeCount == 0 ? 0.0 : mHedgeWinCount / (double) mHedgeCount;
+    }
+
+    /**
+     * Resets the counters. The observed latency is kept.
+     */
+    public synchronized void resetStats()
+    {
+        mRequestCount = 0;
+        mHedgeCount = 0;
+        mHedgeWinCount = 0;
+    }
+
+    private synchronized long startRequest()
+    {
+        mRequestCount++;
+        mBudget = Math.min(MAX_BUDGET, mBudget + mMaxHedgeRatio);
+        return getCurrentDelay();
+    }
+
+    private synchronized boolean tryStartHedge()
+    {
+        if (mBudget < 1.0) return false;
+
+        mBudget -= 1.0;
+        mHedgeCount++;
+        return true;
+    }
+
+    private synchronized void hedgeWon()
+    {
+        mHedgeWinCount++;
+    }
+
+    private synchronized void addSample(long latency)
+    {
+        mSamples[mNextSample] = latency;
+        mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+        if (mSampleCount < MAX_SAMPLES)
+        {
+            mSampleCount++;
+        }
+        mSamplesSinceUpdate++;
+    }
+
+    /**
+     * Sends the request, and a hedge if needed
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponse(HttpRequest request, HttpRequest.ProgressListener progressListener, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        long delay = startRequest();
+        Hedge hedge = new Hedge();
+
+        try
+        {
+            start(hedge, 0, request, progressListener);
+
+            long hedgeAt = System.nanoTime() + delay * 1000000L;
+            boolean hedged = false;
+
+            synchronized (hedge)
+            {
+                while (!hedge.isDecided())
+                {
+                    if (requestShouldAbort != null && requestShouldAbort.get())
+                    {
+                        return null;
+                    }
+
+                    long wait = ABORT_POLL_INTERVAL;
+                    if (!hedged)
+                    {
+                        long remaining = (hedgeAt - System.nanoTime()) / 1000000L;
+                        if (remaining <= 0L)
+                        {
+                            hedged = true;
+                            if (tryStartHedge())
+                            {
+                                start(hedge, 1, request, null);
+                            }
+                            continue;
+                        }
+                        wait = Math.min(wait, remaining);
+                    }
+
+                    hedge.wait(wait);
+                }
+            }
+
+            if (hedge.mWinner == 1)
+            {
+                hedgeWon();
+            }
+
+            if (hedge.mWinner == -1)
+            {
+                Exception error = hedge.mErrors[0] != null ? hedge.mErrors[0] : hedge.mErrors[1];
+                if (error instanceof IOException)
+                {
+                    throw (IOException) error;
+                }
+                if (error instanceof RuntimeException)
+                {
+                    throw (RuntimeException) error;
+                }
+                throw new IOException(error);
+            }
+
+            return hedge.mResponses[hedge.mWinner];
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response", e);
+        }
+        finally
+        {
+            hedge.finish();
+        }
+    }
+
+    private void start(final Hedge hedge, final int attempt, final HttpRequest request, final HttpRequest.ProgressListener progressListener)
+    {
+        synchronized (hedge)
+        {
+            hedge.mStarted++;
+        }
+
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long start = System.nanoTime();
+                HttpResponse response = null;
+                try
+                {
+                    response = request.getResponseOnce(progressListener, hedge.mAborts[attempt], null);
+                    if (attempt == 0 && response != null)
+                    {
+                        // Only the original requests are sampled, hedges see a different latency
+                        addSample(System.nanoTime() - start);
+                    }
+
+                    if (response == null)
+                    {
+                        hedge.failed(attempt, new IOException("Canceled"));
+                    }
+                    else if (!hedge.responded(attempt, response))
+                    {
+                        response.discard();
+                    }
+                }
+                catch (Exception e)
+                {
+                    if (response != null)
+                    {
+                        response.discard();
+                    }
+                    hedge.failed(attempt, e);
+                }
+            }
+        };
+
+        Executor executor = mExecutor != null ? mExecutor : HttpRequest.getDefaultFutureExecutor();
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            hedge.failed(attempt, e);
+        }
+    }
+
+    private static class Hedge
+    {
+        private final AtomicBoolean[] mAborts = { new AtomicBoolean(false), new AtomicBoolean(false) };
+        private final HttpResponse[] mResponses = new HttpResponse[2];
+        private final Exception[] mErrors = new Exception[2];
+        private int mStarted = 0;
+        private int mFailed = 0;
+        private int mWinner = -2; // -2 while undecided, -1 if all attempts failed
+        private boolean mFinished = false;
+
+        synchronized boolean isDecided()
+        {
+            return mWinner != -2;
+        }
+
+        /**
+         * @return False if another attempt already won, or the caller gave up
+         */
+        synchronized boolean responded(int attempt, HttpResponse response)
+        {
+            if (mFinished || mWinner != -2) return false;
+
+            mResponses[attempt] = response;
+            mWinner = attempt;
+            mAborts[1 - attempt].set(true);
+            notifyAll();
+            return true;
+        }
+
+        synchronized void failed(int attempt, Exception error)
+        {
+            mErrors[attempt] = error;
+            mFailed++;
+            if (mWinner == -2 && mFailed == mStarted)
+            {
+                // Hedging is not retrying, so a fast failure of the original is reported as is
+                mWinner = -1;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Aborts the attempts that did not win. Their responses are discarded when they arrive.
+         */
+        synchronized void finish()
+        {
+            mFinished = true;
+            for (int i = 0; i < mAborts.length; i++)
+            {
+                if (i != mWinner)
+                {
+                    mAborts[i].set(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coordinates the requests to each host with the rate limits the host announces, so one request learning about a limit holds back all of them.
+ * <ul>
+ * <li>A 429 or 503 response with Retry-After pauses all new requests to the host until then.</li>
+ * <li>X-RateLimit-Remaining / X-RateLimit-Reset (or RateLimit-Remaining / RateLimit-Reset) headers pause requests once the quota is used up,
+ * and spread the last few requests over what is left of the window.</li>
+ * <li>Optionally, requests are paced on our side with a token bucket.</li>
+ * </ul>
+ * A request that would have to wait longer than {@link #setMaxWait(long)} fails right away with a {@link RateLimitedException}.
+ * Set it on requests with {@link HttpRequest#setRateLimitCoordinator(HttpRateLimitCoordinator)}, it's meant to be shared between them.
+ */
+public class HttpRateLimitCoordinator
+{
+    private static final long ABORT_POLL_INTERVAL = 50L; // How often requestShouldAbort is checked while waiting
+    private static final long EPOCH_RESET_THRESHOLD = 1000000000L; // Reset values above this are epoch seconds, not seconds from now
+
+    private static final String HEADER_RATE_LIMIT_REMAINING = "X-RateLimit-Remaining";
+    private static final String HEADER_RATE_LIMIT_RESET = "X-RateLimit-Reset";
+    private static final String HEADER_IETF_RATE_LIMIT_REMAINING = "RateLimit-Remaining";
+    private static final String HEADER_IETF_RATE_LIMIT_RESET = "RateLimit-Reset";
+
+    private double mRequestsPerSecond = 0.0;
+    private int mBurst = 1;
+    private long mMaxWait = 60000L;
+    private long mDefaultRetryAfter = 1000L;
+    private int mPacingThreshold = 10;
+
+    private final HashMap<String, Host> mHosts = new HashMap<>();
+    private long mWaitCount = 0;
+    private long mTotalWaitTime = 0; // Milliseconds
+    private long mRejectedCount = 0;
+
+    /**
+     * Paces requests to each host on our side, with a token bucket
+     * @param requestsPerSecond The sustained rate per host, or 0 (the default) not to pace
+     * @param burst The number of requests that may go at once after a quiet period
+     */
+    public synchronized HttpRateLimitCoordinator setRequestsPerSecond(double requestsPerSecond, int burst)
+    {
+        if (burst < 1)
+        {
+            throw new IllegalArgumentException("burst < 1: " + burst);
+        }
+        this.mRequestsPerSecond = requestsPerSecond;
+        this.mBurst = burst;
+        return this;
+    }
+
+    public double getRequestsPerSecond()
+    {
+        return mRequestsPerSecond;
+    }
+
+    public int getBurst()
+    {
+        return mBurst;
+    }
+
+    public long getMaxWait()
+    {
+        return mMaxWait;
+    }
+
+    /**
+     * Sets the longest time in milliseconds a request waits for the host's rate limit. Default is 60000.
+     */
+    public synchronized HttpRateLimitCoordinator setMaxWait(long maxWait)
+    {
+        this.mMaxWait = maxWait;
+        return this;
+    }
+
+    public long getDefaultRetryAfter()
+    {
+        return mDefaultRetryAfter;
+    }
+
+    /**
+     * Sets how long in milliseconds requests are paused after a 429 response that did not say how long. Default is 1000.
+     */
+    public synchronized HttpRateLimitCoordinator setDefaultRetryAfter(long defaultRetryAfter)
+    {
+        this.mDefaultRetryAfter = defaultRetryAfter;
+        return this;
+    }
+
+    public int getPacingThreshold()
+    {
+        return mPacingThreshold;
+    }
+
+    /**
+     * Sets the remaining quota below which requests are spread over the rest of the window, instead of going as fast as they come. Default is 10.
+     */
+    public synchronized HttpRateLimitCoordinator setPacingThreshold(int pacingThreshold)
+    {
+        this.mPacingThreshold = pacingThreshold;
+        return this;
+    }
+
+    /**
+     * @return The time in milliseconds until requests to the host may go again, or 0 if they may go now
+     */
+    public synchronized long getPausedTime(URL url)
+    {
+        Host host = mHosts.get(HttpDispatcher.getHostKey(url));
+        return host == null ? 0L : Math.max(0L, host.mPausedUntil - now());
+    }
+
+    /**
+     * @return The remaining quota the host announced, less the requests sent since, or -1 if it did not announce one
+     */
+    public synchronized long getRemaining(URL url)
+    {
+        Host host = mHosts.get(HttpDispatcher.getHostKey(url));
+        return host == null || host.mResetAt <= now() ? -1L : host.mRemaining;
+    }
+
+    /**
+     * Pauses requests to the host, i.e. when the limit is known from somewhere else
+     * @param duration The time in milliseconds
+     */
+    public synchronized void pause(URL url, long duration)
+    {
+        Host host = getHost(HttpDispatcher.getHostKey(url));
+        host.mPausedUntil = Math.max(host.mPausedUntil, now() + duration);
+    }
+
+    /**
+     * @return How many requests had to wait
+     */
+    public synchronized long getWaitCount()
+    {
+        return mWaitCount;
+    }
+
+    /**
+     * @return The total time in milliseconds requests waited
+     */
+    public synchronized long getTotalWaitTime()
+    {
+        return mTotalWaitTime;
+    }
+
+    /**
+     * @return How many requests failed because they would have waited too long
+     */
+    public synchronized long getRejectedCount()
+    {
+        return mRejectedCount;
+    }
+
+    public synchronized void resetStats()
+    {
+        mWaitCount = 0;
+        mTotalWaitTime = 0;
+        mRejectedCount = 0;
+    }
+
+    /**
+     * Waits until a request may be sent to the host
+     * @return False if aborted meanwhile
+     */
+    boolean acquire(URL url, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        String hostKey = HttpDispatcher.getHostKey(url);
+        long wait;
+
+        synchronized (this)
+        {
+            Host host = getHost(hostKey);
+            long now = now();
+            wait = Math.max(0L, host.mPausedUntil - now);
+
+            if (host.mRemaining >= 0 && host.mResetAt > now)
+            {
+                if (host.mRemaining == 0)
+                {
+                    wait = Math.max(wait, host.mResetAt - now);
+                }
+                else if (host.mRemaining < mPacingThreshold)
+                {
+                    // Spread what is left over the rest of the window
+                    long interval = (host.mResetAt - now) / (host.mRemaining + 1);
+                    long slot = Math.max(now, host.mNextSlot);
+                    host.mNextSlot = slot + interval;
+                    wait = Math.max(wait, slot - now);
+                }
+            }
+
+            if (mRequestsPerSecond > 0.0)
+            {
+                // Tokens go negative for requests that reserved a future slot
+                host.mTokens = Math.min(mBurst, host.mTokens + (now - host.mRefilledAt) * mRequestsPerSecond / 1000.0);
+                host.mRefilledAt = now;
+                if (host.mTokens < 1.0)
+                {
+                    wait = Math.max(wait, (long) Math.ceil((1.0 - host.mTokens) * 1000.0 / mRequestsPerSecond));
+                }
+            }
+
+            if (wait > mMaxWait)
+            {
+                mRejectedCount++;
+                throw new RateLimitedException(hostKey, wait);
+            }
+
+            if (mRequestsPerSecond > 0.0)
+            {
+                host.mTokens -= 1.0;
+            }
+            if (host.mRemaining > 0)
+            {
+                host.mRemaining--;
+            }
+            if (wait > 0L)
+            {
+                mWaitCount++;
+                mTotalWaitTime += wait;
+            }
+        }
+
+        return sleep(wait, requestShouldAbort);
+    }
+
+    /**
+     * Learns the host's limits from the response
+     */
+    void onResponse(URL url, HttpResponse response)
+    {
+        int statusCode = response.getStatusCode();
+        long retryAfter = response.getRetryAfter();
+        long remaining = parseLong(response.getHeader(HEADER_RATE_LIMIT_REMAINING));
+        long reset = parseLong(response.getHeader(HEADER_RATE_LIMIT_RESET));
+        if (remaining < 0L)
+        {
+            remaining = parseLong(response.getHeader(HEADER_IETF_RATE_LIMIT_REMAINING));
+            reset = parseLong(response.getHeader(HEADER_IETF_RATE_LIMIT_RESET));
+        }
+
+        boolean limited = statusCode == HttpResponse.StatusCodes.TOO_MANY_REQUESTS;
+        if (retryAfter < 0L && remaining < 0L && !limited) return;
+
+        synchronized (this)
+        {
+            Host host = getHost(HttpDispatcher.getHostKey(url));
+            long now = now();
+
+            if (remaining >= 0L && reset >= 0L)
+            {
+                long resetIn = reset > EPOCH_RESET_THRESHOLD ? reset * 1000L - System.currentTimeMillis() : reset * 1000L;
+                host.mRemaining = remaining;
+                host.mResetAt = now + Math.max(0L, resetIn);
+                host.mNextSlot = Math.max(host.mNextSlot, now);
+            }
+
+            if (retryAfter >= 0L && (limited || statusCode == HttpResponse.StatusCodes.SERVICE_UNAVAILABLE))
+            {
+                host.mPausedUntil = Math.max(host.mPausedUntil, now + retryAfter);
+            }
+            else if (limited && (remaining != 0L || host.mResetAt <= now))
+            {
+                // Told to slow down, without being told for how long
+                host.mPausedUntil = Math.max(host.mPausedUntil, now + mDefaultRetryAfter);
+            }
+        }
+    }
+
+    private Host getHost(String hostKey)
+    {
+        Host host = mHosts.get(hostKey);
+        if (host == null)
+        {
+            host = new Host(mBurst, now());
+            mHosts.put(hostKey, host);
+        }
+        return host;
+    }
+
+    private static long now()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private static long parseLong(String value)
+    {
+        if (value == null) return -1L;
+
+        try
+        {
+            // Some servers send fractions of a second
+            return (long) Math.ceil(Double.parseDouble(value.trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return False if aborted meanwhile
+     */
+    private static boolean sleep(long duration, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        long until = now() + duration;
+        try
+        {
+            while (true)
+            {
+                if (requestShouldAbort != null && requestShouldAbort.get())
+                {
+                    return false;
+                }
+
+                long remaining = until - now();
+                if (remaining <= 0L)
+                {
+                    return true;
+                }
+
+                Thread.sleep(Math.min(remaining, ABORT_POLL_INTERVAL));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+        }
+    }
+
+    private static class Host
+    {
+        private long mPausedUntil = 0L; // Milliseconds, on the now() clock
+        private long mRemaining = -1L;
+        private long mResetAt = 0L; // Milliseconds, on the now() clock
+        private long mNextSlot = 0L; // Milliseconds, on the now() clock
+        private double mTokens;
+        private long mRefilledAt;
+
+        Host(int burst, long now)
+        {
+            this.mTokens = burst;
+            this.mRefilledAt = now;
+        }
+    }
+
+    /**
+     * Thrown instead of sending a request that would have to wait too long for the host's rate limit
+     */
+    public static class RateLimitedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String mHost;
+        private final long mRetryAfter;
+
+        public RateLimitedException(String host, long retryAfter)
+        {
+            super("Rate limited by " + host + " for " + retryAfter + " ms");
+            this.mHost = host;
+            this.mRetryAfter = retryAfter;
+        }
+
+        /**
+         * @return The host, as host:port
+         */
+        public String getHost()
+        {
+            return mHost;
+        }
+
+        /**
+         * @return The time in milliseconds until requests may go again
+         */
+        public long getRetryAfter()
+        {
+            return mRetryAfter;
+        }
+    }
+}
@@ -37,22 +37,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.security.AccessController;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -61,7 +57,11 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -107,8 +107,17 @@ public class HttpRequest
     private boolean mShouldTrustAllHttpsHosts = false;
     private SSLSocketFactory mCustomSSLSocketFactory = null;
     private long mIfModifiedSince = 0;
-
-    private static boolean mTriedFixingHttpURLConnectionMethods = false;
+    private HttpTransport mTransport = null;
+    private HttpDispatcher mDispatcher = null;
+    private int mPriority = Priority.NORMAL;
+    private HttpHedgingPolicy mHedgingPolicy = null;
+    private HttpRetryPolicy mRetryPolicy = null;
+    private HttpCircuitBreaker mCircuitBreaker = null;
+    private HttpConcurrencyLimiter mConcurrencyLimiter = null;
+    private HttpRateLimitCoordinator mRateLimitCoordinator = null;
+
+    private static HttpTransport sDefaultTransport = null;
+    private static Executor sDefaultFutureExecutor = null;
 
     private void initialize()
     {
@@ -120,12 +129,6 @@ public class HttpRequest
         {
             mDefaultContentType = ContentType.JSON;
         }
-
-        if (!mTriedFixingHttpURLConnectionMethods)
-        {
-            mTriedFixingHttpURLConnectionMethods = true;
-            tryFixingHttpURLConnectionMethods();
-        }
     }
 
     public HttpRequest(final CharSequence url, final String httpMethod) throws MalformedURLException
@@ -445,6 +448,9 @@ public class HttpRequest
         return setHeader(Headers.IF_NONE_MATCH, ifNoneMatch);
     }
 
+    /**
+     * @param ifModifiedSince Milliseconds since epoch, or 0 to not send If-Modified-Since
+     */
     public HttpRequest setIfModifiedSince(long ifModifiedSince)
     {
         this.mIfModifiedSince = ifModifiedSince;
@@ -475,6 +481,25 @@ public class HttpRequest
         return this;
     }
 
+    public HttpRequest setRequestBody(HttpFlow.Publisher<ByteBuffer> publisher)
+    {
+        return setRequestBody(publisher, -1);
+    }
+
+    /**
+     * Sets a publisher as the request body. It is subscribed to when the request is sent,
+     * and asked for more buffers only as they are written to the connection.
+     * A body of unknown length is sent in chunked streaming mode.
+     * @param publisher The publisher of the body
+     * @param contentLength The exact length of the body, or -1 if unknown
+     */
+    public HttpRequest setRequestBody(HttpFlow.Publisher<ByteBuffer> publisher, long contentLength)
+    {
+        this.mRequestBody = new PublisherInputStream(publisher);
+        this.mRequestBodyLengthHint = contentLength;
+        return this;
+    }
+
     public HttpRequest setRequestBody(File inputFile)
     {
         this.mRequestBody = inputFile;
@@ -496,6 +521,13 @@ public class HttpRequest
         return this;
     }
 
+    public HttpRequest setRequestBody(MultipartBuilder.DynamicPart part)
+    {
+        this.mRequestBody = part;
+        this.mRequestBodyLengthHint = -1;
+        return this;
+    }
+
     public HttpRequest setContentType(String contentType)
     {
         return setContentType(contentType, UTF8_CHARSET);
@@ -648,6 +680,212 @@ public class HttpRequest
         return this;
     }
 
+    /**
+     * @return The transport set for this request, or null if the default transport is used
+     */
+    public HttpTransport getTransport()
+    {
+        return mTransport;
+    }
+
+    /**
+     * Sets the transport used to send this request.
+     * @param transport The transport to use, or null to use the default transport
+     */
+    public HttpRequest setTransport(HttpTransport transport)
+    {
+        this.mTransport = transport;
+        return this;
+    }
+
+    /**
+     * @return The dispatcher set for this request, or null
+     */
+    public HttpDispatcher getDispatcher()
+    {
+        return mDispatcher;
+    }
+
+    /**
+     * Sets a dispatcher that getResponseAsync() schedules this request through, to limit concurrent requests per host.
+     * The request then runs on the executor passed to getResponseAsync(), or on the dispatcher's executor.
+     * @param dispatcher The dispatcher to use, or null to start async requests right away
+     */
+    public HttpRequest setDispatcher(HttpDispatcher dispatcher)
+    {
+        this.mDispatcher = dispatcher;
+        return this;
+    }
+
+    public int getPriority()
+    {
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority that the dispatcher schedules this request with. Default is {@link Priority#NORMAL}.
+     * @param priority One of {@link Priority}
+     */
+    public HttpRequest setPriority(int priority)
+    {
+        this.mPriority = priority;
+        return this;
+    }
+
+    /**
+     * @return The hedging policy set for this request, or null
+     */
+    public HttpHedgingPolicy getHedgingPolicy()
+    {
+        return mHedgingPolicy;
+    }
+
+    /**
+     * Sets a hedging policy, which sends a duplicate of this request if the response is slow to arrive.
+     * A policy is usually shared between the requests to a backend, as it learns their latency.
+     * @param hedgingPolicy The policy to use, or null to send the request once
+     */
+    public HttpRequest setHedgingPolicy(HttpHedgingPolicy hedgingPolicy)
+    {
+        this.mHedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * @return The retry policy set for this request, or null
+     */
+    public HttpRetryPolicy getRetryPolicy()
+    {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Sets a retry policy, which sends the request again after transient failures.
+     * The request body is encoded once, and replayed on retries.
+     * @param retryPolicy The policy to use, or null to let failures through
+     */
+    public HttpRequest setRetryPolicy(HttpRetryPolicy retryPolicy)
+    {
+        this.mRetryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * @return The circuit breaker set for this request, or null
+     */
+    public HttpCircuitBreaker getCircuitBreaker()
+    {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Sets a circuit breaker, which fails this request right away while its host is failing.
+     * @param circuitBreaker The circuit breaker to use, or null to always send the request
+     */
+    public HttpRequest setCircuitBreaker(HttpCircuitBreaker circuitBreaker)
+    {
+        this.mCircuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * @return The concurrency limiter set for this request, or null
+     */
+    public HttpConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return mConcurrencyLimiter;
+    }
+
+    /**
+     * Sets a concurrency limiter, which holds this request back while too many requests to its host are in flight.
+     * @param concurrencyLimiter The limiter to use, or null to send the request right away
+     */
+    public HttpRequest setConcurrencyLimiter(HttpConcurrencyLimiter concurrencyLimiter)
+    {
+        this.mConcurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    /**
+     * @return The rate limit coordinator set for this request, or null
+     */
+    public HttpRateLimitCoordinator getRateLimitCoordinator()
+    {
+        return mRateLimitCoordinator;
+    }
+
+    /**
+     * Sets a rate limit coordinator, which holds this request back while its host's rate limit is used up, and learns the limits from the response.
+     * @param rateLimitCoordinator The coordinator to use, or null to send the request right away
+     */
+    public HttpRequest setRateLimitCoordinator(HttpRateLimitCoordinator rateLimitCoordinator)
+    {
+        this.mRateLimitCoordinator = rateLimitCoordinator;
+        return this;
+    }
+
+    /**
+     * @return The transport used by requests that did not set their own. By default that's an {@link UrlConnectionTransport}.
+     */
+    public static synchronized HttpTransport getDefaultTransport()
+    {
+        if (sDefaultTransport == null)
+        {
+            sDefaultTransport = new UrlConnectionTransport();
+        }
+        return sDefaultTransport;
+    }
+
+    /**
+     * Sets the transport used by requests that did not set their own.
+     * @param transport The transport to use, or null to restore the default {@link UrlConnectionTransport}.
+     */
+    public static synchronized void setDefaultTransport(HttpTransport transport)
+    {
+        sDefaultTransport = transport;
+    }
+
+    /**
+     * @return The executor that getResponseFuture() runs requests on by default.
+     * On Java 21 and later that's a virtual thread per request, otherwise a cached pool of daemon threads.
+     */
+    public static synchronized Executor getDefaultFutureExecutor()
+    {
+        if (sDefaultFutureExecutor == null)
+        {
+            try
+            {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                sDefaultFutureExecutor = (Executor) method.invoke(null);
+            }
+            catch (Exception ignored)
+            {
+                sDefaultFutureExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+                {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "HttpRequest-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        return sDefaultFutureExecutor;
+    }
+
+    /**
+     * Sets the executor that getResponseFuture() runs requests on by default.
+     * @param executor The executor to use, or null to restore the default
+     */
+    public static synchronized void setDefaultFutureExecutor(Executor executor)
+    {
+        sDefaultFutureExecutor = executor;
+    }
+
     public int getJpegCompressionQuality()
     {
         return mSettings.getJpegCompressionQuality();
@@ -1098,6 +1336,39 @@ public class HttpRequest
         return request;
     }
 
+    // Shared, so that transports which pool connections per verifier can reuse them across requests
+    private static final HostnameVerifier TRUST_ALL_HOSTNAME_VERIFIER = new HostnameVerifier()
+    {
+        public boolean verify(String hostname, SSLSession session)
+        {
+            return true;
+        }
+    };
+
+    private static void setSSLSocketFactory(HttpURLConnection connection, SSLSocketFactory sslSocketFactory)
+    {
+        if (connection instanceof HttpsURLConnection)
+        {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+        }
+        else if (connection instanceof TransportConnection)
+        {
+            ((TransportConnection) connection).setSSLSocketFactory(sslSocketFactory);
+        }
+    }
+
+    private static void setHostnameVerifier(HttpURLConnection connection, HostnameVerifier hostnameVerifier)
+    {
+        if (connection instanceof HttpsURLConnection)
+        {
+            ((HttpsURLConnection) connection).setHostnameVerifier(hostnameVerifier);
+        }
+        else if (connection instanceof TransportConnection)
+        {
+            ((TransportConnection) connection).setHostnameVerifier(hostnameVerifier);
+        }
+    }
+
     private static final ThreadLocal<SSLSocketFactory> trustAllSslFactorySynchronized = new ThreadLocal<>();
     private static SSLSocketFactory getTrustAllSSLFactory()
     {
@@ -1177,6 +1448,150 @@ public class HttpRequest
      * @throws IOException
      */
     public HttpResponse getResponse(ProgressListener progressListener, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        if (mRetryPolicy != null)
+        {
+            return mRetryPolicy.getResponse(this, progressListener, requestShouldAbort);
+        }
+
+        return getResponseAttempt(progressListener, requestShouldAbort, null);
+    }
+
+    /**
+     * Makes a single attempt at getting the response, through the circuit breaker if one is set.
+     * @param replayableBody Keeps the encoded body between attempts, or null
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponseAttempt(ProgressListener progressListener, AtomicBoolean requestShouldAbort, ReplayableBody replayableBody) throws IOException
+    {
+        if (mCircuitBreaker != null)
+        {
+            return mCircuitBreaker.getResponse(this, progressListener, requestShouldAbort, replayableBody);
+        }
+
+        return getResponseHedged(progressListener, requestShouldAbort, replayableBody);
+    }
+
+    /**
+     * Gets the response, hedged if a hedging policy applies.
+     * @param replayableBody Keeps the encoded body between attempts, or null
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponseHedged(ProgressListener progressListener, AtomicBoolean requestShouldAbort, ReplayableBody replayableBody) throws IOException
+    {
+        if (mHedgingPolicy != null && mHedgingPolicy.shouldHedge(this))
+        {
+            return mHedgingPolicy.getResponse(this, progressListener, requestShouldAbort);
+        }
+
+        return getResponseOnce(progressListener, requestShouldAbort, replayableBody);
+    }
+
+    /**
+     * Sends the request once, through the rate limit coordinator and the concurrency limiter if they are set.
+     * @param replayableBody Keeps the encoded body between attempts, or null
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponseOnce(ProgressListener progressListener, AtomicBoolean requestShouldAbort, ReplayableBody replayableBody) throws IOException
+    {
+        HttpRateLimitCoordinator rateLimitCoordinator = mRateLimitCoordinator;
+        if (rateLimitCoordinator != null && !rateLimitCoordinator.acquire(mUrl, requestShouldAbort))
+        {
+            return null;
+        }
+
+        HttpResponse response;
+        if (mConcurrencyLimiter != null)
+        {
+            response = mConcurrencyLimiter.getResponse(this, progressListener, requestShouldAbort, replayableBody);
+        }
+        else
+        {
+            response = getResponseDirect(progressListener, requestShouldAbort, replayableBody);
+        }
+
+        if (rateLimitCoordinator != null && response != null)
+        {
+            rateLimitCoordinator.onResponse(mUrl, response);
+        }
+
+        return response;
+    }
+
+    /**
+     * Sends the request once, without the policies set on it.
+     * @param replayableBody Keeps the encoded body between attempts, or null
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponseDirect(ProgressListener progressListener, AtomicBoolean requestShouldAbort, ReplayableBody replayableBody) throws IOException
+    {
+        long sendStart = System.nanoTime();
+        HttpURLConnection connection = sendRequest(progressListener, requestShouldAbort, null, replayableBody);
+        if (connection == null)
+        {
+            return null;
+        }
+
+        // Finish request, start streaming back the response
+        HttpResponse response = new HttpResponse(connection, mAutoDecompress);
+        response.setSendTime(System.nanoTime() - sendStart);
+        return response;
+    }
+
+    /**
+     * @return Whether the request is sent with a body. Otherwise the params go in the query string.
+     */
+    boolean hasRequestBody()
+    {
+        return mRequestBody != null ||
+                mHttpMethod.equals(HttpMethod.POST) ||
+                mHttpMethod.equals(HttpMethod.PUT) ||
+                mHttpMethod.equals(HttpMethod.PATCH) ||
+                !mMultipartParts.isEmpty();
+    }
+
+    /**
+     * @return Whether the body can be encoded again from its source, which is not the case for streams that were already read
+     */
+    boolean isRequestBodyRepeatable()
+    {
+        if (mRequestBody instanceof InputStream)
+        {
+            return false;
+        }
+
+        for (Map.Entry<String, ArrayList<Object>> entry : mParams.entrySet())
+        {
+            for (Object param : entry.getValue())
+            {
+                if (param instanceof InputStream)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a connection and writes the request to it, without reading the response yet.
+     * @param transport The transport to use, or null to use the request's transport.
+     * @return The connection, ready for reading the response, or null if aborted.
+     * @throws IOException
+     */
+    HttpURLConnection sendRequest(ProgressListener progressListener, AtomicBoolean requestShouldAbort, HttpTransport transport) throws IOException
+    {
+        return sendRequest(progressListener, requestShouldAbort, transport, null);
+    }
+
+    /**
+     * Opens a connection and writes the request to it, without reading the response yet.
+     * @param transport The transport to use, or null to use the request's transport.
+     * @param replayableBody If not null, the body is encoded into it on the first call, and sent from it on the next ones.
+     * @return The connection, ready for reading the response, or null if aborted.
+     * @throws IOException
+     */
+    HttpURLConnection sendRequest(ProgressListener progressListener, AtomicBoolean requestShouldAbort, HttpTransport transport, ReplayableBody replayableBody) throws IOException
     {
         if (this.mUrl == null)
         {
@@ -1204,38 +1619,27 @@ public class HttpRequest
 
         URL url = this.mUrl;
 
-        boolean requestShouldHaveBody =
-                mRequestBody != null ||
-                mHttpMethod.equals(HttpMethod.POST) ||
-                mHttpMethod.equals(HttpMethod.PUT) ||
-                mHttpMethod.equals(HttpMethod.PATCH) ||
-                !mMultipartParts.isEmpty();
+        boolean requestShouldHaveBody = hasRequestBody();
 
         if (!requestShouldHaveBody)
         {
             url = new URL(urlWithParameters(url, mParams, charset));
         }
 
-        if (mHttpProxyHost != null)
-        {
-            Proxy proxy = new Proxy(HTTP, new InetSocketAddress(mHttpProxyHost, mHttpProxyPort));
-            connection = (HttpURLConnection) url.openConnection(proxy);
-        }
-        else
+        if (transport == null)
         {
-            connection = (HttpURLConnection) url.openConnection();
+            transport = mTransport != null ? mTransport : getDefaultTransport();
         }
 
-        try
-        {
-            connection.setRequestMethod(mHttpMethod);
-        }
-        catch (ProtocolException ex)
+        Proxy proxy = null;
+        if (mHttpProxyHost != null)
         {
-            // HTTP Method not supported by HttpURLConnection which is only HTTP/1.1 compliant
-            trySetHttpMethodUsingIntrospection(connection, mHttpMethod);
+            proxy = new Proxy(HTTP, new InetSocketAddress(mHttpProxyHost, mHttpProxyPort));
         }
 
+        connection = transport.openConnection(url, proxy);
+        transport.setRequestMethod(connection, mHttpMethod);
+
         connection.setInstanceFollowRedirects(mFollowRedirects);
         connection.setUseCaches(mUseCaches);
         if (mReadTimeout > -1)
@@ -1253,34 +1657,19 @@ public class HttpRequest
         }
         if (mShouldTrustAllHttpsCertificates)
         {
-            if (connection instanceof HttpsURLConnection)
+            SSLSocketFactory sslSocketFactory = getTrustAllSSLFactory();
+            if (sslSocketFactory != null)
             {
-                SSLSocketFactory sslSocketFactory = getTrustAllSSLFactory();
-                if (sslSocketFactory != null)
-                {
-                    ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
-                }
+                setSSLSocketFactory(connection, sslSocketFactory);
             }
         }
         if (mShouldTrustAllHttpsHosts)
         {
-            if (connection instanceof HttpsURLConnection)
-            {
-                ((HttpsURLConnection)connection).setHostnameVerifier(new HostnameVerifier()
-                {
-                    public boolean verify(String hostname, SSLSession session)
-                    {
-                        return true;
-                    }
-                });
-            }
+            setHostnameVerifier(connection, TRUST_ALL_HOSTNAME_VERIFIER);
         }
         if (mCustomSSLSocketFactory != null)
         {
-            if (connection instanceof HttpsURLConnection)
-            {
-                ((HttpsURLConnection) connection).setSSLSocketFactory(mCustomSSLSocketFactory);
-            }
+            setSSLSocketFactory(connection, mCustomSSLSocketFactory);
         }
 
         for (Map.Entry<String, ArrayList<String>> entry : mHeaders.entrySet())
@@ -1290,6 +1679,11 @@ public class HttpRequest
                 connection.addRequestProperty(entry.getKey(), header == null ? "" : header);
             }
         }
+        if (mIfModifiedSince > 0)
+        {
+            // Formatting ourselves, as HttpURLConnection.setIfModifiedSince goes through java.util.Date and SimpleDateFormat
+            connection.setRequestProperty(Headers.IF_MODIFIED_SINCE, HttpDate.format(mIfModifiedSince));
+        }
 
         // Check if we need a multipart content type
         boolean needMultipart = mRequestBody == null &&
@@ -1319,8 +1713,13 @@ public class HttpRequest
         }
 
         // Determine if we can encode the request in memory first to determine content length
-        int minimumContentLength = -1;
-        if (requestShouldHaveBody && mChunkedStreamingModeSize < 0)
+        long minimumContentLength = -1;
+        if (requestShouldHaveBody && mChunkedStreamingModeSize < 0 && mRequestBody != null)
+        {
+            // A body that was set directly is sent as is, so its own length decides whether it's buffered or streamed
+            minimumContentLength = getMinimumRequestBodyLength();
+        }
+        else if (requestShouldHaveBody && mChunkedStreamingModeSize < 0)
         {
             minimumContentLength = 0;
             for (Map.Entry<String, ArrayList<Object>> entry : mParams.entrySet())
@@ -1406,6 +1805,26 @@ public class HttpRequest
 
         boolean wasRequestHandled = false;
 
+        if (requestShouldHaveBody && replayableBody != null)
+        {
+            if ((!replayableBody.isCaptured() &&
+                    !captureRequestBody(replayableBody, connection, minimumContentLength, charset, multipartBuilder, customContentType, requestShouldAbort)) ||
+                    !writeReplayableBody(replayableBody, connection, progressListener, requestShouldAbort))
+            {
+                try
+                {
+                    connection.disconnect();
+                }
+                catch (Exception ignored)
+                {
+
+                }
+                return null;
+            }
+
+            return connection;
+        }
+
         if (!requestShouldHaveBody)
         {
             // There's not supposed to be a request body, do not open an output stream at all, as HttpURLConnection behaves strangely and may change the HTTP method...
@@ -1496,18 +1915,7 @@ public class HttpRequest
                     ByteBuffer buffer = charset.encode(CharBuffer.wrap(mRequestBody.toString()));
                     contentLength = buffer.limit();
 
-                    if (contentLength > ESTIMATED_SIZE_TO_ALLOW_IN_MEMORY)
-                    {
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
-                        {
-                            connection.setFixedLengthStreamingMode(contentLength);
-                        }
-                        else if (contentLength <= 0x7FF89EC0)
-                        {
-                            // Android SDK < 19: 2 GiB limit
-                            connection.setFixedLengthStreamingMode((int)contentLength);
-                        }
-                    }
+                    applyFixedLength(connection, contentLength);
 
                     if (progressListener != null)
                     {
@@ -1533,18 +1941,7 @@ public class HttpRequest
 
             if (!wasRequestHandled && contentLength > -1)
             {
-                if (contentLength > ESTIMATED_SIZE_TO_ALLOW_IN_MEMORY)
-                {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
-                    {
-                        connection.setFixedLengthStreamingMode(contentLength);
-                    }
-                    else if (contentLength <= 0x7FF89EC0)
-                    {
-                        // Android SDK < 19: 2 GiB limit
-                        connection.setFixedLengthStreamingMode((int)contentLength);
-                    }
-                }
+                applyFixedLength(connection, contentLength);
 
                 if (progressListener != null)
                 {
@@ -1577,9 +1974,14 @@ public class HttpRequest
 
         if (!wasRequestHandled)
         {
-            if (mChunkedStreamingModeSize >= 0)
+            // A published body of unknown length is streamed as it's requested, instead of being drained to a file first
+            if (mChunkedStreamingModeSize >= 0 || mRequestBody instanceof PublisherInputStream)
             {
                 // Stream everything out, in chunked mode
+                if (mChunkedStreamingModeSize < 0)
+                {
+                    connection.setChunkedStreamingMode(0);
+                }
 
                 if (progressListener != null)
                 {
@@ -1608,42 +2010,25 @@ public class HttpRequest
             else
             {
                 // First stream to a temporary file
-                File tempFile = File.createTempFile("request-buffer", ".http", null);
-                tempFile.deleteOnExit();
-                try
+                File tempFile = spoolRequestBodyToFile(charset, multipartBuilder, customContentType, requestShouldAbort);
+                if (tempFile == null)
                 {
-                    FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
-                    writeRequestBodyToStream(fileOutputStream, charset, multipartBuilder, customContentType, requestShouldAbort);
-                    fileOutputStream.close();
-
-                    if (requestShouldAbort != null && requestShouldAbort.get())
+                    try
+                    {
+                        connection.disconnect();
+                    }
+                    catch (Exception ignored)
                     {
-                        try
-                        {
-                            tempFile.delete();
-                            connection.disconnect();
-                        }
-                        catch (Exception ignored)
-                        {
 
-                        }
-                        return null;
                     }
+                    return null;
+                }
 
+                try
+                {
                     long contentLength = tempFile.length();
 
-                    if (contentLength > ESTIMATED_SIZE_TO_ALLOW_IN_MEMORY)
-                    {
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
-                        {
-                            connection.setFixedLengthStreamingMode(contentLength);
-                        }
-                        else if (contentLength <= 0x7FF89EC0)
-                        {
-                            // Android SDK < 19: 2 GiB limit
-                            connection.setFixedLengthStreamingMode((int)contentLength);
-                        }
-                    }
+                    applyFixedLength(connection, contentLength);
 
                     if (progressListener != null)
                     {
@@ -1695,8 +2080,7 @@ public class HttpRequest
             }
         }
 
-        // Finish request, start streaming back the response
-        return new HttpResponse(connection, mAutoDecompress);
+        return connection;
     }
 
     public HttpAsyncTask getResponseAsync(final AsyncHttpRequestResponseListener asyncListener)
@@ -1718,7 +2102,7 @@ public class HttpRequest
     {
         final AtomicBoolean shouldAbortRequest = new AtomicBoolean(false);
         
-        HttpAsyncTask task = new HttpAsyncTask<Object, Void, HttpResponse>()
+        final HttpAsyncTask task = new HttpAsyncTask<Object, Void, HttpResponse>()
         {
             private HttpResponse response = null;
 
@@ -1754,7 +2138,14 @@ public class HttpRequest
                     {
                         try
                         {
-                            response.prebuffer();
+                            if (asyncListener instanceof AsyncHttpRequestStreamingListener)
+                            {
+                                streamResponse(response, (AsyncHttpRequestStreamingListener)asyncListener, progressListener);
+                            }
+                            else
+                            {
+                                response.prebuffer();
+                            }
                         }
                         catch (Exception e)
                         {
@@ -1792,7 +2183,23 @@ public class HttpRequest
             }
         };
 
-        if (taskExecutor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        if (mDispatcher != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        {
+            task.executeOnExecutor(mDispatcher.getExecutor(mUrl, mPriority, taskExecutor, new HttpDispatcher.RejectionListener()
+            {
+                @Override
+                public void onRejected(RejectedExecutionException e)
+                {
+                    // The task will never run
+                    task.cancel(false);
+                    if (asyncListener != null)
+                    {
+                        asyncListener.onResponseException(e);
+                    }
+                }
+            }));
+        }
+        else if (taskExecutor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
         {
             task.executeOnExecutor(taskExecutor);
         }
@@ -1804,6 +2211,192 @@ public class HttpRequest
         return task;
     }
 
+    public HttpFuture<HttpResponse> getResponseFuture()
+    {
+        return getResponseFuture(null, null);
+    }
+
+    public HttpFuture<HttpResponse> getResponseFuture(Executor executor)
+    {
+        return getResponseFuture(executor, null);
+    }
+
+    /**
+     * Sends the request in the background. The response is buffered (like {@link HttpResponse#prebuffer()} does) before the future completes.
+     * Unlike getResponseAsync(), this does not depend on AsyncTask, and callbacks are called on the executor's thread.
+     * If a dispatcher is set, the request is scheduled through it.
+     * @param executor The executor to run the request on, or null for {@link #getDefaultFutureExecutor()}
+     * @param progressListener A listener for progress, or null if you do not want that.
+     * @return A future for the response. Canceling it aborts the request.
+     */
+    public HttpFuture<HttpResponse> getResponseFuture(Executor executor, final ProgressListener progressListener)
+    {
+        final AtomicBoolean shouldAbortRequest = new AtomicBoolean(false);
+        final Thread[] runner = new Thread[1];
+
+        final HttpFuture<HttpResponse> future = new HttpFuture<HttpResponse>()
+        {
+            @Override
+            protected void onCancel(boolean mayInterruptIfRunning)
+            {
+                shouldAbortRequest.set(true);
+                synchronized (runner)
+                {
+                    if (mayInterruptIfRunning && runner[0] != null)
+                    {
+                        runner[0].interrupt();
+                    }
+                }
+            }
+        };
+
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (future.isDone()) return;
+
+                synchronized (runner)
+                {
+                    runner[0] = Thread.currentThread();
+                }
+
+                HttpResponse response = null;
+                try
+                {
+                    response = getResponse(progressListener, shouldAbortRequest);
+                    if (response == null)
+                    {
+                        future.fail(new IOException("Canceled"));
+                    }
+                    else
+                    {
+                        response.prebuffer();
+                        if (!future.complete(response))
+                        {
+                            // Canceled meanwhile, nobody is going to read it
+                            response.discard();
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    if (response != null)
+                    {
+                        response.disconnect();
+                    }
+                    future.fail(e);
+                }
+                finally
+                {
+                    synchronized (runner)
+                    {
+                        runner[0] = null;
+                    }
+                    // Don't leave an interrupt from cancel() to the next task on this thread
+                    Thread.interrupted();
+                }
+            }
+        };
+
+        executeTask(task, executor, new HttpDispatcher.RejectionListener()
+        {
+            @Override
+            public void onRejected(RejectedExecutionException e)
+            {
+                future.fail(e);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Runs a task that sends this request, through the dispatcher if one is set.
+     * @param executor The executor to run the task on, or null for {@link #getDefaultFutureExecutor()}
+     * @param rejectionListener Told if the executor rejects the task, whether right away or after it waited in the dispatcher's queue
+     */
+    void executeTask(Runnable task, Executor executor, HttpDispatcher.RejectionListener rejectionListener)
+    {
+        Executor target = executor != null ? executor : getDefaultFutureExecutor();
+        try
+        {
+            if (mDispatcher != null)
+            {
+                mDispatcher.getExecutor(mUrl, mPriority, target, rejectionListener).execute(task);
+            }
+            else
+            {
+                target.execute(task);
+            }
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejectionListener.onRejected(e);
+        }
+    }
+
+    private static void streamResponse(HttpResponse response,
+                                       AsyncHttpRequestStreamingListener streamingListener,
+                                       ProgressListener progressListener) throws IOException
+    {
+        boolean shouldBuffer = streamingListener.shouldBufferResponse();
+        InputStream stream = shouldBuffer
+                ? response.getTeeInputStream(progressListener)
+                : response.getInputStream(progressListener);
+        try
+        {
+            streamingListener.onResponseStream(response, stream);
+        }
+        finally
+        {
+            if (shouldBuffer)
+            {
+                stream.close();
+            }
+            else
+            {
+                response.release(stream);
+            }
+        }
+    }
+
+    /**
+     * @return The length of the body set through setRequestBody, as far as it's known without encoding it, or -1 if unknown
+     */
+    private long getMinimumRequestBodyLength()
+    {
+        if (mRequestBodyLengthHint > -1)
+        {
+            return mRequestBodyLengthHint;
+        }
+        else if (mRequestBody instanceof File)
+        {
+            return ((File) mRequestBody).length();
+        }
+        else if (mRequestBody instanceof ByteBuffer)
+        {
+            return ((ByteBuffer) mRequestBody).limit();
+        }
+        else if (mRequestBody instanceof byte[])
+        {
+            return ((byte[]) mRequestBody).length;
+        }
+        else if (mRequestBody instanceof MultipartBuilder.DynamicPart)
+        {
+            return ((MultipartBuilder.DynamicPart) mRequestBody).contentLength();
+        }
+        else if (mRequestBody instanceof InputStream || mRequestBody instanceof Bitmap)
+        {
+            return -1;
+        }
+        else
+        {
+            return paramToString(mRequestBody).length();
+        }
+    }
+
     private static String paramToString(Object param)
     {
         if (param instanceof Boolean)
@@ -1863,6 +2456,180 @@ public class HttpRequest
         contentTypeAndCharset[1] = charsetName;
     }
 
+    /**
+     * Encodes the request body once, so it can be sent again without encoding it again.
+     * A small body is kept in memory, a file body is used as is, and anything else is spooled to a temporary file.
+     * @return False if aborted
+     */
+    private boolean captureRequestBody(
+            ReplayableBody replayableBody,
+            HttpURLConnection connection,
+            long minimumContentLength,
+            Charset charset,
+            MultipartBuilder multipartBuilder,
+            String customContentType,
+            AtomicBoolean requestShouldAbort) throws IOException
+    {
+        // The multipart boundary is in there, and it has to match the encoded body
+        String contentType = connection.getRequestProperty(Headers.CONTENT_TYPE);
+
+        if (mRequestBody instanceof File)
+        {
+            replayableBody.capture((File) mRequestBody, false, contentType);
+            return true;
+        }
+
+        if (minimumContentLength > -1 && minimumContentLength < ESTIMATED_SIZE_TO_ALLOW_IN_MEMORY)
+        {
+            ByteArrayOutputStream memoryStream = new ByteArrayOutputStream((int)(minimumContentLength * 0.1));
+            writeRequestBodyToStream(memoryStream, charset, multipartBuilder, customContentType, requestShouldAbort);
+
+            if (requestShouldAbort != null && requestShouldAbort.get())
+            {
+                return false;
+            }
+
+            replayableBody.capture(memoryStream.toByteArray(), contentType);
+            return true;
+        }
+
+        File tempFile = spoolRequestBodyToFile(charset, multipartBuilder, customContentType, requestShouldAbort);
+        if (tempFile == null)
+        {
+            return false;
+        }
+
+        replayableBody.capture(tempFile, true, contentType);
+        return true;
+    }
+
+    /**
+     * Writes the request body to a new temporary file
+     * @return The file, which the caller should delete when done, or null if aborted
+     */
+    private File spoolRequestBodyToFile(
+            Charset charset,
+            MultipartBuilder multipartBuilder,
+            String customContentType,
+            AtomicBoolean requestShouldAbort) throws IOException
+    {
+        File tempFile = File.createTempFile("request-buffer", ".http", null);
+        tempFile.deleteOnExit();
+        boolean succeeded = false;
+        try
+        {
+            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+            try
+            {
+                writeRequestBodyToStream(fileOutputStream, charset, multipartBuilder, customContentType, requestShouldAbort);
+            }
+            finally
+            {
+                fileOutputStream.close();
+            }
+
+            if (requestShouldAbort != null && requestShouldAbort.get())
+            {
+                return null;
+            }
+
+            succeeded = true;
+            return tempFile;
+        }
+        finally
+        {
+            if (!succeeded)
+            {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Puts the connection in fixed length streaming mode for bodies too big to be buffered by the connection
+     */
+    private static void applyFixedLength(HttpURLConnection connection, long contentLength)
+    {
+        if (contentLength <= ESTIMATED_SIZE_TO_ALLOW_IN_MEMORY) return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+        {
+            connection.setFixedLengthStreamingMode(contentLength);
+        }
+        else if (contentLength <= 0x7FF89EC0)
+        {
+            // Android SDK < 19: 2 GiB limit
+            connection.setFixedLengthStreamingMode((int)contentLength);
+        }
+    }
+
+    /**
+     * Sends a body that was already encoded
+     * @return False if aborted
+     */
+    private boolean writeReplayableBody(
+            ReplayableBody replayableBody,
+            HttpURLConnection connection,
+            ProgressListener progressListener,
+            AtomicBoolean requestShouldAbort) throws IOException
+    {
+        if (replayableBody.getContentType() != null)
+        {
+            connection.setRequestProperty(Headers.CONTENT_TYPE, replayableBody.getContentType());
+        }
+
+        long contentLength = replayableBody.getContentLength();
+
+        if (mChunkedStreamingModeSize < 0)
+        {
+            applyFixedLength(connection, contentLength);
+
+            connection.setRequestProperty(Headers.CONTENT_LENGTH, ((Long) contentLength).toString());
+        }
+
+        if (progressListener != null)
+        {
+            progressListener.onRequestProgress(0L, contentLength);
+        }
+
+        if (contentLength > 0L)
+        {
+            connection.setDoOutput(true);
+
+            InputStream inputStream = replayableBody.openStream();
+            try
+            {
+                OutputStream outputStream = connection.getOutputStream();
+                byte [] buffer = new byte[BUFFER_SIZE];
+                int read;
+                long totalRead = 0L;
+                while ((read = inputStream.read(buffer, 0, BUFFER_SIZE)) > 0)
+                {
+                    if (requestShouldAbort != null && requestShouldAbort.get())
+                    {
+                        return false;
+                    }
+
+                    outputStream.write(buffer, 0, read);
+                    totalRead += read;
+
+                    if (progressListener != null)
+                    {
+                        progressListener.onRequestProgress(totalRead, contentLength);
+                    }
+                }
+                outputStream.close();
+            }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+
+        return true;
+    }
+
     private void writeRequestBodyToStream(
             OutputStream outputStream,
             Charset charset,
@@ -2145,130 +2912,6 @@ public class HttpRequest
         return sb.toString();
     }
 
-    /**
-     * HttpURLConnection does not allow more than a few basic HTTP Methods, we need to workaround that.
-     * First we try to edit its internal list of supported HTTP methods, and as a fallback we try to directly set the "method" field using introspection
-     */
-    private static void tryFixingHttpURLConnectionMethods()
-    {
-        try
-        {
-            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
-            {
-                @Override
-                public Object run() throws NoSuchFieldException, IllegalAccessException
-                {
-                    try
-                    {
-                        Class<?> connectionClass = HttpURLConnection.class;
-
-                        Field methodField = connectionClass.getDeclaredField("PERMITTED_USER_METHODS");
-                        methodField.setAccessible(true);
-                        String[] methodsArray = (String[])methodField.get(null);
-
-                        ArrayList<String> newSupportedMethods = new ArrayList<String>();
-                        for (String method : methodsArray)
-                        {
-                            newSupportedMethods.add(method);
-                        }
-                        if (!newSupportedMethods.contains("PATCH"))
-                        {
-                            newSupportedMethods.add("PATCH");
-                        }
-                        if (!newSupportedMethods.contains("CONNECT"))
-                        {
-                            newSupportedMethods.add("CONNECT");
-                        }
-
-                        methodsArray = newSupportedMethods.toArray(new String[newSupportedMethods.size()]);
-                        methodField.set(null, methodsArray);
-                    }
-                    catch (Exception ignored)
-                    {
-                    }
-                    return null;
-                }
-            });
-        }
-        catch (Exception ignored)
-        {
-        }
-    }
-
-    private static void trySetHttpMethodUsingIntrospection(final HttpURLConnection httpURLConnection, final String method)
-    {
-        try
-        {
-            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
-            {
-                @Override
-                public Object run() throws NoSuchFieldException, IllegalAccessException
-                {
-                    try
-                    {
-                        httpURLConnection.setRequestMethod(method);
-                    }
-                    catch (final ProtocolException pe)
-                    {
-                        Class<?> connectionClass = httpURLConnection.getClass();
-                        try
-                        {
-                            Field delegateField = connectionClass.getDeclaredField("delegate");
-                            delegateField.setAccessible(true);
-                            HttpURLConnection delegateConnection = (HttpURLConnection) delegateField.get(httpURLConnection);
-                            trySetHttpMethodUsingIntrospection(delegateConnection, method);
-                        }
-                        catch (NoSuchFieldException ignored)
-                        {
-                        }
-                        catch (IllegalArgumentException e)
-                        {
-                            throw new RuntimeException(e);
-                        }
-                        catch (IllegalAccessException e)
-                        {
-                            throw new RuntimeException(e);
-                        }
-                        try
-                        {
-                            while (connectionClass != null)
-                            {
-                                try
-                                {
-                                    Field methodField = connectionClass.getDeclaredField("method");
-                                    methodField.setAccessible(true);
-                                    methodField.set(httpURLConnection, method);
-                                    break;
-                                }
-                                catch (NoSuchFieldException e)
-                                {
-                                    connectionClass = connectionClass.getSuperclass();
-                                }
-                            }
-                        }
-                        catch (final Exception e)
-                        {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    return null;
-                }
-            });
-        }
-        catch (final PrivilegedActionException e)
-        {
-            final Throwable cause = e.getCause();
-            if (cause instanceof RuntimeException)
-            {
-                throw (RuntimeException) cause;
-            }
-            else
-            {
-                throw new RuntimeException(cause);
-            }
-        }
-    }
-
     @Override
     public String toString()
     {
@@ -2384,11 +3027,60 @@ public class HttpRequest
 
         /**
          * Called with the response when the connection is finished, and after buffering all the data (to disk if too large).
+         * When using an AsyncHttpRequestStreamingListener, the data was already delivered on the background thread, and is only buffered if requested.
          * @param response The response object. May be null if onRequestException or onResponseException was called, or if onSetup has thrown.
          */
         public abstract void onResponse(HttpResponse response);
     }
 
+    /**
+     * Pass an instance of this listener to getResponseAsync to receive the response body on the background thread as it arrives,
+     * instead of waiting for the whole response to be buffered.
+     * onResponse is still called on the UI thread when the response is done.
+     */
+    public abstract static class AsyncHttpRequestStreamingListener extends AsyncHttpRequestResponseListener
+    {
+        /**
+         * @return true if the response should also be buffered while streaming, so it could be read again in onResponse.
+         * Default is false, which means the body is consumed by the time onResponse is called.
+         */
+        public boolean shouldBufferResponse()
+        {
+            return false;
+        }
+
+        /**
+         * Called on the AsyncTask thread as soon as the response headers have arrived.
+         * The default implementation reads the stream and passes each chunk to onResponseData.
+         * Override to consume the stream directly. The stream is closed afterwards.
+         * @param response The response object
+         * @param stream The response body
+         */
+        public void onResponseStream(HttpResponse response, InputStream stream) throws IOException
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer, 0, BUFFER_SIZE)) > -1)
+            {
+                if (read > 0)
+                {
+                    onResponseData(response, buffer, read);
+                }
+            }
+        }
+
+        /**
+         * Called on the AsyncTask thread with each chunk of the response body, as it arrives.
+         * @param response The response object
+         * @param data A buffer holding the data. It is reused between calls, so copy it if you need to keep it.
+         * @param count The number of bytes available in data
+         */
+        public void onResponseData(HttpResponse response, byte[] data, int count) throws IOException
+        {
+            // Do nothing
+        }
+    }
+
     public abstract static class HttpAsyncTask<Params, Progress, Result> extends AsyncTask<Params, Progress, Result>
     {
         /**
@@ -2416,6 +3108,23 @@ public class HttpRequest
         public static final String IMAGE_PNG = "image/png";
     }
 
+    /**
+     * Request priorities, for scheduling by {@link HttpDispatcher}
+     */
+    public abstract static class Priority
+    {
+        /**
+         * Something the user is waiting on
+         */
+        public static final int INTERACTIVE = 0;
+        public static final int NORMAL = 1;
+
+        /**
+         * Prefetching, sync, telemetry and such
+         */
+        public static final int BACKGROUND = 2;
+    }
+
     public abstract static class HttpMethod
     {
         public static final String GET = "GET";
@@ -2437,6 +3146,7 @@ public class HttpRequest
         public static final String AUTHORIZATION = "Authorization";
         public static final String CONTENT_LENGTH = "Content-Length";
         public static final String CONTENT_TYPE = "Content-Type";
+        public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
         public static final String IF_NONE_MATCH = "If-None-Match";
         public static final String PROXY_AUTHORIZATION = "Proxy-Authorization";
         public static final String REFERER = "Referer";
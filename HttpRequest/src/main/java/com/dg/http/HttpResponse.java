@@ -30,42 +30,66 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringWriter;
+import java.io.PushbackReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.zip.GZIPInputStream;
 
 public class HttpResponse
 {
-    private static final String DATE_FORMAT_RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
-    private static final String DATE_FORMAT_RFC1036 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
-    private static final String DATE_FORMAT_ASCTIME = "EEE MMM d HH:mm:ss yyyy";
     private static final Charset utf8Charset = Charset.forName("UTF8");
     private static final int MAX_SIZE_TO_ALLOW_IN_MEMORY = 8192; // When we do not know the Content-Length in advance, we build the request in memory, or in file if it's too big or unknown.
     private static final int BUFFER_SIZE = 4096;
+    private static final int FILE_BUFFER_SIZE = 65536; // Larger writes mean fewer syscalls when streaming to disk
+    private static final int MAX_SIZE_TO_DRAIN = 16384; // Leftovers up to this size are read out on release, so the connection can be reused. Larger ones are cheaper to disconnect.
 
     private boolean mAutoDecompress = true;
     private boolean mIsBuffered = false;
     private byte[] mMemoryBuffer = null;
     private File mFileBuffer = null;
+    private boolean mOwnsFileBuffer = false; // False when mFileBuffer is a file that the user asked us to download to
+    private TeeInputStream mTeeStream = null;
+    private ReadableByteChannel mResponseChannel = null;
+    private boolean mResponseChannelFinished = false;
+    private boolean mBodyStreamClosed = false;
+    private boolean mBodyPublished = false;
 
     private HttpURLConnection mConnection;
     private int mStatusCode;
     private String mStatusMessage;
     private Map<String, List<String>> mHeaders;
+    private Map<String, List<String>> mHeaderIndex; // Case-insensitive view of mHeaders
+    private Map<String, Map<String, String>> mHeaderParamsCache;
+    private long mContentLength = -2L; // -2 means not parsed yet
+    private String mContentEncoding;
+    private boolean mContentEncodingParsed = false;
     private String mOriginalCharset;
     private Charset mCharset;
+    private CharsetDecoder mCharsetDecoder;
     private URL mUrl;
+    private long mSendTime = -1L; // Nanoseconds, from sending the request until the headers arrived
 
     public HttpResponse(HttpURLConnection connection) throws IOException
     {
@@ -86,6 +110,8 @@ public class HttpResponse
         mStatusCode = this.mConnection.getResponseCode();
         mStatusMessage = this.mConnection.getResponseMessage();
         mHeaders = this.mConnection.getHeaderFields();
+        mHeaderIndex = buildHeaderIndex(mHeaders);
+        mHeaderParamsCache = new TreeMap<String, Map<String, String>>(String.CASE_INSENSITIVE_ORDER);
         mOriginalCharset = getHeaderParameter(Headers.CONTENT_TYPE, "charset");
         if (mOriginalCharset != null && mOriginalCharset.length() > 0)
         {
@@ -98,6 +124,38 @@ public class HttpResponse
         mUrl = this.mConnection.getURL();
     }
 
+    private static Map<String, List<String>> buildHeaderIndex(Map<String, List<String>> headers)
+    {
+        TreeMap<String, List<String>> index = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        if (headers == null)
+        {
+            return index;
+        }
+
+        for (Map.Entry<String, List<String>> entry : headers.entrySet())
+        {
+            if (entry.getKey() == null || entry.getValue() == null)
+            {
+                continue; // The status line
+            }
+
+            List<String> existing = index.get(entry.getKey());
+            if (existing == null)
+            {
+                index.put(entry.getKey(), entry.getValue());
+            }
+            else
+            {
+                // Same header in different casing
+                List<String> merged = new ArrayList<>(existing);
+                merged.addAll(entry.getValue());
+                index.put(entry.getKey(), merged);
+            }
+        }
+
+        return index;
+    }
+
     public int getStatusCode()
     {
         return mStatusCode;
@@ -120,7 +178,7 @@ public class HttpResponse
 
     public String[] getHeaders(final String name)
     {
-        List<String> list = mHeaders.get(name);
+        List<String> list = name == null ? null : mHeaderIndex.get(name);
         if (list != null)
         {
             return list.toArray(new String[list.size()]);
@@ -130,7 +188,7 @@ public class HttpResponse
 
     public String getHeader(final String name)
     {
-        List<String> list = mHeaders.get(name);
+        List<String> list = name == null ? null : mHeaderIndex.get(name);
         if (list != null)
         {
             return list.isEmpty() ? null : list.get(0);
@@ -174,18 +232,28 @@ public class HttpResponse
 
     public String getHeaderParameter(final String headerName, final String paramName)
     {
-        String header = getHeader(headerName);
-        if (header != null)
-        {
-            Map<String, String> params = parseHeaderParams(header);
-            return params.get(paramName);
-        }
-        return null;
+        return getCachedHeaderParameters(headerName).get(paramName);
     }
 
     public Map<String, String> getHeaderParameters(final String headerName)
     {
-        return parseHeaderParams(getHeader(headerName));
+        return new LinkedHashMap<>(getCachedHeaderParameters(headerName));
+    }
+
+    private Map<String, String> getCachedHeaderParameters(final String headerName)
+    {
+        if (headerName == null)
+        {
+            return parseHeaderParams(null);
+        }
+
+        Map<String, String> params = mHeaderParamsCache.get(headerName);
+        if (params == null)
+        {
+            params = parseHeaderParams(getHeader(headerName));
+            mHeaderParamsCache.put(headerName, params);
+        }
+        return params;
     }
 
     public boolean isSuccessful()
@@ -205,7 +273,11 @@ public class HttpResponse
 
     public long getContentLength()
     {
-        return getLongHeader(Headers.CONTENT_LENGTH, -1);
+        if (mContentLength == -2L)
+        {
+            mContentLength = getLongHeader(Headers.CONTENT_LENGTH, -1);
+        }
+        return mContentLength;
     }
 
     public boolean hasContentLength()
@@ -215,7 +287,12 @@ public class HttpResponse
 
     public String getContentEncoding()
     {
-        return getHeader(Headers.CONTENT_ENCODING);
+        if (!mContentEncodingParsed)
+        {
+            mContentEncoding = getHeader(Headers.CONTENT_ENCODING);
+            mContentEncodingParsed = true;
+        }
+        return mContentEncoding;
     }
 
     public String getServer()
@@ -253,6 +330,34 @@ public class HttpResponse
         return getHeader(Headers.LOCATION);
     }
 
+    /**
+     * @return The time in milliseconds that the server asked to wait before trying again (in seconds or as a date), or -1 if it did not
+     */
+    public long getRetryAfter()
+    {
+        String retryAfter = getHeader(Headers.RETRY_AFTER);
+        if (retryAfter == null)
+        {
+            return -1L;
+        }
+
+        retryAfter = retryAfter.trim();
+        try
+        {
+            return Math.max(0L, Long.parseLong(retryAfter) * 1000L);
+        }
+        catch (NumberFormatException ignored)
+        {
+        }
+
+        Date date = parseHttpDate(retryAfter);
+        if (date == null)
+        {
+            return -1L;
+        }
+        return Math.max(0L, date.getTime() - System.currentTimeMillis());
+    }
+
     public String getOriginalCharset()
     {
         return mOriginalCharset;
@@ -270,6 +375,8 @@ public class HttpResponse
 
     public InputStream getInputStream(HttpRequest.ProgressListener progressListener) throws IOException
     {
+        finishTee();
+
         if (mIsBuffered)
         {
             if (mMemoryBuffer != null)
@@ -284,38 +391,11 @@ public class HttpResponse
         }
         else
         {
-            InputStream stream;
-            if (mStatusCode < 400)
-            {
-                stream = mConnection.getInputStream();
-            }
-            else
-            {
-                stream = mConnection.getErrorStream();
-                if (stream == null)
-                {
-                    try
-                    {
-                        stream = mConnection.getInputStream();
-                    }
-                    catch (IOException e)
-                    {
-                        if (getContentLength() > 0)
-                        {
-                            disconnect();
-                            throw e;
-                        }
-                        else
-                        {
-                            stream = new ByteArrayInputStream(new byte[0]);
-                        }
-                    }
-                }
-            }
+            InputStream stream = openBodyStream();
 
             boolean isCompressedStream = false;
             
-            if (mAutoDecompress && "gzip".equals(getContentEncoding()))
+            if (mAutoDecompress && "gzip".equalsIgnoreCase(getContentEncoding()))
             {
                 stream = new GZIPInputStream(stream);
                 isCompressedStream = true;
@@ -330,6 +410,44 @@ public class HttpResponse
         }
     }
 
+    private InputStream openBodyStream() throws IOException
+    {
+        if (mConnection == null)
+        {
+            throw new IOException("The response body was already consumed");
+        }
+
+        InputStream stream;
+        if (mStatusCode < 400)
+        {
+            stream = mConnection.getInputStream();
+        }
+        else
+        {
+            stream = mConnection.getErrorStream();
+            if (stream == null)
+            {
+                try
+                {
+                    stream = mConnection.getInputStream();
+                }
+                catch (IOException e)
+                {
+                    if (getContentLength() > 0)
+                    {
+                        disconnect();
+                        throw e;
+                    }
+                    else
+                    {
+                        stream = new ByteArrayInputStream(new byte[0]);
+                    }
+                }
+            }
+        }
+        return new BodyInputStream(stream);
+    }
+
     private boolean isCompressedStream(InputStream inputSream)
     {
         if (inputSream == null) return false;
@@ -340,35 +458,98 @@ public class HttpResponse
 
     public String getResponseText() throws IOException
     {
-        InputStreamReader reader = new InputStreamReader(getInputStream(), getCharset());
-        StringWriter writer = new StringWriter();
+        CharBuffer text = getResponseCharSequence();
+        return new String(text.array(), text.arrayOffset() + text.position(), text.remaining());
+    }
 
-        int firstChar = reader.read();
-        if (firstChar > -1)
+    /**
+     * Decodes the whole response using the response's charset, without creating a String out of it.
+     * This saves a copy of the text when you only need to parse it.
+     * @return The response text, with a leading BOM stripped
+     * @throws IOException
+     */
+    public CharBuffer getResponseCharSequence() throws IOException
+    {
+        byte[] data = getResponseBytes();
+
+        CharsetDecoder decoder = getCharsetDecoder();
+        ByteBuffer input = ByteBuffer.wrap(data);
+        CharBuffer output = CharBuffer.allocate((int)Math.ceil(data.length * (double)decoder.maxCharsPerByte()));
+
+        CoderResult result = decoder.decode(input, output, true);
+        while (result.isOverflow())
         {
-            if (firstChar != 0xFEFF) // 0xFEFF is the BOM, encoded in whatever encoding
-            {
-                writer.write(firstChar);
-            }
+            output = expandCharBuffer(output);
+            result = decoder.decode(input, output, true);
         }
 
-        char[] buffer = new char[BUFFER_SIZE];
-        int read;
-        while ((read = reader.read(buffer, 0, BUFFER_SIZE)) > -1)
+        result = decoder.flush(output);
+        while (result.isOverflow())
         {
-            writer.write(buffer, 0, read);
+            output = expandCharBuffer(output);
+            result = decoder.flush(output);
         }
 
-        String theString = writer.toString();
+        output.flip();
 
-        writer.close();
-        reader.close();
+        if (output.hasRemaining() && output.get(output.position()) == 0xFEFF) // 0xFEFF is the BOM, encoded in whatever encoding
+        {
+            output.position(output.position() + 1);
+        }
 
-        return theString;
+        return output;
+    }
+
+    /**
+     * Returns a Reader over the response, decoding it with the response's charset on the fly.
+     * Use this for huge text responses that you do not want to hold in memory all at once.
+     * @return A Reader which skips a leading BOM
+     * @throws IOException
+     */
+    public Reader getResponseReader() throws IOException
+    {
+        CharsetDecoder decoder = mCharset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        PushbackReader reader = new PushbackReader(new InputStreamReader(getInputStream(), decoder), 1);
+
+        int firstChar = reader.read();
+        if (firstChar > -1 && firstChar != 0xFEFF) // 0xFEFF is the BOM, encoded in whatever encoding
+        {
+            reader.unread(firstChar);
+        }
+
+        return reader;
+    }
+
+    private static CharBuffer expandCharBuffer(CharBuffer buffer)
+    {
+        CharBuffer largerBuffer = CharBuffer.allocate(buffer.capacity() * 2 + 16);
+        buffer.flip();
+        largerBuffer.put(buffer);
+        return largerBuffer;
+    }
+
+    private CharsetDecoder getCharsetDecoder()
+    {
+        if (mCharsetDecoder == null)
+        {
+            mCharsetDecoder = mCharset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        else
+        {
+            mCharsetDecoder.reset();
+        }
+        return mCharsetDecoder;
     }
 
     public byte[] getResponseBytes() throws IOException
     {
+        finishTee();
+
         if (mIsBuffered && mMemoryBuffer != null)
         {
             return mMemoryBuffer;
@@ -376,22 +557,225 @@ public class HttpResponse
         else
         {
             InputStream inputStream = getInputStream();
-            long contentLength = isCompressedStream(inputStream) ? -1L : getContentLength();
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(contentLength >= 0 ? (int)contentLength : 64);
+            long contentLength;
+            if (mIsBuffered)
+            {
+                contentLength = mFileBuffer != null ? mFileBuffer.length() : 0L;
+            }
+            else
+            {
+                contentLength = isCompressedStream(inputStream) ? -1L : getContentLength();
+            }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = inputStream.read(buffer, 0, BUFFER_SIZE)) > -1)
+            try
             {
-                outputStream.write(buffer, 0, read);
+                return readStreamToBytes(inputStream, contentLength);
             }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+    }
 
-            byte [] theData = outputStream.toByteArray();
+    private static byte[] readStreamToBytes(InputStream inputStream, long contentLength) throws IOException
+    {
+        ByteArrayOutputStream outputStream;
 
-            outputStream.close();
-            inputStream.close();
+        if (contentLength >= 0L && contentLength < Integer.MAX_VALUE)
+        {
+            // Read directly into an array of the exact size, to avoid copying it again
+            byte[] data = new byte[(int)contentLength];
+            int read, totalRead = 0;
+            while (totalRead < data.length && (read = inputStream.read(data, totalRead, data.length - totalRead)) > -1)
+            {
+                totalRead += read;
+            }
+
+            if (totalRead < data.length)
+            {
+                byte[] truncatedData = new byte[totalRead];
+                System.arraycopy(data, 0, truncatedData, 0, totalRead);
+                return truncatedData;
+            }
 
-            return theData;
+            int nextByte = inputStream.read();
+            if (nextByte == -1)
+            {
+                return data;
+            }
+
+            // There's more than Content-Length promised
+            outputStream = new ByteArrayOutputStream(data.length + BUFFER_SIZE);
+            outputStream.write(data);
+            outputStream.write(nextByte);
+        }
+        else
+        {
+            outputStream = new ByteArrayOutputStream(BUFFER_SIZE);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer, 0, BUFFER_SIZE)) > -1)
+        {
+            outputStream.write(buffer, 0, read);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Returns the response body as a channel, for NIO consumers.
+     * If the response was buffered to a file, the channel reads from the file directly (which allows reading into direct buffers without heap copies).
+     * @return A channel over the response body. Close it when done.
+     * @throws IOException
+     */
+    public ReadableByteChannel getResponseChannel() throws IOException
+    {
+        finishTee();
+
+        if (mIsBuffered && mFileBuffer != null)
+        {
+            return new FileInputStream(mFileBuffer).getChannel();
+        }
+
+        return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * Reads the next part of the response body into the specified buffer, filling it unless the response ends first.
+     * Successive calls continue where the previous one stopped.
+     * @param target The buffer to read into. May be a direct buffer.
+     * @return The number of bytes read, or -1 if the response has ended
+     * @throws IOException
+     */
+    public int readResponse(ByteBuffer target) throws IOException
+    {
+        return (int)readResponse(new ByteBuffer[]{ target });
+    }
+
+    /**
+     * Reads the next part of the response body into the specified buffers, filling them one after the other unless the response ends first.
+     * Successive calls continue where the previous one stopped.
+     * @param targets The buffers to read into. May be direct buffers.
+     * @return The number of bytes read, or -1 if the response has ended
+     * @throws IOException
+     */
+    public long readResponse(ByteBuffer[] targets) throws IOException
+    {
+        if (mResponseChannelFinished)
+        {
+            return -1L;
+        }
+
+        if (mResponseChannel == null)
+        {
+            mResponseChannel = getResponseChannel();
+        }
+
+        long totalRead = 0L;
+        for (ByteBuffer target : targets)
+        {
+            while (target.hasRemaining())
+            {
+                int read = mResponseChannel.read(target);
+                if (read == -1)
+                {
+                    mResponseChannelFinished = true;
+                    mResponseChannel.close();
+                    mResponseChannel = null;
+                    if (!mIsBuffered)
+                    {
+                        release();
+                    }
+                    return totalRead == 0L ? -1L : totalRead;
+                }
+                totalRead += read;
+            }
+        }
+
+        return totalRead;
+    }
+
+    /**
+     * Reads the whole response body into buffers acquired from the specified pool.
+     * @param pool The pool to acquire buffers from. Release them back to the pool when you are done with them.
+     * @return A list of flipped buffers (ready to be read from) holding the response body
+     * @throws IOException
+     */
+    public List<ByteBuffer> readResponse(ByteBufferPool pool) throws IOException
+    {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+
+        try
+        {
+            while (true)
+            {
+                ByteBuffer buffer = pool.acquire();
+                long read = readResponse(new ByteBuffer[]{ buffer });
+                if (read == -1L)
+                {
+                    pool.release(buffer);
+                    break;
+                }
+
+                buffer.flip();
+                buffers.add(buffer);
+
+                if (buffer.limit() < buffer.capacity())
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            pool.release(buffers);
+            throw e;
+        }
+
+        return buffers;
+    }
+
+    /**
+     * Returns the live response stream, while buffering everything that is read from it - just like {@link #prebuffer()} would.
+     * This allows processing the response as it arrives, and still being able to read it again later using {@link #getInputStream()}.
+     * Closing the returned stream before its end will buffer the rest of the response.
+     * Calling {@link #getInputStream()} or {@link #prebuffer()} while the stream is still being read will buffer the rest of the response too.
+     * @return An InputStream which reads the response and buffers it at the same time
+     * @throws IOException
+     */
+    public InputStream getTeeInputStream() throws IOException
+    {
+        return getTeeInputStream(null);
+    }
+
+    /**
+     * Returns the live response stream, while buffering everything that is read from it - just like {@link #prebuffer()} would.
+     * @param progressListener A listener for progress, or null if you do not want that.
+     * @return An InputStream which reads the response and buffers it at the same time
+     * @throws IOException
+     */
+    public InputStream getTeeInputStream(HttpRequest.ProgressListener progressListener) throws IOException
+    {
+        if (mIsBuffered || mTeeStream != null)
+        {
+            return getInputStream(progressListener);
+        }
+
+        InputStream stream = getInputStream(progressListener);
+        mTeeStream = new TeeInputStream(stream, isCompressedStream(stream) ? -1L : getContentLength());
+        return mTeeStream;
+    }
+
+    private void finishTee() throws IOException
+    {
+        if (mTeeStream != null)
+        {
+            TeeInputStream teeStream = mTeeStream;
+            mTeeStream = null;
+            teeStream.close();
         }
     }
 
@@ -402,6 +786,8 @@ public class HttpResponse
 
     public void prebuffer(HttpRequest.ProgressListener progressListener) throws IOException
     {
+        finishTee();
+
         if (mIsBuffered) return;
 
         InputStream stream = getInputStream(progressListener);
@@ -421,6 +807,7 @@ public class HttpResponse
         {
             mFileBuffer = File.createTempFile("response-buffer", ".http", null);
             mFileBuffer.deleteOnExit();
+            mOwnsFileBuffer = true;
             FileOutputStream fileOutputStream = null;
             
             IOException thrownException = null;
@@ -466,64 +853,382 @@ public class HttpResponse
             }
         }
 
-        stream.close();
-        disconnect();
+        release(stream);
 
         mIsBuffered = true;
     }
 
-    public void disconnect()
+    /**
+     * Saves the response body to the specified file, writing it directly to disk without an intermediate buffer.
+     * If the response was already prebuffered to a temporary file - that file is moved instead of copied.
+     * The data is first written next to the destination and then renamed, so the destination never contains a partial file.
+     * After this call, the response is considered buffered, and {@link #getInputStream()} will read from the destination file.
+     * @param destination The target file. Will be overwritten if exists.
+     * @throws IOException
+     */
+    public void downloadToFile(File destination) throws IOException
     {
-        if (mConnection != null)
+        downloadToFile(destination, false, null);
+    }
+
+    /**
+     * Saves the response body to the specified file, writing it directly to disk without an intermediate buffer.
+     * @param destination The target file. Will be overwritten if exists.
+     * @param sync Should we force the data to the storage device before renaming to the destination file
+     * @throws IOException
+     */
+    public void downloadToFile(File destination, boolean sync) throws IOException
+    {
+        downloadToFile(destination, sync, null);
+    }
+
+    /**
+     * Saves the response body to the specified file, writing it directly to disk without an intermediate buffer.
+     * @param destination The target file. Will be overwritten if exists.
+     * @param sync Should we force the data to the storage device before renaming to the destination file
+     * @param progressListener A listener for progress, or null if you do not want that.
+     * @throws IOException
+     */
+    public void downloadToFile(File destination, boolean sync, HttpRequest.ProgressListener progressListener) throws IOException
+    {
+        finishTee();
+
+        destination = destination.getAbsoluteFile();
+
+        if (mIsBuffered && mFileBuffer != null)
         {
+            if (mFileBuffer.equals(destination))
+            {
+                return;
+            }
+
+            if (mOwnsFileBuffer && sync)
+            {
+                // The temporary file was written without syncing, so the rename must not be able to outlive its data
+                syncFile(mFileBuffer);
+            }
+
+            if (mOwnsFileBuffer && mFileBuffer.renameTo(destination))
+            {
+                mFileBuffer = destination;
+                mOwnsFileBuffer = false;
+                return;
+            }
+
+            // Different file systems, or the buffer is a file of the user which we should not move
+            InputStream stream = new FileInputStream(mFileBuffer);
             try
             {
-                mConnection.disconnect();
+                writeStreamToFile(stream, destination, mFileBuffer.length(), sync);
             }
-            catch (Exception ignored)
+            finally
             {
+                stream.close();
+            }
 
+            if (mOwnsFileBuffer)
+            {
+                mFileBuffer.delete();
             }
-            mConnection = null;
+            mFileBuffer = destination;
+            mOwnsFileBuffer = false;
+            return;
+        }
+
+        if (mIsBuffered)
+        {
+            InputStream stream = getInputStream();
+            try
+            {
+                writeStreamToFile(stream, destination, mMemoryBuffer == null ? 0L : mMemoryBuffer.length, sync);
+            }
+            finally
+            {
+                stream.close();
+            }
+
+            // From now on, read from the destination file instead of holding the body in memory
+            mMemoryBuffer = null;
+            mFileBuffer = destination;
+            mOwnsFileBuffer = false;
+            return;
+        }
+
+        InputStream stream = getInputStream(progressListener);
+        boolean succeeded = false;
+        try
+        {
+            writeStreamToFile(stream, destination, isCompressedStream(stream) ? -1L : getContentLength(), sync);
+            succeeded = true;
         }
+        finally
+        {
+            if (succeeded)
+            {
+                release(stream);
+            }
+            else
+            {
+                stream.close();
+                disconnect();
+            }
+        }
+
+        mFileBuffer = destination;
+        mOwnsFileBuffer = false;
+        mIsBuffered = true;
     }
 
-    protected void finalize ()
+    private static void syncFile(File file) throws IOException
     {
-        if (mFileBuffer != null)
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
         {
-            mFileBuffer.delete();
-            mFileBuffer = null;
+            randomAccessFile.getChannel().force(true);
+        }
+        finally
+        {
+            randomAccessFile.close();
         }
     }
 
-    public static Date parseHttpDate(final String date)
+    private static void writeStreamToFile(InputStream stream, File destination, long contentLength, boolean sync) throws IOException
     {
-        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT_RFC1123);
+        File directory = destination.getParentFile();
+        if (directory != null && !directory.exists())
+        {
+            directory.mkdirs();
+        }
+
+        File tempFile = File.createTempFile("download", ".part", directory);
+        boolean succeeded = false;
+
         try
         {
-            return format.parse(date);
+            RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+            try
+            {
+                FileChannel channel = file.getChannel();
+
+                if (contentLength > 0L)
+                {
+                    // Sets the final length up front. This only extends the file, it stays sparse until the body is written.
+                    file.setLength(contentLength);
+                }
+
+                byte[] buffer = new byte[FILE_BUFFER_SIZE];
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                long totalWritten = 0L;
+                int read;
+                while ((read = stream.read(buffer, 0, FILE_BUFFER_SIZE)) > -1)
+                {
+                    if (read == 0) continue;
+
+                    byteBuffer.limit(read).position(0);
+                    while (byteBuffer.hasRemaining())
+                    {
+                        totalWritten += channel.write(byteBuffer, totalWritten);
+                    }
+                }
+
+                if (totalWritten != contentLength)
+                {
+                    // The server sent less than it promised, or the length was unknown
+                    file.setLength(totalWritten);
+                }
+
+                if (sync)
+                {
+                    channel.force(true);
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+
+            if (!tempFile.renameTo(destination))
+            {
+                // Some platforms will not rename over an existing file
+                destination.delete();
+                if (!tempFile.renameTo(destination))
+                {
+                    throw new IOException("Failed renaming " + tempFile + " to " + destination);
+                }
+            }
+
+            succeeded = true;
+        }
+        finally
+        {
+            if (!succeeded)
+            {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return A publisher of the response body, see {@link #getBodyPublisher(Executor)}. Reads run on {@link HttpRequest#getDefaultFutureExecutor()}.
+     */
+    public HttpFlow.Publisher<ByteBuffer> getBodyPublisher()
+    {
+        return getBodyPublisher(HttpRequest.getDefaultFutureExecutor());
+    }
+
+    /**
+     * Returns a publisher of the response body, for streaming it into a reactive pipeline.
+     * The body is read from the connection only as the subscriber requests more, so a slow subscriber applies backpressure
+     * to the connection instead of having the response buffered.
+     * It can be subscribed to once, unless the response was buffered.
+     * @param executor The executor that the (blocking) reads run on, and the subscriber is called on
+     */
+    public HttpFlow.Publisher<ByteBuffer> getBodyPublisher(Executor executor)
+    {
+        return new ResponseBodyPublisher(this, executor);
+    }
+
+    /**
+     * Marks the body as taken by a publisher
+     * @return False if it can't be published again, because it's not buffered and was already published
+     */
+    synchronized boolean claimBodyForPublisher()
+    {
+        if (mIsBuffered) return true;
+        if (mBodyPublished) return false;
+        mBodyPublished = true;
+        return true;
+    }
+
+    /**
+     * Releases the connection without disconnecting it, so the transport can keep it alive and reuse it for the next request.
+     * Whatever is left of the response body is read out first, if it's small. Otherwise the connection is disconnected.
+     * This is done automatically once the response was read through, by prebuffer() and the other buffering functions.
+     * Use {@link #disconnect()} to abort a response.
+     */
+    public void release()
+    {
+        if (mConnection == null) return;
+
+        if (mBodyStreamClosed)
+        {
+            // The transport already took the connection back when the body stream was closed
+            mConnection = null;
+            return;
+        }
+
+        InputStream stream;
+        try
+        {
+            stream = openBodyStream();
         }
-        catch (ParseException ignored)
+        catch (IOException e)
         {
+            disconnect();
+            return;
         }
-        format = new SimpleDateFormat(DATE_FORMAT_RFC1036);
+        release(stream);
+    }
+
+    /**
+     * Releases the connection after reading out and closing the specified body stream.
+     * @param stream A stream returned from getInputStream()
+     */
+    void release(InputStream stream)
+    {
+        boolean drained = false;
         try
         {
-            return format.parse(date);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0L;
+            int read;
+            while (total <= MAX_SIZE_TO_DRAIN && (read = stream.read(buffer, 0, BUFFER_SIZE)) > -1)
+            {
+                total += read;
+            }
+            drained = total <= MAX_SIZE_TO_DRAIN;
+        }
+        catch (IOException ignored)
+        {
         }
-        catch (ParseException ignored)
+
+        if (!drained)
         {
+            // Closing a stream that was not read through may block until it is, so disconnect first
+            disconnect();
         }
-        format = new SimpleDateFormat(DATE_FORMAT_ASCTIME);
+
         try
         {
-            return format.parse(date);
+            stream.close();
         }
-        catch (ParseException ignored)
+        catch (IOException ignored)
         {
         }
-        return null;
+
+        mConnection = null;
+    }
+
+    public void disconnect()
+    {
+        if (mConnection != null)
+        {
+            try
+            {
+                mConnection.disconnect();
+            }
+            catch (Exception ignored)
+            {
+
+            }
+            mConnection = null;
+        }
+    }
+
+    /**
+     * @return In nanoseconds, the time from starting to send the request until the response headers arrived,
+     * without any time it waited before being sent. -1 if unknown.
+     */
+    long getSendTime()
+    {
+        return mSendTime;
+    }
+
+    void setSendTime(long sendTime)
+    {
+        mSendTime = sendTime;
+    }
+
+    /**
+     * Disconnects, and drops whatever was buffered, for a response that is not going to be read.
+     * May be called from another thread while the response is being buffered, to abort it.
+     */
+    void discard()
+    {
+        disconnect();
+
+        File fileBuffer = mFileBuffer;
+        if (fileBuffer != null && mOwnsFileBuffer)
+        {
+            fileBuffer.delete();
+            mFileBuffer = null;
+        }
+        mMemoryBuffer = null;
+    }
+
+    protected void finalize ()
+    {
+        if (mFileBuffer != null && mOwnsFileBuffer)
+        {
+            mFileBuffer.delete();
+            mFileBuffer = null;
+        }
+    }
+
+    public static Date parseHttpDate(final String date)
+    {
+        long time = HttpDate.parse(date);
+        return time == HttpDate.INVALID ? null : new Date(time);
     }
 
     public static Map<String, String> parseHeaderParams(final String header)
@@ -596,6 +1301,7 @@ public class HttpResponse
         public static final String EXPIRES = "Expires";
         public static final String LAST_MODIFIED = "Last-Modified";
         public static final String LOCATION = "Location";
+        public static final String RETRY_AFTER = "Retry-After";
         public static final String SERVER = "Server";
     }
 
@@ -633,6 +1339,7 @@ public class HttpResponse
         public static final int UNSUPPORTED_MEDIA_TYPE = 415;
         public static final int REQUEST_RANGE_NOT_SATISFIABLE = 416;
         public static final int EXPECTATION_FAILED = 417;
+        public static final int TOO_MANY_REQUESTS = 429;
         public static final int INTERNAL_SERVER_ERROR = 500;
         public static final int NOT_IMPLEMENTED = 501;
         public static final int BAD_GATEWAY = 502;
@@ -641,6 +1348,172 @@ public class HttpResponse
         public static final int HTTP_VERSION_NOT_SUPPORTED = 505;
     }
 
+    private class TeeInputStream extends InputStream
+    {
+        private InputStream mInputStream;
+        private byte[] mMemory;
+        private int mMemoryCount = 0;
+        private File mFile = null;
+        private FileOutputStream mFileStream = null;
+        private boolean mIsFinished = false;
+
+        public TeeInputStream(InputStream inputStream, long contentLength)
+        {
+            super();
+
+            this.mInputStream = inputStream;
+            this.mMemory = new byte[contentLength >= 0L && contentLength <= MAX_SIZE_TO_ALLOW_IN_MEMORY ? (int)contentLength : BUFFER_SIZE];
+        }
+
+        private void tee(byte[] buffer, int offset, int count) throws IOException
+        {
+            if (mFileStream == null && mMemoryCount + count > mMemory.length)
+            {
+                if (mMemoryCount + count <= MAX_SIZE_TO_ALLOW_IN_MEMORY)
+                {
+                    byte[] memory = new byte[Math.min(Math.max(mMemory.length * 2, mMemoryCount + count), MAX_SIZE_TO_ALLOW_IN_MEMORY)];
+                    System.arraycopy(mMemory, 0, memory, 0, mMemoryCount);
+                    mMemory = memory;
+                }
+                else
+                {
+                    // Too large for memory, spill what we have to a file
+                    mFile = File.createTempFile("response-buffer", ".http", null);
+                    mFile.deleteOnExit();
+                    mFileStream = new FileOutputStream(mFile);
+                    mFileStream.write(mMemory, 0, mMemoryCount);
+                    mMemory = null;
+                }
+            }
+
+            if (mFileStream != null)
+            {
+                mFileStream.write(buffer, offset, count);
+            }
+            else
+            {
+                System.arraycopy(buffer, offset, mMemory, mMemoryCount, count);
+                mMemoryCount += count;
+            }
+        }
+
+        private void finish() throws IOException
+        {
+            if (mIsFinished) return;
+            mIsFinished = true;
+
+            release(mInputStream);
+
+            if (mFileStream != null)
+            {
+                mFileStream.flush();
+                mFileStream.close();
+                mFileBuffer = mFile;
+                mOwnsFileBuffer = true;
+            }
+            else if (mMemoryCount == mMemory.length)
+            {
+                mMemoryBuffer = mMemory;
+            }
+            else
+            {
+                mMemoryBuffer = new byte[mMemoryCount];
+                System.arraycopy(mMemory, 0, mMemoryBuffer, 0, mMemoryCount);
+            }
+            mMemory = null;
+
+            mIsBuffered = true;
+            if (mTeeStream == this)
+            {
+                mTeeStream = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (mIsFinished) return;
+
+            // Buffer whatever the caller did not read, so the response can be replayed in full
+            byte[] buffer = new byte[BUFFER_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (read(buffer, 0, BUFFER_SIZE) > -1) { }
+
+            finish();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] buffer = new byte[1];
+            int read;
+            while ((read = read(buffer, 0, 1)) == 0) { }
+            return read == -1 ? -1 : (buffer[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException
+        {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException
+        {
+            if (mIsFinished) return -1;
+
+            int read = mInputStream.read(buffer, byteOffset, byteCount);
+            if (read > 0)
+            {
+                tee(buffer, byteOffset, read);
+            }
+            else if (read == -1)
+            {
+                finish();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException
+        {
+            // Skipped bytes still have to be buffered
+            byte[] buffer = new byte[(int)Math.min(byteCount, BUFFER_SIZE)];
+            long skipped = 0L;
+            while (skipped < byteCount)
+            {
+                int read = read(buffer, 0, (int)Math.min(byteCount - skipped, buffer.length));
+                if (read == -1) break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return mIsFinished ? 0 : mInputStream.available();
+        }
+    }
+
+    /**
+     * Marks the response body as closed, so release() knows that the transport has already taken the connection back
+     */
+    private class BodyInputStream extends FilterInputStream
+    {
+        public BodyInputStream(InputStream inputStream)
+        {
+            super(inputStream);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            mBodyStreamClosed = true;
+            super.close();
+        }
+    }
+
     public static class ProgressInputStream extends InputStream
     {
         InputStream inputStream;
@@ -0,0 +1,433 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownServiceException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Sends a request again after a transient failure: a retryable exception, or a retryable status code like 503.
+ * Attempts are spaced by exponential backoff with jitter, or by the server's Retry-After when it's within the maximum backoff.
+ * A retry budget caps retries to a ratio of requests, so retries don't pile up on a backend that is down.
+ *
+ * Only idempotent methods are retried, except for failures to connect, where the request never reached the server.
+ * For those, the body of an idempotent request is encoded once, kept in memory or in its spool file, and replayed on retries.
+ * A non-idempotent request is encoded again from its source after a failure to connect, so it is not retried if its body is a stream.
+ *
+ * Set it on requests with {@link HttpRequest#setRetryPolicy(HttpRetryPolicy)}, and getResponse() will retry them.
+ * A policy is usually shared between the requests to a backend, for the budget to work.
+ */
+public class HttpRetryPolicy
+{
+    private static final double MAX_BUDGET = 10.0; // Retries that may happen in a burst
+    private static final long ABORT_POLL_INTERVAL = 50L; // How often requestShouldAbort is checked during backoff
+
+    private static final Random sRandom = new Random();
+
+    private int mMaxAttempts = 3;
+    private long mInitialBackoff = 100L;
+    private long mMaxBackoff = 10000L;
+    private double mBackoffMultiplier = 2.0;
+    private double mJitter = 1.0;
+    private double mRetryBudget = 0.2;
+    private HashSet<String> mIdempotentMethods = new HashSet<>(Arrays.asList(
+            HttpRequest.HttpMethod.GET,
+            HttpRequest.HttpMethod.HEAD,
+            HttpRequest.HttpMethod.OPTIONS,
+            HttpRequest.HttpMethod.PUT,
+            HttpRequest.HttpMethod.DELETE,
+            HttpRequest.HttpMethod.TRACE));
+    private HashSet<Integer> mRetryableStatusCodes = new HashSet<>(Arrays.asList(
+            HttpResponse.StatusCodes.REQUEST_TIMEOUT,
+            HttpResponse.StatusCodes.TOO_MANY_REQUESTS,
+            HttpResponse.StatusCodes.BAD_GATEWAY,
+            HttpResponse.StatusCodes.SERVICE_UNAVAILABLE,
+            HttpResponse.StatusCodes.GATEWAY_TIMEOUT));
+    private Class<?>[] mRetryableExceptions = { IOException.class };
+
+    private double mBudget = MAX_BUDGET;
+    private long mRequestCount = 0;
+    private long mRetryCount = 0;
+    private long mBudgetExhaustedCount = 0;
+
+    public int getMaxAttempts()
+    {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Sets the maximum number of attempts, including the first one. Default is 3.
+     */
+    public synchronized HttpRetryPolicy setMaxAttempts(int maxAttempts)
+    {
+        if (maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("maxAttempts < 1: " + maxAttempts);
+        }
+        this.mMaxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Sets the backoff between attempts.
+     * @param initialBackoff The delay in milliseconds before the first retry. Default is 100.
+     * @param maxBackoff The maximum delay in milliseconds. Default is 10000.
+     * @param multiplier What the delay is multiplied by on each retry. Default is 2.
+     */
+    public synchronized HttpRetryPolicy setBackoff(long initialBackoff, long maxBackoff, double multiplier)
+    {
+        this.mInitialBackoff = initialBackoff;
+        this.mMaxBackoff = maxBackoff;
+        this.mBackoffMultiplier = multiplier;
+        return this;
+    }
+
+    public long getInitialBackoff()
+    {
+        return mInitialBackoff;
+    }
+
+    public long getMaxBackoff()
+    {
+        return mMaxBackoff;
+    }
+
+    public double getBackoffMultiplier()
+    {
+        return mBackoffMultiplier;
+    }
+
+    public double getJitter()
+    {
+        return mJitter;
+    }
+
+    /**
+     * Sets how much of the backoff is randomized, so clients that failed together do not retry together.
+     * Default is 1, for a random delay between 0 and the backoff. 0 waits the backoff exactly.
+     */
+    public synchronized HttpRetryPolicy setJitter(double jitter)
+    {
+        if (jitter < 0.0 || jitter > 1.0)
+        {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        this.mJitter = jitter;
+        return this;
+    }
+
+    public double getRetryBudget()
+    {
+        return mRetryBudget;
+    }
+
+    /**
+     * Sets the maximum number of retries as a ratio of requests. Default is 0.2, for up to 20% additional requests.
+     * Short bursts over that are allowed.
+     */
+    public synchronized HttpRetryPolicy setRetryBudget(double ratio)
+    {
+        this.mRetryBudget = ratio;
+        return this;
+    }
+
+    /**
+     * Sets the methods that are safe to send again. Default is GET, HEAD, OPTIONS, PUT, DELETE and TRACE.
+     */
+    public synchronized HttpRetryPolicy setIdempotentMethods(String... methods)
+    {
+        this.mIdempotentMethods = new HashSet<>(Arrays.asList(methods));
+        return this;
+    }
+
+    /**
+     * Sets the status codes that are retried. Default is 408, 429, 502, 503 and 504.
+     */
+    public synchronized HttpRetryPolicy setRetryableStatusCodes(int... statusCodes)
+    {
+        HashSet<Integer> set = new HashSet<>();
+        for (int statusCode : statusCodes)
+        {
+            set.add(statusCode);
+        }
+        this.mRetryableStatusCodes = set;
+        return this;
+    }
+
+    /**
+     * Sets the exceptions that are retried, including their subclasses. Default is IOException.
+     * Errors that would fail again anyway, like an invalid certificate, an open circuit or a long rate limit, are never retried.
+     */
+    public synchronized HttpRetryPolicy setRetryableExceptions(Class<?>... exceptions)
+    {
+        this.mRetryableExceptions = exceptions.clone();
+        return this;
+    }
+
+    public synchronized long getRequestCount()
+    {
+        return mRequestCount;
+    }
+
+    /**
+     * @return How many retries were made
+     */
+    public synchronized long getRetryCount()
+    {
+        return mRetryCount;
+    }
+
+    /**
+     * @return How many times a retry was given up because the budget was used up
+     */
+    public synchronized long getBudgetExhaustedCount()
+    {
+        return mBudgetExhaustedCount;
+    }
+
+    public synchronized void resetStats()
+    {
+        mRequestCount = 0;
+        mRetryCount = 0;
+        mBudgetExhaustedCount = 0;
+    }
+
+    /**
+     * @return Whether the method is safe to send again, even if the server may have received it already
+     */
+    protected synchronized boolean isIdempotent(String method)
+    {
+        return mIdempotentMethods.contains(method);
+    }
+
+    protected synchronized boolean isRetryable(int statusCode)
+    {
+        return mRetryableStatusCodes.contains(statusCode);
+    }
+
+    protected boolean isRetryable(Exception error)
+    {
+        if (error instanceof MalformedURLException ||
+                error instanceof UnknownServiceException ||
+                error instanceof SSLPeerUnverifiedException ||
+                error instanceof SSLHandshakeException ||
+                error instanceof HttpCircuitBreaker.CircuitOpenException ||
+                error instanceof HttpRateLimitCoordinator.RateLimitedException ||
+                (error instanceof InterruptedIOException && Thread.currentThread().isInterrupted()))
+        {
+            return false;
+        }
+
+        Class<?>[] retryableExceptions;
+        synchronized (this)
+        {
+            retryableExceptions = mRetryableExceptions;
+        }
+        for (Class<?> type : retryableExceptions)
+        {
+            if (type.isInstance(error))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the request certainly did not reach the server, so it's safe to send again whatever its method is
+     */
+    protected boolean isNotSent(Exception error)
+    {
+        return error instanceof ConnectException || error instanceof NoRouteToHostException;
+    }
+
+    /**
+     * @param retry The number of the retry, starting at 1
+     * @return The delay in milliseconds before the retry
+     */
+    protected synchronized long getBackoff(int retry)
+    {
+        double backoff = Math.min(mMaxBackoff, mInitialBackoff * Math.pow(mBackoffMultiplier, retry - 1));
+        double random;
+        synchronized (sRandom)
+        {
+            random = sRandom.nextDouble();
+        }
+        return (long) (backoff * (1.0 - mJitter * random));
+    }
+
+    private synchronized void startRequest()
+    {
+        mRequestCount++;
+        mBudget = Math.min(MAX_BUDGET, mBudget + mRetryBudget);
+    }
+
+    private synchronized boolean tryStartRetry()
+    {
+        if (mBudget < 1.0)
+        {
+            mBudgetExhaustedCount++;
+            return false;
+        }
+
+        mBudget -= 1.0;
+        mRetryCount++;
+        return true;
+    }
+
+    /**
+     * Sends the request, and again after transient failures
+     * @return HttpResponse, or null if aborted.
+     */
+    HttpResponse getResponse(HttpRequest request, HttpRequest.ProgressListener progressListener, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        int maxAttempts;
+        long maxBackoff;
+        synchronized (this)
+        {
+            maxAttempts = mMaxAttempts;
+            maxBackoff = mMaxBackoff;
+        }
+
+        startRequest();
+
+        boolean idempotent = isIdempotent(request.getHttpMethod());
+        // Only a request that may be retried after it was sent needs its body kept around
+        ReplayableBody replayableBody = idempotent && maxAttempts > 1 && request.hasRequestBody() ? new ReplayableBody() : null;
+
+        try
+        {
+            for (int attempt = 1; ; attempt++)
+            {
+                HttpResponse response;
+                long delay;
+
+                try
+                {
+                    response = request.getResponseAttempt(progressListener, requestShouldAbort, replayableBody);
+                }
+                catch (IOException e)
+                {
+                    if (attempt >= maxAttempts ||
+                            !(idempotent || (isNotSent(e) && request.isRequestBodyRepeatable())) ||
+                            !isRetryable(e) ||
+                            (replayableBody != null && !replayableBody.isCaptured()) ||
+                            !tryStartRetry())
+                    {
+                        throw e;
+                    }
+
+                    delay = getBackoff(attempt);
+                    if (!backoff(delay, requestShouldAbort))
+                    {
+                        return null;
+                    }
+                    continue;
+                }
+
+                if (response == null ||
+                        attempt >= maxAttempts ||
+                        !idempotent ||
+                        !isRetryable(response.getStatusCode()))
+                {
+                    return response;
+                }
+
+                delay = getBackoff(attempt);
+                long retryAfter = response.getRetryAfter();
+                if (retryAfter > maxBackoff)
+                {
+                    // The server asked for more than we are willing to wait, let the caller decide
+                    return response;
+                }
+                delay = Math.max(delay, retryAfter);
+
+                if (!tryStartRetry())
+                {
+                    return response;
+                }
+
+                // Error bodies are usually small, so this keeps the connection for the retry
+                response.release();
+
+                if (!backoff(delay, requestShouldAbort))
+                {
+                    return null;
+                }
+            }
+        }
+        finally
+        {
+            if (replayableBody != null)
+            {
+                replayableBody.release();
+            }
+        }
+    }
+
+    /**
+     * Waits before a retry
+     * @return False if aborted meanwhile
+     */
+    private static boolean backoff(long delay, AtomicBoolean requestShouldAbort) throws IOException
+    {
+        long until = System.nanoTime() + delay * 1000000L;
+        try
+        {
+            while (true)
+            {
+                if (requestShouldAbort != null && requestShouldAbort.get())
+                {
+                    return false;
+                }
+
+                long remaining = (until - System.nanoTime()) / 1000000L;
+                if (remaining <= 0L)
+                {
+                    return true;
+                }
+
+                Thread.sleep(Math.min(remaining, ABORT_POLL_INTERVAL));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
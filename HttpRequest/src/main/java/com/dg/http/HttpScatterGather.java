@@ -0,0 +1,509 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends a set of requests at once, typically the same logical query to several mirrors,
+ * and gathers responses until enough of them succeeded: the first success, the first N (a quorum), or all of them.
+ * A deadline bounds the wait. Once the outcome is decided, the remaining requests are aborted through their requestShouldAbort flag,
+ * responses that are still arriving are disconnected, and late responses are discarded.
+ *
+ * Only a successful (2xx) response counts as a success, and it is buffered (like {@link HttpResponse#prebuffer()} does) first.
+ * A response with an error status fails its request with an {@link UnsuccessfulResponseException},
+ * and gathering keeps waiting for the others, unless {@link #setAcceptAnyStatus(boolean)} is set.
+ */
+public class HttpScatterGather
+{
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_ABORTED = 3;
+
+    private final ArrayList<HttpRequest> mRequests;
+    private int mRequiredSuccesses = 1;
+    private long mDeadline = 0L;
+    private Executor mExecutor = null;
+    private boolean mAcceptAnyStatus = false;
+
+    public HttpScatterGather(Collection<HttpRequest> requests)
+    {
+        if (requests.isEmpty())
+        {
+            throw new IllegalArgumentException("No requests to send");
+        }
+        this.mRequests = new ArrayList<>(requests);
+    }
+
+    /**
+     * Waits for the first request that succeeds, and aborts the rest
+     */
+    public static HttpScatterGather firstSuccess(Collection<HttpRequest> requests)
+    {
+        return new HttpScatterGather(requests);
+    }
+
+    /**
+     * Waits for the first {@code count} requests that succeed (a quorum), and aborts the rest
+     */
+    public static HttpScatterGather firstN(Collection<HttpRequest> requests, int count)
+    {
+        return new HttpScatterGather(requests).setRequiredSuccesses(count);
+    }
+
+    /**
+     * Waits for all requests, but no longer than the deadline. The ones still running then are aborted.
+     * @param deadline The deadline in milliseconds
+     */
+    public static HttpScatterGather all(Collection<HttpRequest> requests, long deadline)
+    {
+        return new HttpScatterGather(requests).setRequiredSuccesses(requests.size()).setDeadline(deadline);
+    }
+
+    public int getRequiredSuccesses()
+    {
+        return mRequiredSuccesses;
+    }
+
+    /**
+     * Sets how many requests have to succeed before the rest are aborted. Default is 1.
+     * Gathering also ends once that is no longer possible, because too many failed.
+     */
+    public HttpScatterGather setRequiredSuccesses(int requiredSuccesses)
+    {
+        if (requiredSuccesses < 1 || requiredSuccesses > mRequests.size())
+        {
+            throw new IllegalArgumentException("requiredSuccesses must be between 1 and the number of requests: " + requiredSuccesses);
+        }
+        this.mRequiredSuccesses = requiredSuccesses;
+        return this;
+    }
+
+    public long getDeadline()
+    {
+        return mDeadline;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds to wait for responses. 0 (the default) waits until the outcome is decided.
+     */
+    public HttpScatterGather setDeadline(long deadline)
+    {
+        this.mDeadline = deadline;
+        return this;
+    }
+
+    public Executor getExecutor()
+    {
+        return mExecutor;
+    }
+
+    /**
+     * Sets the executor to send the requests on. Default is null, for {@link HttpRequest#getDefaultFutureExecutor()}.
+     * It should be able to run all of the requests at once.
+     */
+    public HttpScatterGather setExecutor(Executor executor)
+    {
+        this.mExecutor = executor;
+        return this;
+    }
+
+    public boolean getAcceptAnyStatus()
+    {
+        return mAcceptAnyStatus;
+    }
+
+    /**
+     * Sets whether a response with an error status counts as a success too, as the server did answer. Default is false.
+     */
+    public HttpScatterGather setAcceptAnyStatus(boolean acceptAnyStatus)
+    {
+        this.mAcceptAnyStatus = acceptAnyStatus;
+        return this;
+    }
+
+    /**
+     * Sends the requests and waits until enough of them succeeded, too many failed, or the deadline passed.
+     * If interrupted, all requests are aborted.
+     * @return The outcome of each request
+     */
+    public Result gather() throws InterruptedException
+    {
+        final Gathering gathering = new Gathering(mRequests.size(), mRequiredSuccesses);
+        final boolean acceptAnyStatus = mAcceptAnyStatus;
+
+        for (int i = 0; i < mRequests.size(); i++)
+        {
+            final int index = i;
+            final HttpRequest request = mRequests.get(i);
+            request.executeTask(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    send(gathering, index, request, acceptAnyStatus);
+                }
+            }, mExecutor, new HttpDispatcher.RejectionListener()
+            {
+                @Override
+                public void onRejected(RejectedExecutionException e)
+                {
+                    gathering.failed(index, e);
+                }
+            });
+        }
+
+        boolean timedOut = false;
+        try
+        {
+            long deadline = mDeadline > 0L ? System.nanoTime() + mDeadline * 1000000L : 0L;
+            synchronized (gathering)
+            {
+                while (!gathering.isDecided())
+                {
+                    if (deadline == 0L)
+                    {
+                        gathering.wait();
+                        continue;
+                    }
+
+                    long remaining = (deadline - System.nanoTime()) / 1000000L;
+                    if (remaining <= 0L)
+                    {
+                        timedOut = true;
+                        break;
+                    }
+                    gathering.wait(remaining);
+                }
+            }
+        }
+        finally
+        {
+            gathering.finish();
+        }
+
+        return gathering.getResult(timedOut);
+    }
+
+    private static void send(Gathering gathering, int index, HttpRequest request, boolean acceptAnyStatus)
+    {
+        if (gathering.isFinished()) return;
+
+        HttpResponse response = null;
+        try
+        {
+            response = request.getResponse(null, gathering.mAborts[index]);
+            if (response == null)
+            {
+                gathering.failed(index, new CancellationException("Aborted"));
+                return;
+            }
+
+            if (!acceptAnyStatus && !response.isSuccessful())
+            {
+                // Error bodies are usually small, so this keeps the connection
+                response.release();
+                gathering.failed(index, new UnsuccessfulResponseException(response.getStatusCode(), response.getStatusMessage()));
+                return;
+            }
+
+            if (!gathering.attach(index, response))
+            {
+                response.discard();
+                return;
+            }
+
+            response.prebuffer();
+
+            if (!gathering.succeeded(index, response))
+            {
+                response.discard();
+            }
+        }
+        catch (Exception e)
+        {
+            if (response != null)
+            {
+                response.discard();
+            }
+            gathering.failed(index, e);
+        }
+    }
+
+    private static class Gathering
+    {
+        private final AtomicBoolean[] mAborts;
+        private final HttpResponse[] mResponses;
+        private final Exception[] mErrors;
+        private final int[] mStates;
+        private final ArrayList<HttpResponse> mCompletionOrder = new ArrayList<>();
+        private final int mRequiredSuccesses;
+        private int mPending;
+        private int mSucceeded = 0;
+        private boolean mFinished = false;
+
+        Gathering(int count, int requiredSuccesses)
+        {
+            mAborts = new AtomicBoolean[count];
+            for (int i = 0; i < count; i++)
+            {
+                mAborts[i] = new AtomicBoolean(false);
+            }
+            mResponses = new HttpResponse[count];
+            mErrors = new Exception[count];
+            mStates = new int[count];
+            mRequiredSuccesses = requiredSuccesses;
+            mPending = count;
+        }
+
+        synchronized boolean isFinished()
+        {
+            return mFinished;
+        }
+
+        synchronized boolean isDecided()
+        {
+            return mSucceeded >= mRequiredSuccesses || mSucceeded + mPending < mRequiredSuccesses || mPending == 0;
+        }
+
+        /**
+         * Keeps the response that is being buffered, so it can be disconnected if the request loses
+         * @return False if gathering already finished
+         */
+        synchronized boolean attach(int index, HttpResponse response)
+        {
+            if (mFinished) return false;
+            mResponses[index] = response;
+            return true;
+        }
+
+        /**
+         * @return False if gathering already finished, and the response was not taken
+         */
+        synchronized boolean succeeded(int index, HttpResponse response)
+        {
+            if (mFinished || mStates[index] != STATE_PENDING) return false;
+
+            mStates[index] = STATE_SUCCEEDED;
+            mResponses[index] = response;
+            mCompletionOrder.add(response);
+            mSucceeded++;
+            mPending--;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void failed(int index, Exception error)
+        {
+            if (mFinished || mStates[index] != STATE_PENDING) return;
+
+            mStates[index] = STATE_FAILED;
+            mResponses[index] = null;
+            mErrors[index] = error;
+            mPending--;
+            notifyAll();
+        }
+
+        /**
+         * Stops taking results, and aborts the requests that are still running
+         */
+        void finish()
+        {
+            ArrayList<HttpResponse> losers = new ArrayList<>();
+
+            synchronized (this)
+            {
+                if (mFinished) return;
+                mFinished = true;
+
+                for (int i = 0; i < mStates.length; i++)
+                {
+                    if (mStates[i] != STATE_PENDING) continue;
+
+                    mStates[i] = STATE_ABORTED;
+                    mErrors[i] = new CancellationException("Aborted");
+                    mAborts[i].set(true);
+                    if (mResponses[i] != null)
+                    {
+                        losers.add(mResponses[i]);
+                        mResponses[i] = null;
+                    }
+                }
+            }
+
+            // Disconnecting cuts short a response that is still being buffered, the sending thread discards it after that
+            for (HttpResponse response : losers)
+            {
+                response.discard();
+            }
+        }
+
+        synchronized Result getResult(boolean timedOut)
+        {
+            return new Result(mResponses.clone(), mErrors.clone(), mStates.clone(),
+                    new ArrayList<>(mCompletionOrder), mSucceeded >= mRequiredSuccesses, timedOut);
+        }
+    }
+
+    /**
+     * The error of a request that was answered with an error status
+     */
+    public static class UnsuccessfulResponseException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatusCode;
+        private final String mStatusMessage;
+
+        public UnsuccessfulResponseException(int statusCode, String statusMessage)
+        {
+            super("The server answered " + statusCode + (statusMessage == null ? "" : " " + statusMessage));
+            this.mStatusCode = statusCode;
+            this.mStatusMessage = statusMessage;
+        }
+
+        public int getStatusCode()
+        {
+            return mStatusCode;
+        }
+
+        public String getStatusMessage()
+        {
+            return mStatusMessage;
+        }
+    }
+
+    public static final class Result
+    {
+        private final HttpResponse[] mResponses;
+        private final Exception[] mErrors;
+        private final int[] mStates;
+        private final List<HttpResponse> mCompletionOrder;
+        private final boolean mSatisfied;
+        private final boolean mTimedOut;
+
+        Result(HttpResponse[] responses, Exception[] errors, int[] states,
+               List<HttpResponse> completionOrder, boolean satisfied, boolean timedOut)
+        {
+            this.mResponses = responses;
+            this.mErrors = errors;
+            this.mStates = states;
+            this.mCompletionOrder = Collections.unmodifiableList(completionOrder);
+            this.mSatisfied = satisfied;
+            this.mTimedOut = timedOut;
+        }
+
+        /**
+         * @return Whether the required number of requests succeeded
+         */
+        public boolean isSatisfied()
+        {
+            return mSatisfied;
+        }
+
+        /**
+         * @return Whether gathering stopped because the deadline passed
+         */
+        public boolean isTimedOut()
+        {
+            return mTimedOut;
+        }
+
+        /**
+         * @return The first successful response, or null if none succeeded
+         */
+        public HttpResponse getResponse()
+        {
+            return mCompletionOrder.isEmpty() ? null : mCompletionOrder.get(0);
+        }
+
+        /**
+         * @return The successful responses, in the order they completed
+         */
+        public List<HttpResponse> getResponses()
+        {
+            return mCompletionOrder;
+        }
+
+        /**
+         * @param index The position of the request in the input
+         * @return The response to that request, or null if it failed or was aborted
+         */
+        public HttpResponse getResponse(int index)
+        {
+            return mResponses[index];
+        }
+
+        /**
+         * @param index The position of the request in the input
+         * @return The error of that request, an UnsuccessfulResponseException if it was answered with an error status,
+         * a CancellationException if it was aborted, or null if it succeeded
+         */
+        public Exception getError(int index)
+        {
+            return mErrors[index];
+        }
+
+        public boolean isAborted(int index)
+        {
+            return mStates[index] == STATE_ABORTED;
+        }
+
+        public int getSucceeded()
+        {
+            return count(STATE_SUCCEEDED);
+        }
+
+        public int getFailed()
+        {
+            return count(STATE_FAILED);
+        }
+
+        public int getAborted()
+        {
+            return count(STATE_ABORTED);
+        }
+
+        private int count(int state)
+        {
+            int count = 0;
+            for (int s : mStates)
+            {
+                if (s == state) count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * A transport opens the connections that HttpRequest sends its requests over.
+ * The default is {@link UrlConnectionTransport}, which uses the platform's HttpURLConnection.
+ * Other transports return their own HttpURLConnection subclasses (usually based on {@link TransportConnection}),
+ * so HttpRequest and HttpResponse work the same regardless of the transport.
+ */
+public abstract class HttpTransport
+{
+    /**
+     * Opens a new, not yet connected, connection to the specified url.
+     * @param url The url to connect to
+     * @param proxy The proxy to connect through, or null for a direct connection
+     * @return A connection which HttpRequest will configure and send the request on
+     * @throws IOException
+     */
+    public abstract HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException;
+
+    /**
+     * Sets the HTTP method on a connection opened by this transport.
+     * Override if the connection type needs special handling for some methods.
+     * @param connection A connection opened by this transport
+     * @param method The HTTP method
+     * @throws IOException
+     */
+    public void setRequestMethod(HttpURLConnection connection, String method) throws IOException
+    {
+        connection.setRequestMethod(method);
+    }
+}
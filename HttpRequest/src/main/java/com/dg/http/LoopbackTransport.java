@@ -0,0 +1,236 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-process transport, which hands requests to a {@link Handler} instead of sending them over the network.
+ * Useful for testing and benchmarking the request encoding and response decoding at memory speed.
+ */
+@SuppressWarnings("unused")
+public class LoopbackTransport extends HttpTransport
+{
+    private final Handler mHandler;
+
+    public LoopbackTransport(Handler handler)
+    {
+        this.mHandler = handler;
+    }
+
+    public Handler getHandler()
+    {
+        return mHandler;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+    {
+        return new LoopbackConnection(url, mHandler);
+    }
+
+    public abstract static class Handler
+    {
+        /**
+         * Handles a request. Called on the thread that reads the response.
+         * @param exchange Holds the request, and collects the response
+         * @throws IOException
+         */
+        public abstract void handle(Exchange exchange) throws IOException;
+    }
+
+    public static class Exchange
+    {
+        private final URL mUrl;
+        private final String mMethod;
+        private final Map<String, List<String>> mRequestHeaders;
+        private final byte[] mRequestBody;
+        private final boolean mIsChunked;
+
+        private int mStatusCode = HttpResponse.StatusCodes.OK;
+        private String mStatusMessage = "OK";
+        private final ArrayList<String> mResponseHeaderKeys = new ArrayList<>();
+        private final ArrayList<String> mResponseHeaderValues = new ArrayList<>();
+        private final ByteArrayOutputStream mResponseBody = new ByteArrayOutputStream();
+        private InputStream mResponseBodyStream = null;
+
+        Exchange(URL url, String method, Map<String, List<String>> requestHeaders, byte[] requestBody, boolean isChunked)
+        {
+            this.mUrl = url;
+            this.mMethod = method;
+            this.mRequestHeaders = requestHeaders;
+            this.mRequestBody = requestBody;
+            this.mIsChunked = isChunked;
+        }
+
+        public URL getURL()
+        {
+            return mUrl;
+        }
+
+        public String getMethod()
+        {
+            return mMethod;
+        }
+
+        public Map<String, List<String>> getRequestHeaders()
+        {
+            return mRequestHeaders;
+        }
+
+        public String getRequestHeader(String name)
+        {
+            for (Map.Entry<String, List<String>> entry : mRequestHeaders.entrySet())
+            {
+                if (entry.getKey().equalsIgnoreCase(name))
+                {
+                    return entry.getValue().isEmpty() ? null : entry.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        public byte[] getRequestBody()
+        {
+            return mRequestBody;
+        }
+
+        public InputStream getRequestBodyStream()
+        {
+            return new ByteArrayInputStream(mRequestBody);
+        }
+
+        /**
+         * @return true if the request was sent in chunked streaming mode
+         */
+        public boolean isChunked()
+        {
+            return mIsChunked;
+        }
+
+        public Exchange setStatus(int statusCode, String statusMessage)
+        {
+            this.mStatusCode = statusCode;
+            this.mStatusMessage = statusMessage;
+            return this;
+        }
+
+        public Exchange addResponseHeader(String name, String value)
+        {
+            mResponseHeaderKeys.add(name);
+            mResponseHeaderValues.add(value);
+            return this;
+        }
+
+        /**
+         * @return A stream to write the response body to. Content-Length is added automatically unless already set.
+         */
+        public OutputStream getResponseBody()
+        {
+            return mResponseBody;
+        }
+
+        public Exchange setResponseBody(byte[] body)
+        {
+            mResponseBody.reset();
+            mResponseBody.write(body, 0, body.length);
+            return this;
+        }
+
+        /**
+         * Responds with a stream instead of a buffered body. No Content-Length is added automatically.
+         */
+        public Exchange setResponseBody(InputStream body)
+        {
+            mResponseBodyStream = body;
+            return this;
+        }
+
+        private boolean hasResponseHeader(String name)
+        {
+            for (String key : mResponseHeaderKeys)
+            {
+                if (key.equalsIgnoreCase(name))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class LoopbackConnection extends TransportConnection
+    {
+        private final Handler mHandler;
+
+        LoopbackConnection(URL url, Handler handler)
+        {
+            super(url);
+            this.mHandler = handler;
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            Exchange exchange = new Exchange(
+                    url,
+                    method,
+                    Collections.unmodifiableMap(getRequestHeaders()),
+                    getRequestBodyBytes(),
+                    getChunkLength() > -1);
+
+            mHandler.handle(exchange);
+
+            InputStream body = exchange.mResponseBodyStream;
+            if (body == null)
+            {
+                if (!exchange.hasResponseHeader(HttpResponse.Headers.CONTENT_LENGTH))
+                {
+                    exchange.addResponseHeader(HttpResponse.Headers.CONTENT_LENGTH, Integer.toString(exchange.mResponseBody.size()));
+                }
+                body = new ByteArrayInputStream(exchange.mResponseBody.toByteArray());
+            }
+
+            if (method.equals(HttpRequest.HttpMethod.HEAD))
+            {
+                body = null;
+            }
+
+            setResponse(exchange.mStatusCode, exchange.mStatusMessage, exchange.mResponseHeaderKeys, exchange.mResponseHeaderValues, body);
+        }
+    }
+}
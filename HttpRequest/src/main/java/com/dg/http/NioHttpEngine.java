@@ -0,0 +1,1600 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking HTTP/1.1 engine, which multiplexes any number of concurrent requests over a few I/O threads,
+ * each running a {@link Selector} over non-blocking socket channels.
+ * Idle connections are kept alive and reused per host, and requests may optionally be pipelined ({@link #setPipelining(boolean)}).
+ *
+ * It can be used in two ways:
+ * 1. As a transport ({@link HttpRequest#setTransport(HttpTransport)}), where getResponse() still blocks the calling thread,
+ *    but the socket I/O itself is done by the engine.
+ * 2. Through {@link #execute(HttpRequest, Callback)}, which does not block a thread per request at all.
+ *
+ * Either way, the request body is encoded by HttpRequest as usual (into memory, or a temporary file for large bodies),
+ * and the response is buffered by the engine and read through a regular {@link HttpResponse}.
+ *
+ * Only plain http without a proxy is handled by the engine itself. Other requests (https, or through a proxy)
+ * are handed to the fallback transport, and executed on a fallback thread pool when called through execute().
+ */
+@SuppressWarnings("unused")
+public class NioHttpEngine extends HttpTransport
+{
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int FILE_BUFFER_SIZE = 65536;
+    private static final int MAX_READS_PER_EVENT = 16;
+    private static final long SWEEP_INTERVAL = 250;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_GATHERED_REQUESTS = 16;
+
+    private static final OutputStream DISCARD_STREAM = new OutputStream()
+    {
+        @Override
+        public void write(int oneByte)
+        {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count)
+        {
+        }
+    };
+
+    private final IoThread[] mIoThreads;
+    private final AtomicInteger mNextIoThread = new AtomicInteger();
+    private final Executor mCallbackExecutor;
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+
+    private volatile HttpTransport mFallbackTransport = null;
+    private ExecutorService mFallbackExecutor = null;
+
+    private volatile int mMaxIdleConnectionsPerHost = 5;
+    private volatile long mKeepAliveTimeout = 30000;
+    private volatile int mMaxRequestSizeInMemory = 65536;
+    private volatile int mMaxResponseSizeInMemory = 65536;
+    private volatile boolean mPipelining = false;
+    private volatile int mMaxPipelinedRequests = 8;
+
+    private boolean mStarted = false;
+    private volatile boolean mShutdown = false;
+
+    public NioHttpEngine()
+    {
+        this(2, null);
+    }
+
+    public NioHttpEngine(int ioThreads)
+    {
+        this(ioThreads, null);
+    }
+
+    /**
+     * @param ioThreads The number of I/O threads
+     * @param callbackExecutor The executor to call {@link Callback}s on, or null to call them on the I/O thread.
+     *                         Callbacks on the I/O thread should return quickly, as they hold up the other requests of that thread.
+     */
+    public NioHttpEngine(int ioThreads, Executor callbackExecutor)
+    {
+        if (ioThreads < 1)
+        {
+            throw new IllegalArgumentException("ioThreads must be at least 1");
+        }
+
+        this.mIoThreads = new IoThread[ioThreads];
+        this.mCallbackExecutor = callbackExecutor;
+    }
+
+    public int getMaxIdleConnectionsPerHost()
+    {
+        return mMaxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of idle connections to keep alive per host and I/O thread. Default is 5.
+     */
+    public void setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost)
+    {
+        this.mMaxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    }
+
+    public long getKeepAliveTimeout()
+    {
+        return mKeepAliveTimeout;
+    }
+
+    /**
+     * Sets for how long (in milliseconds) an idle connection is kept alive. Default is 30 seconds.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout)
+    {
+        this.mKeepAliveTimeout = keepAliveTimeout;
+    }
+
+    public int getMaxRequestSizeInMemory()
+    {
+        return mMaxRequestSizeInMemory;
+    }
+
+    /**
+     * Sets the size from which request bodies are buffered in a temporary file instead of in memory. Default is 64KB.
+     */
+    public void setMaxRequestSizeInMemory(int maxRequestSizeInMemory)
+    {
+        this.mMaxRequestSizeInMemory = maxRequestSizeInMemory;
+    }
+
+    public int getMaxResponseSizeInMemory()
+    {
+        return mMaxResponseSizeInMemory;
+    }
+
+    /**
+     * Sets the size from which response bodies are buffered in a temporary file instead of in memory. Default is 64KB.
+     */
+    public void setMaxResponseSizeInMemory(int maxResponseSizeInMemory)
+    {
+        this.mMaxResponseSizeInMemory = maxResponseSizeInMemory;
+    }
+
+    public boolean isPipelining()
+    {
+        return mPipelining;
+    }
+
+    /**
+     * Enables HTTP/1.1 pipelining. Default is false.
+     * When enabled, idempotent requests to a host that is busy are queued on its open connections,
+     * and written back-to-back once the server proved to keep HTTP/1.1 connections alive. Responses are matched in order.
+     * If the server closes a connection before answering all of them, the unanswered requests are sent again
+     * on other connections, and pipelining is no longer used for that host.
+     */
+    public void setPipelining(boolean pipelining)
+    {
+        this.mPipelining = pipelining;
+    }
+
+    public int getMaxPipelinedRequests()
+    {
+        return mMaxPipelinedRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight on a single connection when pipelining. Default is 8.
+     */
+    public void setMaxPipelinedRequests(int maxPipelinedRequests)
+    {
+        this.mMaxPipelinedRequests = Math.max(1, maxPipelinedRequests);
+    }
+
+    /**
+     * @return The transport used for requests that the engine does not handle itself (https, or through a proxy)
+     */
+    public HttpTransport getFallbackTransport()
+    {
+        HttpTransport transport = mFallbackTransport;
+        if (transport == null)
+        {
+            synchronized (this)
+            {
+                if (mFallbackTransport == null)
+                {
+                    mFallbackTransport = new UrlConnectionTransport();
+                }
+                transport = mFallbackTransport;
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Sets the transport used for requests that the engine does not handle itself (https, or through a proxy).
+     * Default is {@link UrlConnectionTransport}.
+     */
+    public void setFallbackTransport(HttpTransport fallbackTransport)
+    {
+        this.mFallbackTransport = fallbackTransport;
+    }
+
+    /**
+     * @return The number of requests currently in progress on the I/O threads
+     */
+    public int getActiveRequestCount()
+    {
+        return mActiveCount.get();
+    }
+
+    /**
+     * Stops the I/O threads. Requests in progress fail, and idle connections are closed.
+     */
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            if (mShutdown) return;
+            mShutdown = true;
+
+            if (mFallbackExecutor != null)
+            {
+                mFallbackExecutor.shutdown();
+            }
+        }
+
+        for (IoThread ioThread : mIoThreads)
+        {
+            if (ioThread != null)
+            {
+                ioThread.mSelector.wakeup();
+            }
+        }
+    }
+
+    public boolean isShutdown()
+    {
+        return mShutdown;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+    {
+        if (!url.getProtocol().equalsIgnoreCase("http") || (proxy != null && proxy.type() != Proxy.Type.DIRECT))
+        {
+            return getFallbackTransport().openConnection(url, proxy);
+        }
+
+        return new NioConnection(url);
+    }
+
+    @Override
+    public void setRequestMethod(HttpURLConnection connection, String method) throws IOException
+    {
+        if (connection instanceof NioConnection)
+        {
+            connection.setRequestMethod(method);
+        }
+        else
+        {
+            getFallbackTransport().setRequestMethod(connection, method);
+        }
+    }
+
+    /**
+     * Sends a request, and calls back when the response was fully received, without blocking a thread while waiting.
+     * The request body is encoded on the calling thread.
+     * @param request The request to send
+     * @param callback Called with the response, or with the failure
+     * @return A handle for cancelling the request
+     */
+    public Call execute(final HttpRequest request, final Callback callback)
+    {
+        final Call call = new Call();
+
+        HttpURLConnection connection;
+        try
+        {
+            connection = request.sendRequest(null, call.mShouldAbort, this);
+        }
+        catch (IOException e)
+        {
+            dispatchFailure(callback, e);
+            return call;
+        }
+
+        if (connection == null)
+        {
+            dispatchFailure(callback, new IOException("Canceled"));
+            return call;
+        }
+
+        final boolean autoDecompress = request.getAutoDecompress();
+
+        if (connection instanceof NioConnection)
+        {
+            final NioConnection nioConnection = (NioConnection) connection;
+            call.mConnection = nioConnection;
+
+            nioConnection.start(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deliver(nioConnection, autoDecompress, callback);
+                }
+            });
+
+            if (call.isCanceled())
+            {
+                nioConnection.cancel();
+            }
+        }
+        else
+        {
+            final HttpURLConnection fallbackConnection = connection;
+            getFallbackExecutor().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deliver(fallbackConnection, autoDecompress, callback);
+                }
+            });
+        }
+
+        return call;
+    }
+
+    private static void deliver(HttpURLConnection connection, boolean autoDecompress, Callback callback)
+    {
+        HttpResponse response;
+        try
+        {
+            response = new HttpResponse(connection, autoDecompress);
+        }
+        catch (IOException e)
+        {
+            connection.disconnect();
+            callback.onFailure(e);
+            return;
+        }
+        callback.onResponse(response);
+    }
+
+    private void dispatchFailure(final Callback callback, final IOException error)
+    {
+        dispatch(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                callback.onFailure(error);
+            }
+        });
+    }
+
+    private void dispatch(Runnable runnable)
+    {
+        if (mCallbackExecutor != null)
+        {
+            mCallbackExecutor.execute(runnable);
+            return;
+        }
+
+        try
+        {
+            runnable.run();
+        }
+        catch (RuntimeException e)
+        {
+            // A failing callback must not take down the I/O thread
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    private synchronized ExecutorService getFallbackExecutor()
+    {
+        if (mFallbackExecutor == null)
+        {
+            mFallbackExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("NioHttpEngine-fallback-"));
+        }
+        return mFallbackExecutor;
+    }
+
+    private IoThread nextIoThread() throws IOException
+    {
+        synchronized (this)
+        {
+            if (mShutdown)
+            {
+                throw new IOException("Engine was shut down");
+            }
+
+            if (!mStarted)
+            {
+                ThreadFactory threadFactory = new DaemonThreadFactory("NioHttpEngine-io-");
+                for (int i = 0; i < mIoThreads.length; i++)
+                {
+                    mIoThreads[i] = new IoThread(Selector.open());
+                    threadFactory.newThread(mIoThreads[i]).start();
+                }
+                mStarted = true;
+            }
+        }
+
+        return mIoThreads[(mNextIoThread.getAndIncrement() & Integer.MAX_VALUE) % mIoThreads.length];
+    }
+
+    private static long now()
+    {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null) return;
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    public abstract static class Callback
+    {
+        /**
+         * Called when the response was received. The body is already buffered, so reading it does not block on the network.
+         */
+        public abstract void onResponse(HttpResponse response);
+
+        /**
+         * Called when the request failed, or was cancelled
+         */
+        public abstract void onFailure(IOException error);
+    }
+
+    /**
+     * A handle for a request sent through {@link #execute(HttpRequest, Callback)}
+     */
+    public static final class Call
+    {
+        private final AtomicBoolean mShouldAbort = new AtomicBoolean(false);
+        private volatile NioConnection mConnection = null;
+
+        private Call()
+        {
+        }
+
+        /**
+         * Cancels the request. The callback is called with a failure, unless it was already called.
+         */
+        public void cancel()
+        {
+            mShouldAbort.set(true);
+
+            NioConnection connection = mConnection;
+            if (connection != null)
+            {
+                connection.cancel();
+            }
+        }
+
+        public boolean isCanceled()
+        {
+            return mShouldAbort.get();
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix)
+        {
+            this.mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, mPrefix + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private final class NioConnection extends TransportConnection
+    {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private SpoolOutputStream mRequestBody = null;
+        private SpoolOutputStream mResponseBody = null;
+        private Http1Codec.ResponseParser mParser = null;
+        private IoThread mIoThread = null;
+        private Exchange mExchange = null;
+        private Runnable mOnComplete = null;
+        private IOException mFailure = null;
+        private boolean mStarted = false;
+        private boolean mCanceled = false;
+        private boolean mReleased = false;
+
+        NioConnection(URL url)
+        {
+            super(url);
+        }
+
+        @Override
+        protected OutputStream openRequestBodyStream() throws IOException
+        {
+            long fixedContentLength = getFixedContentLength();
+            mRequestBody = new SpoolOutputStream(mMaxRequestSizeInMemory, fixedContentLength > -1 ? fixedContentLength : 256);
+            return mRequestBody;
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            start(null);
+
+            try
+            {
+                mDone.await();
+            }
+            catch (InterruptedException e)
+            {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            synchronized (this)
+            {
+                if (mFailure != null)
+                {
+                    throw mFailure;
+                }
+
+                setResponse(mParser.getStatusCode(), mParser.getStatusMessage(),
+                        mParser.getHeaderKeys(), mParser.getHeaderValues(),
+                        mResponseBody.openInputStream(true));
+            }
+        }
+
+        /**
+         * Hands the request to an I/O thread, if not done already
+         * @param onComplete Called when the exchange completes, may be null
+         */
+        void start(Runnable onComplete)
+        {
+            Exchange exchange;
+            IoThread ioThread;
+
+            synchronized (this)
+            {
+                if (mStarted) return;
+                mStarted = true;
+                mOnComplete = onComplete;
+
+                try
+                {
+                    if (mCanceled)
+                    {
+                        throw new IOException("Canceled");
+                    }
+
+                    String method = getRequestMethod();
+                    long contentLength = -1;
+                    if (mRequestBody != null)
+                    {
+                        mRequestBody.close();
+                        contentLength = mRequestBody.size();
+                    }
+                    else if (method.equals("POST") || method.equals("PUT") || method.equals("PATCH"))
+                    {
+                        contentLength = 0;
+                    }
+
+                    int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+                    InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+                    if (address.isUnresolved())
+                    {
+                        throw new UnknownHostException(url.getHost());
+                    }
+
+                    mResponseBody = new SpoolOutputStream(mMaxResponseSizeInMemory);
+                    mParser = new Http1Codec.ResponseParser(method.equals("HEAD"), mResponseBody);
+
+                    byte[] head = Http1Codec.encodeRequestHead(method, url, getRequestHeaders(), contentLength, false);
+                    exchange = new Exchange(this, address, head, mRequestBody, mParser,
+                            Http1Codec.isIdempotentMethod(method), getConnectTimeout(), getReadTimeout());
+
+                    ioThread = nextIoThread();
+                }
+                catch (IOException e)
+                {
+                    mFailure = e;
+                    exchange = null;
+                    ioThread = null;
+                }
+                catch (IllegalArgumentException e)
+                {
+                    mFailure = new IOException(e.getMessage());
+                    exchange = null;
+                    ioThread = null;
+                }
+
+                mExchange = exchange;
+                mIoThread = ioThread;
+            }
+
+            if (exchange == null)
+            {
+                onExchangeComplete(mFailure);
+                return;
+            }
+
+            mActiveCount.incrementAndGet();
+            ioThread.submit(exchange);
+        }
+
+        /**
+         * Aborts the request if it's in progress
+         */
+        void cancel()
+        {
+            final Exchange exchange;
+            final IoThread ioThread;
+            synchronized (this)
+            {
+                if (mCanceled) return;
+                mCanceled = true;
+                exchange = mExchange;
+                ioThread = mIoThread;
+            }
+
+            if (exchange != null)
+            {
+                ioThread.cancel(exchange);
+            }
+        }
+
+        /**
+         * Called once by the I/O thread when the exchange completed or failed
+         */
+        void onExchangeComplete(IOException failure)
+        {
+            Runnable onComplete;
+            synchronized (this)
+            {
+                mFailure = failure;
+
+                if (mRequestBody != null)
+                {
+                    mRequestBody.delete();
+                }
+                if (mResponseBody != null && (failure != null || mReleased))
+                {
+                    mResponseBody.delete();
+                }
+
+                onComplete = mOnComplete;
+            }
+
+            mDone.countDown();
+
+            if (onComplete != null)
+            {
+                dispatch(onComplete);
+            }
+        }
+
+        @Override
+        protected void release()
+        {
+            boolean done;
+            synchronized (this)
+            {
+                mReleased = true;
+                done = mDone.getCount() == 0;
+                if (done && mResponseBody != null)
+                {
+                    mResponseBody.delete();
+                }
+            }
+
+            if (!done)
+            {
+                cancel();
+            }
+        }
+    }
+
+    /**
+     * The state of a request in progress, confined to its I/O thread
+     */
+    private final class Exchange
+    {
+        final NioConnection mConnection;
+        final InetSocketAddress mAddress;
+        final String mHostKey;
+        final ByteBuffer mHead;
+        final SpoolOutputStream mBody;
+        final Http1Codec.ResponseParser mParser;
+        final OutputStream mResponseSink;
+        final boolean mReplayable;
+        final long mConnectTimeout;
+        final long mReadTimeout;
+
+        final ByteBuffer[] mWriteBuffers = new ByteBuffer[2];
+        FileChannel mBodyChannel = null;
+
+        HostConnection mHostConnection = null;
+        long mDeadline = 0;
+        int mAttempts = 1;
+        boolean mCanceled = false;
+
+        Exchange(NioConnection connection, InetSocketAddress address, byte[] head, SpoolOutputStream body,
+                 Http1Codec.ResponseParser parser, boolean replayable, long connectTimeout, long readTimeout)
+        {
+            this.mConnection = connection;
+            this.mAddress = address;
+            this.mHostKey = address.getHostName() + ":" + address.getPort();
+            this.mHead = ByteBuffer.wrap(head);
+            this.mBody = body;
+            this.mParser = parser;
+            this.mResponseSink = parser.getBodySink();
+            this.mReplayable = replayable;
+            this.mConnectTimeout = connectTimeout;
+            this.mReadTimeout = readTimeout;
+        }
+
+        /**
+         * Prepares the request bytes for writing, from the start
+         */
+        void prepareWrite() throws IOException
+        {
+            closeBodyChannel();
+
+            mHead.rewind();
+            mWriteBuffers[0] = mHead;
+
+            if (mBody == null)
+            {
+                mWriteBuffers[1] = ByteBuffer.allocate(0);
+            }
+            else if (mBody.isInMemory())
+            {
+                mWriteBuffers[1] = mBody.getMemoryBuffer();
+            }
+            else
+            {
+                mBodyChannel = mBody.openFileChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+                buffer.limit(0);
+                mWriteBuffers[1] = buffer;
+            }
+        }
+
+        /**
+         * Prepares for sending the request again, on another connection
+         */
+        void reset() throws IOException
+        {
+            prepareWrite();
+            mParser.reset(mParser.isHeadRequest(), mResponseSink);
+            mDeadline = 0;
+            mAttempts++;
+        }
+
+        boolean isWriteStarted()
+        {
+            return mHead.position() > 0;
+        }
+
+        boolean isWritten()
+        {
+            return mBodyChannel == null && !mWriteBuffers[0].hasRemaining() && !mWriteBuffers[1].hasRemaining();
+        }
+
+        void touch(long timeout)
+        {
+            mDeadline = timeout > 0 ? now() + timeout : 0;
+        }
+
+        void closeBodyChannel()
+        {
+            closeQuietly(mBodyChannel);
+            mBodyChannel = null;
+        }
+    }
+
+    /**
+     * A connection to a host, with the exchanges assigned to it in request order.
+     * The first exchange is the one being responded to. With pipelining, the ones after it were (or will be) sent already.
+     */
+    private static final class HostConnection
+    {
+        final String mHostKey;
+        final SocketChannel mChannel;
+        final ArrayList<Exchange> mExchanges = new ArrayList<>();
+        SelectionKey mKey = null;
+        boolean mConnecting = false;
+        boolean mClosed = false;
+
+        /**
+         * The number of exchanges at the start of mExchanges whose requests were fully written
+         */
+        int mWritten = 0;
+
+        /**
+         * The number of responses received on this connection
+         */
+        int mResponses = 0;
+
+        /**
+         * Whether the server proved to keep HTTP/1.1 connections alive, so requests may be pipelined on it
+         */
+        boolean mPipelinable = false;
+
+        long mIdleSince = 0;
+
+        HostConnection(String hostKey, SocketChannel channel)
+        {
+            this.mHostKey = hostKey;
+            this.mChannel = channel;
+        }
+
+        boolean isIdle()
+        {
+            return mExchanges.isEmpty();
+        }
+    }
+
+    private final class IoThread implements Runnable
+    {
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final HashSet<Exchange> mActive = new HashSet<>();
+        private final HashMap<String, ArrayList<HostConnection>> mConnections = new HashMap<>();
+        private final HashSet<String> mNoPipeliningHosts = new HashSet<>();
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteBuffer[] mGatherBuffers = new ByteBuffer[MAX_GATHERED_REQUESTS * 2];
+        private long mNextSweep = 0;
+
+        IoThread(Selector selector)
+        {
+            this.mSelector = selector;
+        }
+
+        void post(Runnable task)
+        {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void submit(final Exchange exchange)
+        {
+            post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    begin(exchange);
+                }
+            });
+        }
+
+        void cancel(final Exchange exchange)
+        {
+            post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    cancelExchange(exchange);
+                }
+            });
+        }
+
+        @Override
+        public void run()
+        {
+            while (!mShutdown)
+            {
+                try
+                {
+                    mSelector.select(mActive.isEmpty() && mConnections.isEmpty() ? 0 : SWEEP_INTERVAL);
+                }
+                catch (IOException e)
+                {
+                    break;
+                }
+
+                Runnable task;
+                while ((task = mTasks.poll()) != null)
+                {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (key.isValid())
+                    {
+                        handle((HostConnection) key.attachment(), key);
+                    }
+                }
+
+                long now = now();
+                if (now >= mNextSweep)
+                {
+                    sweep(now);
+                    mNextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+
+            // Shutting down
+            Runnable task;
+            while ((task = mTasks.poll()) != null)
+            {
+                task.run();
+            }
+            IOException error = new IOException("Engine was shut down");
+            for (HostConnection connection : getAllConnections())
+            {
+                closeConnection(connection, error, false);
+            }
+            for (Exchange exchange : new ArrayList<>(mActive))
+            {
+                finish(exchange, error);
+            }
+            closeQuietly(mSelector);
+        }
+
+        private ArrayList<HostConnection> getAllConnections()
+        {
+            ArrayList<HostConnection> all = new ArrayList<>();
+            for (ArrayList<HostConnection> connections : mConnections.values())
+            {
+                all.addAll(connections);
+            }
+            return all;
+        }
+
+        private void begin(Exchange exchange)
+        {
+            if (mShutdown)
+            {
+                mActiveCount.decrementAndGet();
+                exchange.mConnection.onExchangeComplete(new IOException("Engine was shut down"));
+                return;
+            }
+
+            mActive.add(exchange);
+
+            try
+            {
+                exchange.prepareWrite();
+            }
+            catch (IOException e)
+            {
+                finish(exchange, e);
+                return;
+            }
+
+            dispatch(exchange);
+        }
+
+        /**
+         * Assigns an exchange to a connection: an idle one, a pipeline, or a new one
+         */
+        private void dispatch(Exchange exchange)
+        {
+            HostConnection connection = findConnection(exchange);
+            if (connection == null)
+            {
+                try
+                {
+                    connection = connect(exchange);
+                }
+                catch (IOException e)
+                {
+                    finish(exchange, e);
+                    return;
+                }
+            }
+
+            connection.mExchanges.add(exchange);
+            exchange.mHostConnection = connection;
+
+            if (connection.mExchanges.size() == 1)
+            {
+                exchange.touch(connection.mConnecting ? exchange.mConnectTimeout : exchange.mReadTimeout);
+            }
+
+            if (!connection.mConnecting)
+            {
+                try
+                {
+                    writable(connection);
+                }
+                catch (IOException e)
+                {
+                    closeConnection(connection, e, false);
+                }
+            }
+        }
+
+        private HostConnection findConnection(Exchange exchange)
+        {
+            ArrayList<HostConnection> connections = mConnections.get(exchange.mHostKey);
+            if (connections == null) return null;
+
+            long expiry = now() - mKeepAliveTimeout;
+            for (int i = connections.size() - 1; i >= 0; i--)
+            {
+                HostConnection connection = connections.get(i);
+                if (!connection.isIdle()) continue;
+
+                if (connection.mIdleSince > expiry && connection.mChannel.isOpen())
+                {
+                    return connection;
+                }
+                closeConnection(connection, null, false);
+            }
+
+            if (!mPipelining || !exchange.mReplayable || mNoPipeliningHosts.contains(exchange.mHostKey))
+            {
+                return null;
+            }
+
+            // Queue on the shortest pipeline. Until a connection proves to be persistent, requests only queue on it.
+            HostConnection best = null;
+            for (HostConnection connection : connections)
+            {
+                int size = connection.mExchanges.size();
+                if (connection.mClosed || size >= mMaxPipelinedRequests || !connection.mExchanges.get(0).mReplayable)
+                {
+                    continue;
+                }
+                if (best == null || size < best.mExchanges.size())
+                {
+                    best = connection;
+                }
+            }
+            return best;
+        }
+
+        private HostConnection connect(Exchange exchange) throws IOException
+        {
+            SocketChannel channel = SocketChannel.open();
+            try
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                HostConnection connection = new HostConnection(exchange.mHostKey, channel);
+                if (channel.connect(exchange.mAddress))
+                {
+                    connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+                }
+                else
+                {
+                    connection.mConnecting = true;
+                    connection.mKey = channel.register(mSelector, SelectionKey.OP_CONNECT, connection);
+                }
+
+                ArrayList<HostConnection> connections = mConnections.get(exchange.mHostKey);
+                if (connections == null)
+                {
+                    connections = new ArrayList<>();
+                    mConnections.put(exchange.mHostKey, connections);
+                }
+                connections.add(connection);
+
+                return connection;
+            }
+            catch (IOException e)
+            {
+                closeQuietly(channel);
+                throw e;
+            }
+        }
+
+        private void handle(HostConnection connection, SelectionKey key)
+        {
+            try
+            {
+                if (key.isConnectable())
+                {
+                    if (!connection.mChannel.finishConnect()) return;
+
+                    connection.mConnecting = false;
+                    if (!connection.isIdle())
+                    {
+                        Exchange head = connection.mExchanges.get(0);
+                        head.touch(head.mReadTimeout);
+                    }
+                    writable(connection);
+                    return;
+                }
+
+                if (key.isWritable())
+                {
+                    writable(connection);
+                }
+
+                if (!connection.mClosed && key.isReadable())
+                {
+                    readable(connection);
+                }
+            }
+            catch (IOException e)
+            {
+                closeConnection(connection, e, false);
+            }
+        }
+
+        /**
+         * @return The number of exchanges that may be written, pipelined requests only go out once the connection proved to be persistent
+         */
+        private int getWritableCount(HostConnection connection)
+        {
+            int count = connection.mExchanges.size();
+            if (connection.mPipelinable && mPipelining && !mNoPipeliningHosts.contains(connection.mHostKey))
+            {
+                return count;
+            }
+            return Math.min(count, 1);
+        }
+
+        private void updateInterest(HostConnection connection)
+        {
+            if (connection.mClosed) return;
+
+            int ops;
+            if (connection.mConnecting)
+            {
+                ops = SelectionKey.OP_CONNECT;
+            }
+            else
+            {
+                // Idle connections are read as well, to notice when the server closes them
+                ops = SelectionKey.OP_READ;
+                if (connection.mWritten < getWritableCount(connection))
+                {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            connection.mKey.interestOps(ops);
+        }
+
+        private void writable(HostConnection connection) throws IOException
+        {
+            ArrayList<Exchange> exchanges = connection.mExchanges;
+            int writable = getWritableCount(connection);
+
+            while (connection.mWritten < writable)
+            {
+                Exchange first = exchanges.get(connection.mWritten);
+
+                if (first.mBodyChannel != null)
+                {
+                    if (!writeFromFile(connection, first)) break;
+                    connection.mWritten++;
+                    continue;
+                }
+
+                // Gather consecutive requests that are in memory into a single write
+                int count = 0;
+                for (int i = connection.mWritten; i < writable && count < MAX_GATHERED_REQUESTS; i++)
+                {
+                    Exchange exchange = exchanges.get(i);
+                    if (exchange.mBodyChannel != null) break;
+                    mGatherBuffers[count * 2] = exchange.mWriteBuffers[0];
+                    mGatherBuffers[count * 2 + 1] = exchange.mWriteBuffers[1];
+                    count++;
+                }
+
+                long written = connection.mChannel.write(mGatherBuffers, 0, count * 2);
+                Arrays.fill(mGatherBuffers, 0, count * 2, null);
+
+                while (connection.mWritten < writable && exchanges.get(connection.mWritten).isWritten())
+                {
+                    connection.mWritten++;
+                }
+
+                if (written == 0) break;
+                Exchange head = exchanges.get(0);
+                head.touch(head.mReadTimeout);
+            }
+
+            updateInterest(connection);
+        }
+
+        /**
+         * Writes a request whose body is in a file
+         * @return Whether the request was fully written
+         */
+        private boolean writeFromFile(HostConnection connection, Exchange exchange) throws IOException
+        {
+            ByteBuffer head = exchange.mWriteBuffers[0];
+            ByteBuffer body = exchange.mWriteBuffers[1];
+
+            while (true)
+            {
+                if (!body.hasRemaining() && exchange.mBodyChannel != null)
+                {
+                    body.clear();
+                    int read = exchange.mBodyChannel.read(body);
+                    body.flip();
+                    if (read == -1)
+                    {
+                        exchange.closeBodyChannel();
+                    }
+                }
+
+                if (!head.hasRemaining() && !body.hasRemaining())
+                {
+                    if (exchange.mBodyChannel != null) continue;
+                    return true;
+                }
+
+                if (connection.mChannel.write(exchange.mWriteBuffers) == 0)
+                {
+                    return false;
+                }
+                Exchange first = connection.mExchanges.get(0);
+                first.touch(first.mReadTimeout);
+            }
+        }
+
+        private void readable(HostConnection connection) throws IOException
+        {
+            ByteBuffer buffer = mReadBuffer;
+
+            for (int i = 0; i < MAX_READS_PER_EVENT; i++)
+            {
+                buffer.clear();
+                int read = connection.mChannel.read(buffer);
+                if (read == 0) return;
+
+                if (read == -1)
+                {
+                    endOfStream(connection);
+                    return;
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    if (connection.isIdle())
+                    {
+                        // Nothing was asked for
+                        closeConnection(connection, null, false);
+                        return;
+                    }
+
+                    Exchange head = connection.mExchanges.get(0);
+                    head.touch(head.mReadTimeout);
+
+                    if (!head.mParser.feed(buffer)) break;
+
+                    if (!responseComplete(connection, buffer.hasRemaining()))
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Completes the first exchange on the connection, after its response was received
+         * @param moreBytes Whether more bytes were received after the response
+         * @return Whether the connection stays open
+         */
+        private boolean responseComplete(HostConnection connection, boolean moreBytes) throws IOException
+        {
+            Exchange head = connection.mExchanges.remove(0);
+            head.mHostConnection = null;
+
+            // The server may respond before the whole request was sent, in which case the connection can't be reused
+            boolean requestWritten = connection.mWritten > 0;
+            if (requestWritten)
+            {
+                connection.mWritten--;
+            }
+
+            boolean keepAlive = requestWritten && head.mParser.isKeepAlive();
+            if (keepAlive && head.mParser.isHttp11())
+            {
+                connection.mPipelinable = true;
+            }
+            else if (connection.mResponses == 0 && mPipelining)
+            {
+                // The server does not keep HTTP/1.1 connections alive, so don't queue requests on its connections
+                mNoPipeliningHosts.add(connection.mHostKey);
+            }
+            connection.mResponses++;
+
+            finish(head, null);
+
+            if (!keepAlive || (moreBytes && connection.isIdle()))
+            {
+                closeConnection(connection, null, true);
+                return false;
+            }
+
+            if (connection.isIdle())
+            {
+                connection.mIdleSince = now();
+                trimIdle(connection.mHostKey);
+                if (connection.mClosed) return false;
+            }
+            else
+            {
+                Exchange next = connection.mExchanges.get(0);
+                next.touch(next.mReadTimeout);
+            }
+
+            writable(connection);
+            return true;
+        }
+
+        private void endOfStream(HostConnection connection)
+        {
+            if (connection.isIdle())
+            {
+                closeConnection(connection, null, false);
+                return;
+            }
+
+            Exchange head = connection.mExchanges.get(0);
+            if (head.mParser.hasReceivedBytes())
+            {
+                try
+                {
+                    // Complete if the body is delimited by the end of the stream
+                    head.mParser.endOfStream();
+                    connection.mExchanges.remove(0);
+                    head.mHostConnection = null;
+                    if (connection.mWritten > 0)
+                    {
+                        connection.mWritten--;
+                    }
+                    finish(head, null);
+                    closeConnection(connection, null, true);
+                }
+                catch (IOException e)
+                {
+                    closeConnection(connection, e, false);
+                }
+                return;
+            }
+
+            if (connection.mWritten > 1)
+            {
+                // Closed with pipelined requests unanswered, stop pipelining to this host
+                mNoPipeliningHosts.add(connection.mHostKey);
+            }
+            closeConnection(connection, new IOException("Connection was closed by the server"), false);
+        }
+
+        /**
+         * Closes a connection. Exchanges that were not responded to are sent again on other connections when safe,
+         * or fail otherwise.
+         * @param error The error for exchanges that can't be retried, or null for a generic one
+         * @param headIsInnocent Whether the first exchange did not cause the close, so it's treated like the ones behind it
+         */
+        private void closeConnection(HostConnection connection, IOException error, boolean headIsInnocent)
+        {
+            if (connection.mClosed) return;
+            connection.mClosed = true;
+
+            ArrayList<HostConnection> connections = mConnections.get(connection.mHostKey);
+            if (connections != null)
+            {
+                connections.remove(connection);
+                if (connections.isEmpty())
+                {
+                    mConnections.remove(connection.mHostKey);
+                }
+            }
+
+            connection.mKey.cancel();
+            closeQuietly(connection.mChannel);
+
+            ArrayList<Exchange> exchanges = new ArrayList<>(connection.mExchanges);
+            connection.mExchanges.clear();
+            connection.mWritten = 0;
+
+            for (int i = 0; i < exchanges.size(); i++)
+            {
+                Exchange exchange = exchanges.get(i);
+                exchange.mHostConnection = null;
+                exchange.closeBodyChannel();
+
+                if (exchange.mCanceled) continue;
+
+                // A request queued behind another was not the cause, and one that was never answered on a reused
+                // connection most likely hit a connection closed by the server while idle.
+                boolean retry = !mShutdown && exchange.mAttempts < MAX_ATTEMPTS && !exchange.mParser.hasReceivedBytes() &&
+                        (i > 0 || headIsInnocent || (connection.mResponses > 0 && exchange.mReplayable));
+
+                if (retry)
+                {
+                    try
+                    {
+                        exchange.reset();
+                        dispatch(exchange);
+                        continue;
+                    }
+                    catch (IOException e)
+                    {
+                        error = e;
+                    }
+                }
+
+                finish(exchange, error != null ? error : new IOException("Connection was closed by the server"));
+            }
+        }
+
+        private void cancelExchange(Exchange exchange)
+        {
+            if (!mActive.contains(exchange)) return;
+
+            IOException canceled = new IOException("Canceled");
+            HostConnection connection = exchange.mHostConnection;
+            if (connection == null)
+            {
+                finish(exchange, canceled);
+                return;
+            }
+
+            int index = connection.mExchanges.indexOf(exchange);
+            if (index > connection.mWritten || (index == connection.mWritten && index > 0 && !exchange.isWriteStarted()))
+            {
+                // Not sent yet, just take it off the queue
+                connection.mExchanges.remove(index);
+                exchange.mHostConnection = null;
+                finish(exchange, canceled);
+                updateInterest(connection);
+            }
+            else if (index > 0 && index < connection.mWritten)
+            {
+                // Already sent on a pipeline, its response must still be read, and is discarded
+                exchange.mCanceled = true;
+                exchange.mParser.setBodySink(DISCARD_STREAM);
+                finish(exchange, canceled);
+            }
+            else
+            {
+                // In progress, abort it by closing the connection. The requests behind it are sent again elsewhere.
+                connection.mExchanges.remove(index);
+                exchange.mHostConnection = null;
+                if (index < connection.mWritten)
+                {
+                    connection.mWritten--;
+                }
+                finish(exchange, canceled);
+                closeConnection(connection, null, true);
+            }
+        }
+
+        private void finish(Exchange exchange, IOException error)
+        {
+            if (!mActive.remove(exchange)) return;
+            mActiveCount.decrementAndGet();
+
+            exchange.closeBodyChannel();
+            exchange.mConnection.onExchangeComplete(error);
+        }
+
+        /**
+         * Closes the least recently used idle connections of a host, beyond the limit
+         */
+        private void trimIdle(String hostKey)
+        {
+            ArrayList<HostConnection> connections = mConnections.get(hostKey);
+            if (connections == null) return;
+
+            while (true)
+            {
+                int idle = 0;
+                HostConnection oldest = null;
+                for (HostConnection connection : connections)
+                {
+                    if (!connection.isIdle()) continue;
+                    idle++;
+                    if (oldest == null || connection.mIdleSince < oldest.mIdleSince)
+                    {
+                        oldest = connection;
+                    }
+                }
+
+                if (idle <= mMaxIdleConnectionsPerHost) return;
+                closeConnection(oldest, null, false);
+            }
+        }
+
+        private void sweep(long now)
+        {
+            ArrayList<Exchange> expired = null;
+            for (Exchange exchange : mActive)
+            {
+                if (exchange.mDeadline > 0 && now >= exchange.mDeadline)
+                {
+                    if (expired == null)
+                    {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(exchange);
+                }
+            }
+            if (expired != null)
+            {
+                for (Exchange exchange : expired)
+                {
+                    HostConnection connection = exchange.mHostConnection;
+                    if (connection == null)
+                    {
+                        finish(exchange, new SocketTimeoutException("Read timed out"));
+                        continue;
+                    }
+
+                    IOException error = new SocketTimeoutException(connection.mConnecting ? "connect timed out" : "Read timed out");
+                    connection.mExchanges.remove(exchange);
+                    exchange.mHostConnection = null;
+                    finish(exchange, error);
+                    closeConnection(connection, null, true);
+                }
+            }
+
+            long expiry = now - mKeepAliveTimeout;
+            for (HostConnection connection : getAllConnections())
+            {
+                if (connection.isIdle() && connection.mIdleSince <= expiry)
+                {
+                    closeConnection(connection, null, false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reads what a publisher publishes, as an InputStream.
+ * Only a few buffers are requested ahead, and more are requested as they are read,
+ * so a publisher is never asked for more than the connection keeps up with.
+ */
+final class PublisherInputStream extends InputStream
+{
+    private static final int PREFETCH = 4;
+
+    private final HttpFlow.Publisher<ByteBuffer> mPublisher;
+    private final ArrayDeque<ByteBuffer> mQueue = new ArrayDeque<>();
+    private HttpFlow.Subscription mSubscription = null;
+    private ByteBuffer mCurrent = null;
+    private boolean mSubscribed = false;
+    private boolean mCompleted = false;
+    private boolean mClosed = false;
+    private Throwable mError = null;
+
+    PublisherInputStream(HttpFlow.Publisher<ByteBuffer> publisher)
+    {
+        this.mPublisher = publisher;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] buffer = new byte[1];
+        int read;
+        while ((read = read(buffer, 0, 1)) == 0) { }
+        return read == -1 ? -1 : (buffer[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException
+    {
+        if (byteCount == 0) return 0;
+
+        ByteBuffer current = nextBuffer();
+        if (current == null) return -1;
+
+        int count = Math.min(byteCount, current.remaining());
+        current.get(buffer, byteOffset, count);
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        synchronized (this)
+        {
+            return mCurrent == null ? 0 : mCurrent.remaining();
+        }
+    }
+
+    /**
+     * @return A buffer with remaining bytes, or null at the end of the stream
+     */
+    private ByteBuffer nextBuffer() throws IOException
+    {
+        subscribe();
+
+        HttpFlow.Subscription subscription;
+        synchronized (this)
+        {
+            if (mCurrent != null && mCurrent.hasRemaining())
+            {
+                return mCurrent;
+            }
+            mCurrent = null;
+
+            try
+            {
+                while (mQueue.isEmpty() && !mCompleted && mError == null && !mClosed)
+                {
+                    wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            if (mClosed)
+            {
+                throw new IOException("Stream is closed");
+            }
+
+            if (mQueue.isEmpty())
+            {
+                if (mError != null)
+                {
+                    throw mError instanceof IOException ? (IOException) mError : new IOException(mError);
+                }
+                return null;
+            }
+
+            mCurrent = mQueue.pollFirst();
+            subscription = mSubscription;
+        }
+
+        // Replace the buffer that was taken
+        subscription.request(1);
+
+        return mCurrent.hasRemaining() ? mCurrent : nextBuffer();
+    }
+
+    private void subscribe()
+    {
+        synchronized (this)
+        {
+            if (mSubscribed) return;
+            mSubscribed = true;
+        }
+
+        mPublisher.subscribe(new HttpFlow.Subscriber<ByteBuffer>()
+        {
+            @Override
+            public void onSubscribe(HttpFlow.Subscription subscription)
+            {
+                boolean closed;
+                synchronized (PublisherInputStream.this)
+                {
+                    closed = mClosed || mSubscription != null;
+                    if (mSubscription == null)
+                    {
+                        mSubscription = subscription;
+                    }
+                    PublisherInputStream.this.notifyAll();
+                }
+
+                if (closed)
+                {
+                    subscription.cancel();
+                }
+                else
+                {
+                    subscription.request(PREFETCH);
+                }
+            }
+
+            @Override
+            public void onNext(ByteBuffer item)
+            {
+                synchronized (PublisherInputStream.this)
+                {
+                    mQueue.addLast(item);
+                    PublisherInputStream.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable)
+            {
+                synchronized (PublisherInputStream.this)
+                {
+                    mError = throwable;
+                    PublisherInputStream.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void onComplete()
+            {
+                synchronized (PublisherInputStream.this)
+                {
+                    mCompleted = true;
+                    PublisherInputStream.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close()
+    {
+        HttpFlow.Subscription subscription;
+        synchronized (this)
+        {
+            if (mClosed) return;
+            mClosed = true;
+            mQueue.clear();
+            subscription = mCompleted || mError != null ? null : mSubscription;
+            notifyAll();
+        }
+
+        if (subscription != null)
+        {
+            subscription.cancel();
+        }
+    }
+}
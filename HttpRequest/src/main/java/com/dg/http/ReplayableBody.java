@@ -0,0 +1,101 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request body that was encoded once, and can be sent again as is when a request is retried.
+ * Small bodies are kept in memory, others in the spool file (or the file that was given as the body).
+ */
+class ReplayableBody
+{
+    private byte[] mMemory = null;
+    private File mFile = null;
+    private boolean mOwnsFile = false;
+    private String mContentType = null;
+    private boolean mCaptured = false;
+
+    boolean isCaptured()
+    {
+        return mCaptured;
+    }
+
+    void capture(byte[] memory, String contentType)
+    {
+        this.mMemory = memory;
+        this.mContentType = contentType;
+        this.mCaptured = true;
+    }
+
+    /**
+     * @param ownsFile Whether the file is a spool file, that is deleted on release
+     */
+    void capture(File file, boolean ownsFile, String contentType)
+    {
+        this.mFile = file;
+        this.mOwnsFile = ownsFile;
+        this.mContentType = contentType;
+        this.mCaptured = true;
+    }
+
+    /**
+     * @return The Content-Type that was sent with the body, as it may contain a multipart boundary, or null
+     */
+    String getContentType()
+    {
+        return mContentType;
+    }
+
+    long getContentLength()
+    {
+        return mMemory != null ? mMemory.length : mFile.length();
+    }
+
+    InputStream openStream() throws IOException
+    {
+        return mMemory != null ? new ByteArrayInputStream(mMemory) : new FileInputStream(mFile);
+    }
+
+    /**
+     * Deletes the spool file, if there is one
+     */
+    void release()
+    {
+        if (mFile != null && mOwnsFile)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+        mFile = null;
+        mMemory = null;
+        mCaptured = false;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes a response body as ByteBuffers. The body is only read from the connection as the subscriber requests it,
+ * so a slow subscriber slows down the transfer instead of having the response pile up in memory.
+ * Reads block, and run on the executor.
+ */
+final class ResponseBodyPublisher implements HttpFlow.Publisher<ByteBuffer>
+{
+    private static final int BUFFER_SIZE = 16384;
+
+    private final HttpResponse mResponse;
+    private final Executor mExecutor;
+
+    ResponseBodyPublisher(HttpResponse response, Executor executor)
+    {
+        this.mResponse = response;
+        this.mExecutor = executor;
+    }
+
+    @Override
+    public void subscribe(HttpFlow.Subscriber<? super ByteBuffer> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("subscriber");
+        }
+
+        // The body can only be read once, unless it was buffered
+        boolean first = mResponse.claimBodyForPublisher();
+        BodySubscription subscription = new BodySubscription(subscriber,
+                first ? null : new IllegalStateException("The response body was already subscribed to"));
+
+        subscriber.onSubscribe(subscription);
+
+        if (!first)
+        {
+            subscription.schedule();
+        }
+    }
+
+    private final class BodySubscription implements HttpFlow.Subscription, Runnable
+    {
+        private final HttpFlow.Subscriber<? super ByteBuffer> mSubscriber;
+        private final AtomicLong mDemand = new AtomicLong();
+        private final AtomicInteger mPending = new AtomicInteger(); // Non-zero while the drain loop is scheduled or running
+        private volatile boolean mCanceled = false;
+        private volatile Throwable mRequestError;
+        private InputStream mStream = null;
+        private boolean mFinished = false;
+
+        BodySubscription(HttpFlow.Subscriber<? super ByteBuffer> subscriber, Throwable error)
+        {
+            this.mSubscriber = subscriber;
+            this.mRequestError = error;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (mCanceled) return;
+
+            if (n <= 0)
+            {
+                mRequestError = new IllegalArgumentException("Non-positive request: " + n);
+            }
+            else
+            {
+                long current, next;
+                do
+                {
+                    current = mDemand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                }
+                while (!mDemand.compareAndSet(current, next));
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            mCanceled = true;
+            schedule();
+        }
+
+        void schedule()
+        {
+            if (mPending.getAndIncrement() == 0)
+            {
+                try
+                {
+                    mExecutor.execute(this);
+                }
+                catch (RuntimeException e)
+                {
+                    // Nothing is draining, so we own the subscription here. Fail it before allowing another drain.
+                    if (!mFinished)
+                    {
+                        finish();
+                        if (!mCanceled)
+                        {
+                            signalError(e);
+                        }
+                    }
+                    mPending.set(0);
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            int missed = 1;
+            while (true)
+            {
+                drain();
+
+                missed = mPending.addAndGet(-missed);
+                if (missed == 0) break;
+            }
+        }
+
+        private void drain()
+        {
+            if (mFinished) return;
+
+            try
+            {
+                if (mCanceled)
+                {
+                    finish();
+                    return;
+                }
+
+                if (mRequestError != null)
+                {
+                    finish();
+                    signalError(mRequestError);
+                    return;
+                }
+
+                if (mStream == null)
+                {
+                    mStream = mResponse.getInputStream();
+                }
+
+                while (mDemand.get() > 0 && !mCanceled && mRequestError == null)
+                {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read = mStream.read(buffer, 0, BUFFER_SIZE);
+                    if (read == -1)
+                    {
+                        finish();
+                        mSubscriber.onComplete();
+                        return;
+                    }
+                    if (read == 0) continue;
+
+                    mDemand.decrementAndGet();
+                    mSubscriber.onNext(ByteBuffer.wrap(buffer, 0, read));
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // A RuntimeException may come from the subscriber's onNext, which ends the subscription too
+                if (mFinished) return;
+
+                finish();
+                if (!mCanceled)
+                {
+                    signalError(e);
+                }
+            }
+        }
+
+        /**
+         * Signals onError, without letting a misbehaving subscriber break the drain loop
+         */
+        private void signalError(Throwable error)
+        {
+            try
+            {
+                mSubscriber.onError(error);
+            }
+            catch (RuntimeException ignored)
+            {
+            }
+        }
+
+        private void finish()
+        {
+            mFinished = true;
+            if (mStream != null)
+            {
+                // Reuses the connection if the body was read through, or not much of it was left
+                mResponse.release(mStream);
+                mStream = null;
+            }
+            else if (mCanceled)
+            {
+                mResponse.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An output stream that keeps the data in memory up to a limit, and spills to a temporary file beyond it.
+ * The data can be read back any number of times, and the temporary file is deleted by {@link #delete()}.
+ * Used for buffering request and response bodies by the transports that don't stream them directly.
+ */
+final class SpoolOutputStream extends OutputStream
+{
+    private final int mMaxSizeInMemory;
+
+    private byte[] mBuffer;
+    private int mCount = 0;
+    private File mFile = null;
+    private FileOutputStream mFileStream = null;
+    private long mSize = 0;
+    private boolean mClosed = false;
+
+    SpoolOutputStream(int maxSizeInMemory)
+    {
+        this(maxSizeInMemory, 256);
+    }
+
+    SpoolOutputStream(int maxSizeInMemory, long expectedSize)
+    {
+        this.mMaxSizeInMemory = maxSizeInMemory;
+        this.mBuffer = new byte[(int) Math.max(16, Math.min(expectedSize, maxSizeInMemory))];
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException
+    {
+        write(new byte[]{ (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException
+    {
+        if (mClosed)
+        {
+            throw new IOException("Stream is closed");
+        }
+
+        if (mFileStream == null && mCount + count > mMaxSizeInMemory)
+        {
+            mFile = File.createTempFile("spool", null);
+            mFileStream = new FileOutputStream(mFile);
+            mFileStream.write(mBuffer, 0, mCount);
+            mBuffer = null;
+            mCount = 0;
+        }
+
+        if (mFileStream != null)
+        {
+            mFileStream.write(buffer, offset, count);
+        }
+        else
+        {
+            if (mCount + count > mBuffer.length)
+            {
+                byte[] newBuffer = new byte[Math.min(mMaxSizeInMemory, Math.max(mBuffer.length * 2, mCount + count))];
+                System.arraycopy(mBuffer, 0, newBuffer, 0, mCount);
+                mBuffer = newBuffer;
+            }
+            System.arraycopy(buffer, offset, mBuffer, mCount, count);
+            mCount += count;
+        }
+
+        mSize += count;
+    }
+
+    /**
+     * Writes the remaining bytes of a heap buffer
+     */
+    void write(ByteBuffer buffer) throws IOException
+    {
+        int count = buffer.remaining();
+        write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+        buffer.position(buffer.position() + count);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (mClosed) return;
+        mClosed = true;
+
+        if (mFileStream != null)
+        {
+            mFileStream.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far
+     */
+    long size()
+    {
+        return mSize;
+    }
+
+    boolean isInMemory()
+    {
+        return mFile == null;
+    }
+
+    /**
+     * @return The data, when it's still in memory, wrapped without copying
+     */
+    ByteBuffer getMemoryBuffer()
+    {
+        return ByteBuffer.wrap(mBuffer, 0, mCount);
+    }
+
+    /**
+     * Opens a channel over the spilled file. The stream must be closed first.
+     */
+    FileChannel openFileChannel() throws IOException
+    {
+        close();
+        return new FileInputStream(mFile).getChannel();
+    }
+
+    /**
+     * Opens a stream over the data written. The stream must be closed first.
+     * @param deleteOnClose Whether to delete the temporary file when the returned stream is closed
+     */
+    InputStream openInputStream(boolean deleteOnClose) throws IOException
+    {
+        close();
+
+        if (mFile == null)
+        {
+            return new ByteArrayInputStream(mBuffer, 0, mCount);
+        }
+
+        if (!deleteOnClose)
+        {
+            return new FileInputStream(mFile);
+        }
+
+        final File file = mFile;
+        return new FileInputStream(file)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes the stream and deletes the temporary file, if any
+     */
+    void delete()
+    {
+        try
+        {
+            close();
+        }
+        catch (IOException ignored)
+        {
+        }
+
+        if (mFile != null)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+    }
+}
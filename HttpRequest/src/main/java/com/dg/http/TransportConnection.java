@@ -0,0 +1,606 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A base for connections of transports other than the platform's HttpURLConnection.
+ * It keeps the request properties and streaming mode itself, accepts any HTTP method,
+ * and serves the response that the subclass provides through {@link #setResponse}.
+ *
+ * Subclasses implement {@link #execute()}, which is called once when the response is first needed,
+ * after the request body (if any) was written and closed.
+ * By default the request body is buffered in memory and available through {@link #getRequestBodyBytes()},
+ * subclasses that stream the body override {@link #openRequestBodyStream()}.
+ *
+ * Redirects are not followed by these connections.
+ */
+public abstract class TransportConnection extends HttpURLConnection
+{
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private final LinkedHashMap<String, List<String>> mRequestProperties = new LinkedHashMap<>();
+    private long mFixedContentLength = -1;
+    private int mChunkLength = -1;
+    private SSLSocketFactory mSSLSocketFactory = null;
+    private HostnameVerifier mHostnameVerifier = null;
+
+    private OutputStream mRequestBodyStream = null;
+    private ByteArrayOutputStream mRequestBodyBuffer = null;
+    private boolean mExecuted = false;
+    private boolean mDisconnected = false;
+
+    private int mResponseCode = -1;
+    private String mResponseMessage = null;
+    private Map<String, List<String>> mResponseHeaders = Collections.emptyMap();
+    private List<String> mResponseHeaderKeys = Collections.emptyList();
+    private List<String> mResponseHeaderValues = Collections.emptyList();
+    private InputStream mResponseBody = null;
+
+    protected TransportConnection(URL url)
+    {
+        super(url);
+    }
+
+    /**
+     * Performs the request and provides the response using {@link #setResponse}.
+     * Called once, when the response is first needed.
+     * @throws IOException
+     */
+    protected abstract void execute() throws IOException;
+
+    /**
+     * Opens the stream that the request body is written to.
+     * The default implementation buffers the body in memory, see {@link #getRequestBodyBytes()}.
+     * @return A stream for the request body. It is closed by the caller, or before execute() is called.
+     * @throws IOException
+     */
+    protected OutputStream openRequestBodyStream() throws IOException
+    {
+        mRequestBodyBuffer = new ByteArrayOutputStream(mFixedContentLength > -1 && mFixedContentLength < Integer.MAX_VALUE ? (int) mFixedContentLength : 256);
+        return mRequestBodyBuffer;
+    }
+
+    /**
+     * Called when the connection is disconnected, to release any resources held.
+     */
+    protected void release()
+    {
+    }
+
+    /**
+     * @return The request body buffered by the default {@link #openRequestBodyStream()}, or an empty array if there's none
+     */
+    protected byte[] getRequestBodyBytes()
+    {
+        return mRequestBodyBuffer == null ? EMPTY_BYTES : mRequestBodyBuffer.toByteArray();
+    }
+
+    /**
+     * @return The Content-Length set through setFixedLengthStreamingMode, or -1
+     */
+    protected long getFixedContentLength()
+    {
+        return mFixedContentLength;
+    }
+
+    /**
+     * @return The chunk size set through setChunkedStreamingMode, or -1 if not in chunked mode
+     */
+    protected int getChunkLength()
+    {
+        return mChunkLength;
+    }
+
+    /**
+     * @return Whether a request body stream was opened
+     */
+    protected boolean hasRequestBody()
+    {
+        return mRequestBodyStream != null;
+    }
+
+    /**
+     * Provides the response, should be called from execute()
+     * @param code The status code
+     * @param message The status message, may be null
+     * @param headerKeys The response header names, in the order received
+     * @param headerValues The response header values, matching headerKeys
+     * @param body The response body, may be null for an empty body
+     */
+    protected void setResponse(int code, String message, List<String> headerKeys, List<String> headerValues, InputStream body)
+    {
+        LinkedHashMap<String, List<String>> headers = new LinkedHashMap<>();
+        for (int i = 0; i < headerKeys.size(); i++)
+        {
+            List<String> values = headers.get(headerKeys.get(i));
+            if (values == null)
+            {
+                values = new ArrayList<>(1);
+                headers.put(headerKeys.get(i), values);
+            }
+            values.add(headerValues.get(i));
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet())
+        {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        mResponseCode = code;
+        mResponseMessage = message;
+        mResponseHeaders = Collections.unmodifiableMap(headers);
+        mResponseHeaderKeys = headerKeys;
+        mResponseHeaderValues = headerValues;
+        mResponseBody = body == null ? new ByteArrayInputStream(EMPTY_BYTES) : body;
+    }
+
+    private void ensureResponse() throws IOException
+    {
+        if (mDisconnected)
+        {
+            throw new IOException("Connection was disconnected");
+        }
+
+        if (mExecuted) return;
+        mExecuted = true;
+        connected = true;
+
+        if (mRequestBodyStream != null)
+        {
+            mRequestBodyStream.close();
+        }
+
+        execute();
+
+        if (mResponseCode == -1)
+        {
+            throw new IOException("No response was received");
+        }
+    }
+
+    /**
+     * @return The socket factory set for this connection, or null to use the transport's
+     */
+    public SSLSocketFactory getSSLSocketFactory()
+    {
+        return mSSLSocketFactory;
+    }
+
+    /**
+     * Sets the socket factory for an https url, like HttpsURLConnection.setSSLSocketFactory.
+     * Transports that do the TLS handshake themselves should use it instead of their own.
+     */
+    public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory)
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        mSSLSocketFactory = sslSocketFactory;
+    }
+
+    /**
+     * @return The hostname verifier set for this connection, or null to use the transport's
+     */
+    public HostnameVerifier getHostnameVerifier()
+    {
+        return mHostnameVerifier;
+    }
+
+    /**
+     * Sets the hostname verifier for an https url, like HttpsURLConnection.setHostnameVerifier.
+     */
+    public void setHostnameVerifier(HostnameVerifier hostnameVerifier)
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        mHostnameVerifier = hostnameVerifier;
+    }
+
+    @Override
+    public void connect() throws IOException
+    {
+        connected = true;
+    }
+
+    @Override
+    public void disconnect()
+    {
+        if (mDisconnected) return;
+        mDisconnected = true;
+
+        if (mResponseBody != null)
+        {
+            try
+            {
+                mResponseBody.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+
+        release();
+    }
+
+    @Override
+    public boolean usingProxy()
+    {
+        return false;
+    }
+
+    @Override
+    public void setRequestMethod(String method) throws ProtocolException
+    {
+        if (connected)
+        {
+            throw new ProtocolException("Can't reset method: already connected");
+        }
+        if (method == null || method.length() == 0)
+        {
+            throw new ProtocolException("Invalid HTTP method: " + method);
+        }
+        this.method = method;
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(int contentLength)
+    {
+        setFixedLengthStreamingMode((long) contentLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength)
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        if (contentLength < 0)
+        {
+            throw new IllegalArgumentException("Invalid content length: " + contentLength);
+        }
+        mFixedContentLength = contentLength;
+        mChunkLength = -1;
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength)
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        mChunkLength = chunkLength <= 0 ? 4096 : chunkLength;
+        mFixedContentLength = -1;
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value)
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        if (key == null)
+        {
+            throw new NullPointerException("key is null");
+        }
+
+        removeRequestProperty(key);
+        List<String> values = new ArrayList<>(1);
+        values.add(value);
+        mRequestProperties.put(key, values);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value)
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        if (key == null)
+        {
+            throw new NullPointerException("key is null");
+        }
+
+        List<String> values = getRequestPropertyValues(key);
+        if (values == null)
+        {
+            values = new ArrayList<>(1);
+            mRequestProperties.put(key, values);
+        }
+        values.add(value);
+    }
+
+    @Override
+    public String getRequestProperty(String key)
+    {
+        List<String> values = key == null ? null : getRequestPropertyValues(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties()
+    {
+        if (connected)
+        {
+            throw new IllegalStateException("Already connected");
+        }
+        return Collections.unmodifiableMap(mRequestProperties);
+    }
+
+    /**
+     * @return The request properties, for use by the subclass while executing (when getRequestProperties() would throw)
+     */
+    protected Map<String, List<String>> getRequestHeaders()
+    {
+        return Collections.unmodifiableMap(mRequestProperties);
+    }
+
+    private List<String> getRequestPropertyValues(String key)
+    {
+        for (Map.Entry<String, List<String>> entry : mRequestProperties.entrySet())
+        {
+            if (entry.getKey().equalsIgnoreCase(key))
+            {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void removeRequestProperty(String key)
+    {
+        String existingKey = null;
+        for (String candidate : mRequestProperties.keySet())
+        {
+            if (candidate.equalsIgnoreCase(key))
+            {
+                existingKey = candidate;
+                break;
+            }
+        }
+        if (existingKey != null)
+        {
+            mRequestProperties.remove(existingKey);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        if (!getDoOutput())
+        {
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if (mExecuted)
+        {
+            throw new ProtocolException("Cannot write output after reading input.");
+        }
+
+        if (mRequestBodyStream == null)
+        {
+            if (method.equals("GET"))
+            {
+                method = "POST"; // Same as HttpURLConnection
+            }
+
+            connected = true;
+            OutputStream stream = openRequestBodyStream();
+            if (mFixedContentLength > -1)
+            {
+                stream = new FixedLengthOutputStream(stream, mFixedContentLength);
+            }
+            mRequestBodyStream = stream;
+        }
+        return mRequestBodyStream;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        ensureResponse();
+
+        if (mResponseCode >= 400)
+        {
+            if (mResponseCode == 404 || mResponseCode == 410)
+            {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: " + mResponseCode + " for URL: " + url.toString());
+        }
+
+        return mResponseBody;
+    }
+
+    @Override
+    public InputStream getErrorStream()
+    {
+        if (!mExecuted || mDisconnected || mResponseCode < 400)
+        {
+            return null;
+        }
+        return mResponseBody;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException
+    {
+        ensureResponse();
+        return mResponseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException
+    {
+        ensureResponse();
+        return mResponseMessage;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields()
+    {
+        try
+        {
+            ensureResponse();
+        }
+        catch (IOException e)
+        {
+            return Collections.emptyMap();
+        }
+        return mResponseHeaders;
+    }
+
+    @Override
+    public String getHeaderField(String name)
+    {
+        try
+        {
+            ensureResponse();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        if (name == null)
+        {
+            return null;
+        }
+
+        // Like HttpURLConnection, return the last value of the header
+        for (int i = mResponseHeaderKeys.size() - 1; i >= 0; i--)
+        {
+            if (name.equalsIgnoreCase(mResponseHeaderKeys.get(i)))
+            {
+                return mResponseHeaderValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n)
+    {
+        try
+        {
+            ensureResponse();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        return n >= 0 && n < mResponseHeaderKeys.size() ? mResponseHeaderKeys.get(n) : null;
+    }
+
+    @Override
+    public String getHeaderField(int n)
+    {
+        try
+        {
+            ensureResponse();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        return n >= 0 && n < mResponseHeaderValues.size() ? mResponseHeaderValues.get(n) : null;
+    }
+
+    /**
+     * Enforces the exact length declared with setFixedLengthStreamingMode, as HttpURLConnection does.
+     */
+    private static class FixedLengthOutputStream extends OutputStream
+    {
+        private final OutputStream mOutputStream;
+        private final long mLength;
+        private long mWritten = 0;
+        private boolean mClosed = false;
+
+        FixedLengthOutputStream(OutputStream outputStream, long length)
+        {
+            this.mOutputStream = outputStream;
+            this.mLength = length;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException
+        {
+            write(new byte[]{ (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException
+        {
+            if (mWritten + count > mLength)
+            {
+                throw new IOException("expected " + (mLength - mWritten) + " bytes but received " + count);
+            }
+            mOutputStream.write(buffer, offset, count);
+            mWritten += count;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            mOutputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (mClosed) return;
+            mClosed = true;
+
+            if (mWritten != mLength)
+            {
+                throw new IOException("insufficient data written: expected " + mLength + " bytes but received " + mWritten);
+            }
+            mOutputStream.close();
+        }
+    }
+}
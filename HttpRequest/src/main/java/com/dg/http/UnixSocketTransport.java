@@ -0,0 +1,677 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.ProtocolFamily;
+import java.net.Proxy;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A transport that sends HTTP/1.1 requests over a Unix domain socket, for talking to a local proxy or sidecar
+ * without the cost of TCP over loopback.
+ * The url of a request only selects the Host header and the path, the connection always goes to the socket file.
+ *
+ * Fixed-length and chunked request bodies (including multipart) are streamed to the socket as they are written,
+ * other bodies are buffered first (into memory, or a temporary file for large bodies) to know their Content-Length.
+ * Responses are buffered the same way, and connections are kept alive and reused.
+ *
+ * This requires Java 16 or later (UnixDomainSocketAddress), see {@link #isSupported()}.
+ */
+public class UnixSocketTransport extends HttpTransport
+{
+    private static final int MAX_REQUEST_SIZE_IN_MEMORY = 65536;
+    private static final int MAX_RESPONSE_SIZE_IN_MEMORY = 65536;
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int FILE_BUFFER_SIZE = 65536;
+    private static final int DEFAULT_CHUNK_LENGTH = 4096;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private static final Method sAddressOf;
+    private static final Method sOpenChannel;
+    private static final ProtocolFamily sUnixFamily;
+
+    static
+    {
+        Method addressOf = null;
+        Method openChannel = null;
+        ProtocolFamily unixFamily = null;
+        try
+        {
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            unixFamily = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+        }
+        catch (Exception ignored)
+        {
+            addressOf = null;
+        }
+        sAddressOf = addressOf;
+        sOpenChannel = openChannel;
+        sUnixFamily = unixFamily;
+    }
+
+    private final String mSocketPath;
+    private final ArrayDeque<UnixChannel> mIdle = new ArrayDeque<>();
+    private volatile int mMaxIdleConnections = 5;
+    private volatile long mKeepAliveTimeout = 30000;
+
+    public UnixSocketTransport(String socketPath)
+    {
+        this.mSocketPath = socketPath;
+    }
+
+    public UnixSocketTransport(File socketFile)
+    {
+        this(socketFile.getPath());
+    }
+
+    /**
+     * @return Whether Unix domain sockets are available on this platform (Java 16 or later)
+     */
+    public static boolean isSupported()
+    {
+        return sAddressOf != null;
+    }
+
+    public String getSocketPath()
+    {
+        return mSocketPath;
+    }
+
+    public int getMaxIdleConnections()
+    {
+        return mMaxIdleConnections;
+    }
+
+    /**
+     * Sets the maximum number of idle connections kept alive for reuse. Default is 5.
+     */
+    public void setMaxIdleConnections(int maxIdleConnections)
+    {
+        this.mMaxIdleConnections = maxIdleConnections;
+    }
+
+    public long getKeepAliveTimeout()
+    {
+        return mKeepAliveTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds that an idle connection is kept alive. Default is 30 seconds.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout)
+    {
+        this.mKeepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Closes all idle connections
+     */
+    public void evictIdleConnections()
+    {
+        synchronized (mIdle)
+        {
+            for (UnixChannel channel : mIdle)
+            {
+                channel.close();
+            }
+            mIdle.clear();
+        }
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+    {
+        if (!isSupported())
+        {
+            throw new IOException("Unix domain sockets require Java 16 or later");
+        }
+        return new UnixSocketConnection(url);
+    }
+
+    /**
+     * @return An idle connection that is still usable, or a new one
+     */
+    private UnixChannel acquireChannel() throws IOException
+    {
+        long expiry = System.currentTimeMillis() - mKeepAliveTimeout;
+
+        while (true)
+        {
+            UnixChannel channel;
+            synchronized (mIdle)
+            {
+                channel = mIdle.pollLast();
+            }
+            if (channel == null) break;
+
+            if (channel.mIdleSince > expiry && channel.isHealthy())
+            {
+                return channel;
+            }
+            channel.close();
+        }
+
+        return openChannel();
+    }
+
+    private UnixChannel openChannel() throws IOException
+    {
+        SocketChannel channel;
+        SocketAddress address;
+        try
+        {
+            address = (SocketAddress) sAddressOf.invoke(null, mSocketPath);
+            channel = (SocketChannel) sOpenChannel.invoke(null, sUnixFamily);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IOException(e);
+        }
+
+        Selector selector = null;
+        try
+        {
+            channel.connect(address);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            return new UnixChannel(channel, selector);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(selector);
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private void recycleChannel(UnixChannel channel)
+    {
+        channel.mIdleSince = System.currentTimeMillis();
+        channel.mReused = true;
+
+        synchronized (mIdle)
+        {
+            mIdle.addLast(channel);
+            while (mIdle.size() > mMaxIdleConnections)
+            {
+                mIdle.pollFirst().close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null) return;
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    /**
+     * A non-blocking socket channel, with blocking reads and writes that honor a timeout
+     */
+    private static final class UnixChannel
+    {
+        final SocketChannel mChannel;
+        final Selector mSelector;
+        SelectionKey mKey = null;
+        long mIdleSince = 0;
+        boolean mReused = false;
+
+        UnixChannel(SocketChannel channel, Selector selector)
+        {
+            this.mChannel = channel;
+            this.mSelector = selector;
+        }
+
+        void write(ByteBuffer buffer, int timeout) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                if (mChannel.write(buffer) == 0)
+                {
+                    await(SelectionKey.OP_WRITE, timeout);
+                }
+            }
+        }
+
+        void write(ByteBuffer[] buffers, int timeout) throws IOException
+        {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers)
+            {
+                remaining += buffer.remaining();
+            }
+
+            while (remaining > 0)
+            {
+                long written = mChannel.write(buffers);
+                if (written == 0)
+                {
+                    await(SelectionKey.OP_WRITE, timeout);
+                }
+                remaining -= written;
+            }
+        }
+
+        int read(ByteBuffer buffer, int timeout) throws IOException
+        {
+            while (true)
+            {
+                int read = mChannel.read(buffer);
+                if (read != 0) return read;
+                await(SelectionKey.OP_READ, timeout);
+            }
+        }
+
+        private void await(int op, int timeout) throws IOException
+        {
+            if (mKey == null)
+            {
+                mKey = mChannel.register(mSelector, op);
+            }
+            else
+            {
+                mKey.interestOps(op);
+            }
+
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            while (mSelector.select(timeout > 0 ? Math.max(1, deadline - System.currentTimeMillis()) : 0) == 0)
+            {
+                if (Thread.currentThread().isInterrupted())
+                {
+                    throw new InterruptedIOException();
+                }
+                if (deadline > 0 && System.currentTimeMillis() >= deadline)
+                {
+                    throw new SocketTimeoutException(op == SelectionKey.OP_READ ? "Read timed out" : "Write timed out");
+                }
+            }
+            mSelector.selectedKeys().clear();
+        }
+
+        /**
+         * @return Whether an idle connection can still be used - the server did not close it, nor sent anything unexpected
+         */
+        boolean isHealthy()
+        {
+            try
+            {
+                return mChannel.isOpen() && mChannel.read(ByteBuffer.allocate(1)) == 0;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+        }
+
+        void close()
+        {
+            closeQuietly(mSelector);
+            closeQuietly(mChannel);
+        }
+    }
+
+    private final class UnixSocketConnection extends TransportConnection
+    {
+        private UnixChannel mChannel = null;
+        private SpoolOutputStream mRequestBody = null;
+        private boolean mStreamedBody = false;
+
+        UnixSocketConnection(URL url)
+        {
+            super(url);
+        }
+
+        @Override
+        protected OutputStream openRequestBodyStream() throws IOException
+        {
+            long fixedContentLength = getFixedContentLength();
+            int chunkLength = getChunkLength();
+
+            if (fixedContentLength > -1 || chunkLength > -1)
+            {
+                // The length is known up front or not needed, so stream it to the socket as it's written
+                mStreamedBody = true;
+                mChannel = acquireChannel();
+                try
+                {
+                    boolean chunked = fixedContentLength == -1;
+                    sendHead(chunked ? -1 : fixedContentLength, chunked);
+                    return new RequestBodyStream(mChannel, getReadTimeout(), fixedContentLength, chunkLength > 0 ? chunkLength : DEFAULT_CHUNK_LENGTH);
+                }
+                catch (IOException e)
+                {
+                    closeChannel();
+                    throw e;
+                }
+            }
+
+            mRequestBody = new SpoolOutputStream(MAX_REQUEST_SIZE_IN_MEMORY, 256);
+            return mRequestBody;
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            String method = getRequestMethod();
+            boolean retryable = !mStreamedBody && Http1Codec.isIdempotentMethod(method);
+
+            while (true)
+            {
+                SpoolOutputStream responseBody = new SpoolOutputStream(MAX_RESPONSE_SIZE_IN_MEMORY);
+                Http1Codec.ResponseParser parser = new Http1Codec.ResponseParser(method.equals("HEAD"), responseBody);
+                boolean reused = false;
+
+                try
+                {
+                    if (!mStreamedBody)
+                    {
+                        mChannel = acquireChannel();
+                        reused = mChannel.mReused;
+                        sendRequest(method);
+                    }
+
+                    boolean keepAlive = readResponse(parser);
+
+                    if (keepAlive)
+                    {
+                        recycleChannel(mChannel);
+                        mChannel = null;
+                    }
+                    else
+                    {
+                        closeChannel();
+                    }
+                }
+                catch (IOException e)
+                {
+                    closeChannel();
+                    responseBody.delete();
+
+                    // An idle connection may have been closed by the server just as it was reused
+                    if (retryable && reused && !parser.hasReceivedBytes())
+                    {
+                        retryable = false;
+                        continue;
+                    }
+                    throw e;
+                }
+
+                setResponse(parser.getStatusCode(), parser.getStatusMessage(),
+                        parser.getHeaderKeys(), parser.getHeaderValues(),
+                        responseBody.openInputStream(true));
+                return;
+            }
+        }
+
+        @Override
+        protected void release()
+        {
+            closeChannel();
+            if (mRequestBody != null)
+            {
+                mRequestBody.delete();
+            }
+        }
+
+        private void closeChannel()
+        {
+            if (mChannel != null)
+            {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+
+        private void sendHead(long contentLength, boolean chunked) throws IOException
+        {
+            byte[] head = Http1Codec.encodeRequestHead(getRequestMethod(), url, getRequestHeaders(), contentLength, chunked);
+            mChannel.write(ByteBuffer.wrap(head), getReadTimeout());
+        }
+
+        /**
+         * Sends a request whose body (if any) was buffered
+         */
+        private void sendRequest(String method) throws IOException
+        {
+            long contentLength = -1;
+            if (mRequestBody != null)
+            {
+                mRequestBody.close();
+                contentLength = mRequestBody.size();
+            }
+            else if (method.equals("POST") || method.equals("PUT") || method.equals("PATCH"))
+            {
+                contentLength = 0;
+            }
+
+            byte[] head = Http1Codec.encodeRequestHead(method, url, getRequestHeaders(), contentLength, false);
+            int timeout = getReadTimeout();
+
+            if (mRequestBody == null)
+            {
+                mChannel.write(ByteBuffer.wrap(head), timeout);
+            }
+            else if (mRequestBody.isInMemory())
+            {
+                mChannel.write(new ByteBuffer[]{ ByteBuffer.wrap(head), mRequestBody.getMemoryBuffer() }, timeout);
+            }
+            else
+            {
+                mChannel.write(ByteBuffer.wrap(head), timeout);
+
+                FileChannel file = mRequestBody.openFileChannel();
+                try
+                {
+                    ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+                    while (file.read(buffer) > -1)
+                    {
+                        buffer.flip();
+                        mChannel.write(buffer, timeout);
+                        buffer.clear();
+                    }
+                }
+                finally
+                {
+                    file.close();
+                }
+            }
+        }
+
+        /**
+         * Reads the response into the parser
+         * @return Whether the connection can be reused
+         */
+        private boolean readResponse(Http1Codec.ResponseParser parser) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            int timeout = getReadTimeout();
+
+            while (true)
+            {
+                buffer.clear();
+                if (mChannel.read(buffer, timeout) == -1)
+                {
+                    parser.endOfStream();
+                    return false;
+                }
+
+                buffer.flip();
+                if (parser.feed(buffer))
+                {
+                    // Anything after the response was not asked for
+                    return parser.isKeepAlive() && !buffer.hasRemaining();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a request body directly to the socket, either with a fixed length or in chunks
+     */
+    private static final class RequestBodyStream extends OutputStream
+    {
+        private final UnixChannel mChannel;
+        private final int mTimeout;
+        private final long mContentLength;
+        private final byte[] mBuffer;
+        private int mCount = 0;
+        private long mWritten = 0;
+        private boolean mClosed = false;
+
+        /**
+         * @param contentLength The exact length of the body, or -1 to write it in chunks
+         */
+        RequestBodyStream(UnixChannel channel, int timeout, long contentLength, int chunkLength)
+        {
+            this.mChannel = channel;
+            this.mTimeout = timeout;
+            this.mContentLength = contentLength;
+            this.mBuffer = new byte[contentLength > -1 ? WRITE_BUFFER_SIZE : chunkLength];
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException
+        {
+            write(new byte[]{ (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException
+        {
+            if (mClosed)
+            {
+                throw new IOException("Stream is closed");
+            }
+            if (mContentLength > -1 && mWritten + count > mContentLength)
+            {
+                throw new ProtocolException("exceeded content-length limit of " + mContentLength + " bytes");
+            }
+            mWritten += count;
+
+            while (count > 0)
+            {
+                if (mCount == 0 && count >= mBuffer.length)
+                {
+                    // Large writes skip the buffer
+                    int length = mContentLength > -1 ? count : mBuffer.length;
+                    send(buffer, offset, length);
+                    offset += length;
+                    count -= length;
+                    continue;
+                }
+
+                int length = Math.min(count, mBuffer.length - mCount);
+                System.arraycopy(buffer, offset, mBuffer, mCount, length);
+                mCount += length;
+                offset += length;
+                count -= length;
+
+                if (mCount == mBuffer.length)
+                {
+                    flushBuffer();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (mClosed) return;
+            mClosed = true;
+
+            flushBuffer();
+
+            if (mContentLength == -1)
+            {
+                mChannel.write(ByteBuffer.wrap(LAST_CHUNK), mTimeout);
+            }
+            else if (mWritten != mContentLength)
+            {
+                throw new IOException("insufficient data written");
+            }
+        }
+
+        private void flushBuffer() throws IOException
+        {
+            if (mCount == 0) return;
+            send(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+
+        private void send(byte[] buffer, int offset, int count) throws IOException
+        {
+            if (mContentLength > -1)
+            {
+                mChannel.write(ByteBuffer.wrap(buffer, offset, count), mTimeout);
+                return;
+            }
+
+            byte[] size = (Integer.toHexString(count) + "\r\n").getBytes("ISO-8859-1");
+            mChannel.write(new ByteBuffer[]{ ByteBuffer.wrap(size), ByteBuffer.wrap(buffer, offset, count), ByteBuffer.wrap(CRLF) }, mTimeout);
+        }
+    }
+}
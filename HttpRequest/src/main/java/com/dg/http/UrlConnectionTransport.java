@@ -0,0 +1,208 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+package com.dg.http;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+
+/**
+ * The default transport, using the platform's HttpURLConnection.
+ */
+public class UrlConnectionTransport extends HttpTransport
+{
+    private static boolean sTriedFixingHttpURLConnectionMethods = false;
+
+    public UrlConnectionTransport()
+    {
+        synchronized (UrlConnectionTransport.class)
+        {
+            if (!sTriedFixingHttpURLConnectionMethods)
+            {
+                sTriedFixingHttpURLConnectionMethods = true;
+                tryFixingHttpURLConnectionMethods();
+            }
+        }
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+    {
+        if (proxy != null)
+        {
+            return (HttpURLConnection) url.openConnection(proxy);
+        }
+        else
+        {
+            return (HttpURLConnection) url.openConnection();
+        }
+    }
+
+    @Override
+    public void setRequestMethod(HttpURLConnection connection, String method) throws IOException
+    {
+        try
+        {
+            connection.setRequestMethod(method);
+        }
+        catch (ProtocolException ex)
+        {
+            // HTTP Method not supported by HttpURLConnection which is only HTTP/1.1 compliant
+            trySetHttpMethodUsingIntrospection(connection, method);
+        }
+    }
+
+    /**
+     * HttpURLConnection does not allow more than a few basic HTTP Methods, we need to workaround that.
+     * First we try to edit its internal list of supported HTTP methods, and as a fallback we try to directly set the "method" field using introspection
+     */
+    private static void tryFixingHttpURLConnectionMethods()
+    {
+        try
+        {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
+            {
+                @Override
+                public Object run() throws NoSuchFieldException, IllegalAccessException
+                {
+                    try
+                    {
+                        Class<?> connectionClass = HttpURLConnection.class;
+
+                        Field methodField = connectionClass.getDeclaredField("PERMITTED_USER_METHODS");
+                        methodField.setAccessible(true);
+                        String[] methodsArray = (String[])methodField.get(null);
+
+                        ArrayList<String> newSupportedMethods = new ArrayList<String>();
+                        for (String method : methodsArray)
+                        {
+                            newSupportedMethods.add(method);
+                        }
+                        if (!newSupportedMethods.contains("PATCH"))
+                        {
+                            newSupportedMethods.add("PATCH");
+                        }
+                        if (!newSupportedMethods.contains("CONNECT"))
+                        {
+                            newSupportedMethods.add("CONNECT");
+                        }
+
+                        methodsArray = newSupportedMethods.toArray(new String[newSupportedMethods.size()]);
+                        methodField.set(null, methodsArray);
+                    }
+                    catch (Exception ignored)
+                    {
+                    }
+                    return null;
+                }
+            });
+        }
+        catch (Exception ignored)
+        {
+        }
+    }
+
+    private static void trySetHttpMethodUsingIntrospection(final HttpURLConnection httpURLConnection, final String method)
+    {
+        try
+        {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
+            {
+                @Override
+                public Object run() throws NoSuchFieldException, IllegalAccessException
+                {
+                    try
+                    {
+                        httpURLConnection.setRequestMethod(method);
+                    }
+                    catch (final ProtocolException pe)
+                    {
+                        Class<?> connectionClass = httpURLConnection.getClass();
+                        try
+                        {
+                            Field delegateField = connectionClass.getDeclaredField("delegate");
+                            delegateField.setAccessible(true);
+                            HttpURLConnection delegateConnection = (HttpURLConnection) delegateField.get(httpURLConnection);
+                            trySetHttpMethodUsingIntrospection(delegateConnection, method);
+                        }
+                        catch (NoSuchFieldException ignored)
+                        {
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                        catch (IllegalAccessException e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                        try
+                        {
+                            while (connectionClass != null)
+                            {
+                                try
+                                {
+                                    Field methodField = connectionClass.getDeclaredField("method");
+                                    methodField.setAccessible(true);
+                                    methodField.set(httpURLConnection, method);
+                                    break;
+                                }
+                                catch (NoSuchFieldException e)
+                                {
+                                    connectionClass = connectionClass.getSuperclass();
+                                }
+                            }
+                        }
+                        catch (final Exception e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        catch (final PrivilegedActionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
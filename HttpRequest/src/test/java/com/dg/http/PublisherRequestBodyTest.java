@@ -0,0 +1,182 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+package com.dg.http;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a published request body is pulled as the connection writes it, and not drained ahead of it
+ */
+public class PublisherRequestBodyTest
+{
+    private static final int ITEM_COUNT = 1000;
+    private static final int ITEM_SIZE = 8192;
+    private static final int MAX_AHEAD = 8; // Items the publisher may be ahead of what was written
+
+    @Test
+    public void knownLengthIsStreamedWithBackpressure() throws IOException
+    {
+        assertStreamedWithBackpressure(ITEM_COUNT * (long) ITEM_SIZE);
+    }
+
+    @Test
+    public void unknownLengthIsStreamedWithBackpressure() throws IOException
+    {
+        assertStreamedWithBackpressure(-1);
+    }
+
+    private static void assertStreamedWithBackpressure(long contentLength) throws IOException
+    {
+        CountingPublisher publisher = new CountingPublisher();
+        RecordingTransport transport = new RecordingTransport(publisher);
+
+        HttpResponse response = new HttpRequest("http://localhost/upload", HttpRequest.HttpMethod.POST)
+                .setTransport(transport)
+                .setRequestBody(publisher, contentLength)
+                .getResponse();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(ITEM_COUNT * (long) ITEM_SIZE, transport.mConnection.mWritten);
+        assertTrue("Published " + transport.mConnection.mPublishedWhenOpened + " items before the output stream was opened",
+                transport.mConnection.mPublishedWhenOpened <= MAX_AHEAD);
+        assertTrue("Publisher ran " + transport.mConnection.mMaxAhead + " items ahead of the connection",
+                transport.mConnection.mMaxAhead <= MAX_AHEAD);
+
+        if (contentLength > -1)
+        {
+            assertEquals(contentLength, transport.mConnection.getFixedContentLength());
+        }
+        else
+        {
+            assertTrue(transport.mConnection.getChunkLength() > -1);
+        }
+    }
+
+    private static final class CountingPublisher implements HttpFlow.Publisher<ByteBuffer>
+    {
+        int mPublished = 0;
+
+        @Override
+        public void subscribe(final HttpFlow.Subscriber<? super ByteBuffer> subscriber)
+        {
+            subscriber.onSubscribe(new HttpFlow.Subscription()
+            {
+                private boolean mCompleted = false;
+
+                @Override
+                public void request(long n)
+                {
+                    for (long i = 0; i < n && mPublished < ITEM_COUNT; i++)
+                    {
+                        mPublished++;
+                        subscriber.onNext(ByteBuffer.wrap(new byte[ITEM_SIZE]));
+                    }
+                    if (mPublished == ITEM_COUNT && !mCompleted)
+                    {
+                        mCompleted = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel()
+                {
+                }
+            });
+        }
+    }
+
+    private static final class RecordingTransport extends HttpTransport
+    {
+        private final CountingPublisher mPublisher;
+        RecordingConnection mConnection;
+
+        RecordingTransport(CountingPublisher publisher)
+        {
+            this.mPublisher = publisher;
+        }
+
+        @Override
+        public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+        {
+            mConnection = new RecordingConnection(url, mPublisher);
+            return mConnection;
+        }
+    }
+
+    private static final class RecordingConnection extends TransportConnection
+    {
+        private final CountingPublisher mPublisher;
+        int mPublishedWhenOpened = -1;
+        int mMaxAhead = 0;
+        long mWritten = 0;
+
+        RecordingConnection(URL url, CountingPublisher publisher)
+        {
+            super(url);
+            this.mPublisher = publisher;
+        }
+
+        @Override
+        protected OutputStream openRequestBodyStream() throws IOException
+        {
+            mPublishedWhenOpened = mPublisher.mPublished;
+
+            return new OutputStream()
+            {
+                @Override
+                public void write(int oneByte) throws IOException
+                {
+                    write(new byte[] { (byte) oneByte }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException
+                {
+                    mWritten += count;
+                    long itemsWritten = mWritten / ITEM_SIZE;
+                    mMaxAhead = (int) Math.max(mMaxAhead, mPublisher.mPublished - itemsWritten);
+                }
+            };
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            setResponse(200, "OK", Collections.<String>emptyList(), Collections.<String>emptyList(), null);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+package com.dg.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the retry policy keeps a copy of the request body only when the request may be sent again
+ */
+public class RetryRequestBodyTest
+{
+    private static final int BODY_SIZE = 100000;
+
+    @Test
+    public void nonIdempotentBodyIsStreamedWithoutCopy() throws IOException
+    {
+        CountingInputStream body = new CountingInputStream(new byte[BODY_SIZE]);
+        ScriptedTransport transport = new ScriptedTransport(body, HttpResponse.StatusCodes.OK);
+
+        HttpResponse response = new HttpRequest("http://localhost/upload", HttpRequest.HttpMethod.POST)
+                .setTransport(transport)
+                .setRetryPolicy(newPolicy())
+                .setRequestBody(body, BODY_SIZE)
+                .getResponse();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(1, transport.mConnections.size());
+        assertEquals("The body was read before the connection wrote it", 0, transport.mConnections.get(0).mReadWhenOpened);
+        assertEquals(BODY_SIZE, transport.mConnections.get(0).getRequestBodyBytes().length);
+    }
+
+    @Test
+    public void idempotentBodyIsReplayed() throws IOException
+    {
+        byte[] data = new byte[BODY_SIZE];
+        Arrays.fill(data, (byte) 'x');
+        CountingInputStream body = new CountingInputStream(data);
+        ScriptedTransport transport = new ScriptedTransport(body,
+                HttpResponse.StatusCodes.SERVICE_UNAVAILABLE, HttpResponse.StatusCodes.OK);
+
+        HttpResponse response = new HttpRequest("http://localhost/upload", HttpRequest.HttpMethod.PUT)
+                .setTransport(transport)
+                .setRetryPolicy(newPolicy())
+                .setRequestBody(body, BODY_SIZE)
+                .getResponse();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, transport.mConnections.size());
+        for (ScriptedConnection connection : transport.mConnections)
+        {
+            assertTrue(Arrays.equals(data, connection.getRequestBodyBytes()));
+        }
+    }
+
+    @Test
+    public void nonIdempotentBodyIsSentAgainAfterConnectFailure() throws IOException
+    {
+        byte[] data = "name=value".getBytes("UTF-8");
+        ScriptedTransport transport = new ScriptedTransport(null, 0, HttpResponse.StatusCodes.OK);
+
+        HttpResponse response = new HttpRequest("http://localhost/upload", HttpRequest.HttpMethod.POST)
+                .setTransport(transport)
+                .setRetryPolicy(newPolicy())
+                .setRequestBody(data)
+                .getResponse();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, transport.mAttempts);
+        assertTrue(Arrays.equals(data, transport.mConnections.get(0).getRequestBodyBytes()));
+    }
+
+    @Test
+    public void nonIdempotentStreamIsNotRetried() throws IOException
+    {
+        CountingInputStream body = new CountingInputStream(new byte[BODY_SIZE]);
+        ScriptedTransport transport = new ScriptedTransport(body, 0, HttpResponse.StatusCodes.OK);
+
+        try
+        {
+            new HttpRequest("http://localhost/upload", HttpRequest.HttpMethod.POST)
+                    .setTransport(transport)
+                    .setRetryPolicy(newPolicy())
+                    .setRequestBody(body, BODY_SIZE)
+                    .getResponse();
+            fail("Expected the connect failure");
+        }
+        catch (ConnectException ignored)
+        {
+        }
+
+        assertEquals(1, transport.mAttempts);
+    }
+
+    private static HttpRetryPolicy newPolicy()
+    {
+        return new HttpRetryPolicy().setBackoff(1L, 1L, 1.0);
+    }
+
+    private static final class CountingInputStream extends ByteArrayInputStream
+    {
+        CountingInputStream(byte[] data)
+        {
+            super(data);
+        }
+
+        int getRead()
+        {
+            return pos;
+        }
+    }
+
+    /**
+     * Answers each attempt with the next status code, where 0 fails to connect
+     */
+    private static final class ScriptedTransport extends HttpTransport
+    {
+        private final CountingInputStream mBody;
+        private final int[] mStatusCodes;
+        final ArrayList<ScriptedConnection> mConnections = new ArrayList<>();
+        int mAttempts = 0;
+
+        ScriptedTransport(CountingInputStream body, int... statusCodes)
+        {
+            this.mBody = body;
+            this.mStatusCodes = statusCodes;
+        }
+
+        @Override
+        public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+        {
+            int statusCode = mStatusCodes[Math.min(mAttempts, mStatusCodes.length - 1)];
+            mAttempts++;
+            if (statusCode == 0)
+            {
+                throw new ConnectException("Connection refused");
+            }
+
+            ScriptedConnection connection = new ScriptedConnection(url, mBody, statusCode);
+            mConnections.add(connection);
+            return connection;
+        }
+    }
+
+    private static final class ScriptedConnection extends TransportConnection
+    {
+        private final CountingInputStream mBody;
+        private final int mStatusCode;
+        int mReadWhenOpened = -1;
+
+        ScriptedConnection(URL url, CountingInputStream body, int statusCode)
+        {
+            super(url);
+            this.mBody = body;
+            this.mStatusCode = statusCode;
+        }
+
+        @Override
+        protected OutputStream openRequestBodyStream() throws IOException
+        {
+            if (mBody != null)
+            {
+                mReadWhenOpened = mBody.getRead();
+            }
+            return super.openRequestBodyStream();
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            setResponse(mStatusCode, "", Collections.<String>emptyList(), Collections.<String>emptyList(),
+                    new ByteArrayInputStream(new byte[0]));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ The MIT License (MIT)
+
+ Copyright (c) 2014 Daniel Cohen Gindi, danielgindi@gmail.com
+ Repository is at: https://github.com/danielgindi/java-httprequest
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+package com.dg.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a fast error response doesn't win over a slower successful one
+ */
+public class ScatterGatherStatusTest
+{
+    @Test
+    public void errorStatusDoesNotWin() throws InterruptedException, MalformedURLException
+    {
+        HttpScatterGather.Result result = HttpScatterGather.firstSuccess(Arrays.asList(
+                newRequest(HttpResponse.StatusCodes.SERVICE_UNAVAILABLE, 0L),
+                newRequest(HttpResponse.StatusCodes.OK, 200L))).gather();
+
+        assertTrue(result.isSatisfied());
+        assertEquals(200, result.getResponse().getStatusCode());
+        assertEquals(1, result.getFailed());
+        assertEquals(0, result.getAborted());
+        assertEquals(503, ((HttpScatterGather.UnsuccessfulResponseException) result.getError(0)).getStatusCode());
+    }
+
+    @Test
+    public void errorStatusWinsWhenAnyStatusIsAccepted() throws InterruptedException, MalformedURLException
+    {
+        HttpScatterGather.Result result = HttpScatterGather.firstSuccess(Arrays.asList(
+                newRequest(HttpResponse.StatusCodes.SERVICE_UNAVAILABLE, 0L),
+                newRequest(HttpResponse.StatusCodes.OK, 2000L)))
+                .setAcceptAnyStatus(true)
+                .gather();
+
+        assertEquals(503, result.getResponse().getStatusCode());
+        assertEquals(1, result.getAborted());
+    }
+
+    private static HttpRequest newRequest(final int statusCode, final long delay) throws MalformedURLException
+    {
+        return new HttpRequest("http://localhost/" + statusCode, HttpRequest.HttpMethod.GET)
+                .setTransport(new HttpTransport()
+                {
+                    @Override
+                    public HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException
+                    {
+                        return new DelayedConnection(url, statusCode, delay);
+                    }
+                });
+    }
+
+    private static final class DelayedConnection extends TransportConnection
+    {
+        private final int mStatusCode;
+        private final long mDelay;
+
+        DelayedConnection(URL url, int statusCode, long delay)
+        {
+            super(url);
+            this.mStatusCode = statusCode;
+            this.mDelay = delay;
+        }
+
+        @Override
+        protected void execute() throws IOException
+        {
+            try
+            {
+                Thread.sleep(mDelay);
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+
+            setResponse(mStatusCode, "", Collections.<String>emptyList(), Collections.<String>emptyList(),
+                    new ByteArrayInputStream(new byte[0]));
+        }
+    }
+}